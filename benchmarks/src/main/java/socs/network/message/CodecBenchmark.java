@@ -0,0 +1,106 @@
+package socs.network.message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * encode and decode of a HELLO and of LSAUPDATEs of various sizes, binary codec and java
+ * serialization
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+  // LSAs in the LSAUPDATE, 4 links each
+  @Param({"1", "100", "1000"})
+  int lsaCount;
+
+  private SOSPFPacket hello;
+  private SOSPFPacket update;
+  private byte[] helloBytes;
+  private byte[] updateBytes;
+  private byte[] updateJavaBytes;
+
+  @Setup
+  public void setup() throws IOException {
+    hello = new SOSPFPacket("127.0.0.1", (short) 8001, "192.168.1.1", "192.168.1.2");
+    hello.sospfType = SOSPFPacket.HELLO;
+    update = new SOSPFPacket("127.0.0.1", (short) 8001, "192.168.1.1", "192.168.1.2");
+    update.sospfType = SOSPFPacket.LSAUPDATE;
+    update.lsaArray = new Vector<LSA>();
+    for (int i = 0; i < lsaCount; i++) {
+      LSA lsa = new LSA();
+      lsa.linkStateID = "10.0." + (i >> 8) + "." + (i & 255);
+      lsa.lsaSeqNumber = i;
+      for (int l = 0; l < 4; l++) {
+        LinkDescription ld = new LinkDescription();
+        ld.linkID = "10.1." + l + "." + (i & 255);
+        ld.portNum = l;
+        lsa.links.add(ld);
+      }
+      update.lsaArray.add(lsa);
+    }
+    helloBytes = PacketCodec.encode(hello);
+    updateBytes = PacketCodec.encode(update);
+    updateJavaBytes = javaEncode(update);
+  }
+
+  private static byte[] javaEncode(SOSPFPacket packet) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(packet);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] encodeHello() throws IOException {
+    return PacketCodec.encode(hello);
+  }
+
+  @Benchmark
+  public SOSPFPacket decodeHello() throws IOException {
+    return PacketCodec.decode(helloBytes);
+  }
+
+  @Benchmark
+  public byte[] encodeUpdate() throws IOException {
+    return PacketCodec.encode(update);
+  }
+
+  @Benchmark
+  public SOSPFPacket decodeUpdate() throws IOException {
+    return PacketCodec.decode(updateBytes);
+  }
+
+  @Benchmark
+  public byte[] encodeUpdateJava() throws IOException {
+    return javaEncode(update);
+  }
+
+  @Benchmark
+  public Object decodeUpdateJava() throws IOException, ClassNotFoundException {
+    return new ObjectInputStream(new ByteArrayInputStream(updateJavaBytes)).readObject();
+  }
+}
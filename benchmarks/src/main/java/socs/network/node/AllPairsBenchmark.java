@@ -0,0 +1,58 @@
+package socs.network.node;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * routes between every pair of routers on random topologies (average degree 4), on one thread
+ * and on every cpu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllPairsBenchmark {
+
+  @Param({"100", "1000", "4000"})
+  int routers;
+
+  @Param({"1", "0"})
+  int threads;
+
+  private TopologyGraph graph;
+  private ForkJoinPool pool;
+
+  @Setup
+  public void setup() {
+    graph = new BenchmarkTopology(routers, 4, 42).database().topology();
+    pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  /**
+   * one Dijkstra per source split across the pool, costs and next hop masks of every pair
+   */
+  @Benchmark
+  public Object allPairs() {
+    return AllPairsRoutes.compute(graph, pool);
+  }
+}
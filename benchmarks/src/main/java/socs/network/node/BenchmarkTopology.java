@@ -0,0 +1,67 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * the LSAs every router of a generated topology would originate
+ */
+class BenchmarkTopology {
+
+  final TopologyGenerator topology;
+  final String[] ips;
+  final LSA[] lsas;
+
+  BenchmarkTopology(int routers, double degree, long seed) {
+    topology = TopologyGenerator.random(routers, degree, new Random(seed));
+    ips = new String[routers];
+    lsas = new LSA[routers];
+    ArrayList<ArrayList<Integer>> adj = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < routers; i++) {
+      ips[i] = "10." + ((i >> 16) & 255) + "." + ((i >> 8) & 255) + "." + (i & 255);
+      adj.add(new ArrayList<Integer>());
+    }
+    for (int[] l : topology.links) {
+      adj.get(l[0]).add(l[1]);
+      adj.get(l[1]).add(l[0]);
+    }
+    for (int i = 0; i < routers; i++) {
+      lsas[i] = lsa(i, 1, adj.get(i));
+    }
+  }
+
+  LSA lsa(int router, int seq, ArrayList<Integer> neighbours) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = ips[router];
+    lsa.lsaSeqNumber = seq;
+    LinkDescription self = new LinkDescription();
+    self.linkID = ips[router];
+    self.portNum = -1;
+    lsa.links.add(self);
+    int port = 0;
+    for (int n : neighbours) {
+      LinkDescription ld = new LinkDescription();
+      ld.linkID = ips[n];
+      ld.portNum = port++;
+      lsa.links.add(ld);
+    }
+    return lsa;
+  }
+
+  /**
+   * database of router 0 holding every LSA of the topology
+   */
+  LinkStateDatabase database() {
+    RouterDescription rd = new RouterDescription();
+    rd.simulatedIPAddress = ips[0];
+    LinkStateDatabase lsd = new LinkStateDatabase(rd);
+    for (LSA lsa : lsas) {
+      lsd.installLSA(lsa);
+    }
+    lsd.syncRoutes();
+    return lsd;
+  }
+}
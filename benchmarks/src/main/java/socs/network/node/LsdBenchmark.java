@@ -0,0 +1,90 @@
+package socs.network.node;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import socs.network.message.LSA;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LSA insert and replace throughput of the link state database, without route computation
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LsdBenchmark {
+
+  @Param({"1000"})
+  int routers;
+
+  private BenchmarkTopology topology;
+  private LinkStateDatabase lsd;
+  private AtomicInteger next = new AtomicInteger();
+
+  @Setup(Level.Trial)
+  public void setup() {
+    topology = new BenchmarkTopology(routers, 4, 42);
+  }
+
+  @Setup(Level.Iteration)
+  public void fresh() {
+    lsd = topology.database();
+    next.set(0);
+  }
+
+  /**
+   * LSAs of routers the database has never seen
+   */
+  @Benchmark
+  public boolean insert() {
+    int n = next.getAndIncrement();
+    LSA lsa = new LSA();
+    lsa.linkStateID = "172." + ((n >> 16) & 255) + "." + ((n >> 8) & 255) + "." + (n & 255);
+    lsa.lsaSeqNumber = 1;
+    lsa.links = topology.lsas[n % routers].links;
+    return lsd.installLSA(lsa);
+  }
+
+  /**
+   * newer instances of known LSAs, one writer
+   */
+  @Benchmark
+  public boolean replace() {
+    return replaceNext();
+  }
+
+  /**
+   * newer instances of known LSAs, four writers on the striped locks (writers racing on the same
+   * router may lose against a newer instance, as on a real router)
+   */
+  @Benchmark
+  @Threads(4)
+  public boolean replaceContended() {
+    return replaceNext();
+  }
+
+  // round robin over the routers, each round with the next sequence number
+  private boolean replaceNext() {
+    int n = next.getAndIncrement();
+    LSA lsa = new LSA();
+    lsa.linkStateID = topology.lsas[n % routers].linkStateID;
+    lsa.lsaSeqNumber = n / routers + 2;
+    lsa.links = topology.lsas[n % routers].links;
+    return lsd.installLSA(lsa);
+  }
+}
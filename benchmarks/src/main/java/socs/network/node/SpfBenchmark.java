@@ -0,0 +1,89 @@
+package socs.network.node;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import socs.network.message.LSA;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * shortest path queries on random topologies (average degree 4) of various sizes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpfBenchmark {
+
+  @Param({"100", "1000", "5000"})
+  int routers;
+
+  private BenchmarkTopology topology;
+  private LinkStateDatabase lsd;
+  private TopologyGraph graph;
+  private SpfCalculator calculator = new SpfCalculator();
+  private Random random = new Random(7);
+  // neighbours of every router, and the same without the first one (the link that flaps)
+  private ArrayList<ArrayList<Integer>> neighbours = new ArrayList<ArrayList<Integer>>();
+  private ArrayList<ArrayList<Integer>> flapped = new ArrayList<ArrayList<Integer>>();
+
+  @Setup
+  public void setup() {
+    topology = new BenchmarkTopology(routers, 4, 42);
+    lsd = topology.database();
+    graph = lsd.topology();
+    for (int i = 0; i < routers; i++) {
+      neighbours.add(new ArrayList<Integer>());
+    }
+    for (int[] l : topology.topology.links) {
+      neighbours.get(l[0]).add(l[1]);
+      neighbours.get(l[1]).add(l[0]);
+    }
+    for (ArrayList<Integer> all : neighbours) {
+      flapped.add(new ArrayList<Integer>(all.subList(Math.min(1, all.size()), all.size())));
+    }
+  }
+
+  /**
+   * Dijkstra from scratch over the compact topology graph
+   */
+  @Benchmark
+  public int fullSpf() {
+    return calculator.run(graph, 0);
+  }
+
+  /**
+   * route lookup with no change since the last one (forwarding table hit or path walk)
+   */
+  @Benchmark
+  public Object routeLookup() {
+    return lsd.route(topology.ips[random.nextInt(routers)]);
+  }
+
+  /**
+   * a router drops one of its links and gets it back, each time followed by a route lookup
+   * (incremental SPF and forwarding table invalidation)
+   */
+  @Benchmark
+  public Object linkFlapAndLookup() {
+    int r = 1 + random.nextInt(routers - 1);
+    LSA current = lsd.getLSA(topology.ips[r]);
+    ArrayList<Integer> all = neighbours.get(r);
+    ArrayList<Integer> next = current.links.size() == all.size() + 1 ? flapped.get(r) : all;
+    lsd.installLSA(topology.lsa(r, current.lsaSeqNumber + 1, next));
+    return lsd.route(topology.ips[random.nextInt(routers)]);
+  }
+}
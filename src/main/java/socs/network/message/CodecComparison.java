@@ -0,0 +1,98 @@
+package socs.network.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Vector;
+
+/**
+ * compares the size and the encode/decode throughput of the two wire formats.
+ * <p/>
+ * usage: java socs.network.message.CodecComparison [iterations] [lsaCount]
+ */
+public class CodecComparison {
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int lsaCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+    SOSPFPacket hello = new SOSPFPacket("127.0.0.1", (short) 8001, "192.168.1.1", "192.168.1.2");
+    hello.sospfType = SOSPFPacket.HELLO;
+
+    SOSPFPacket update = new SOSPFPacket("127.0.0.1", (short) 8001, "192.168.1.1", "192.168.1.2");
+    update.sospfType = SOSPFPacket.LSAUPDATE;
+    update.lsaArray = new Vector<LSA>();
+    for (int i = 0; i < lsaCount; i++) {
+      LSA lsa = new LSA();
+      lsa.linkStateID = "10.0." + (i / 256) + "." + (i % 256);
+      lsa.lsaSeqNumber = i;
+      for (int p = 0; p < 4; p++) {
+        LinkDescription ld = new LinkDescription();
+        ld.linkID = "10.1." + p + "." + (i % 256);
+        ld.portNum = p;
+        lsa.links.add(ld);
+      }
+      update.lsaArray.add(lsa);
+    }
+
+    System.out.println("packet\tformat\tbytes\tencode/s\tdecode/s");
+    compare("HELLO", hello, iterations);
+    compare("LSAUPDATE(" + lsaCount + ")", update, Math.max(1, iterations / lsaCount));
+  }
+
+  private static void compare(String name, SOSPFPacket packet, int iterations) throws Exception {
+    // binary: one frame per packet on a long lived stream
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream dataOut = new DataOutputStream(bytes);
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      PacketCodec.writeFrame(dataOut, packet);
+    }
+    long encode = System.nanoTime() - start;
+    byte[] binary = bytes.toByteArray();
+    DataInputStream dataIn = new DataInputStream(new ByteArrayInputStream(binary));
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      PacketCodec.readFrame(dataIn);
+    }
+    long decode = System.nanoTime() - start;
+    print(name, WireFormat.BINARY, binary.length / iterations, iterations, encode, decode);
+
+    // java: one object stream reset after every packet, as PacketStream does
+    bytes = new ByteArrayOutputStream();
+    ObjectOutputStream objOut = new ObjectOutputStream(bytes);
+    int header = bytes.size();
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      objOut.writeObject(packet);
+      objOut.reset();
+    }
+    objOut.flush();
+    encode = System.nanoTime() - start;
+    byte[] java = bytes.toByteArray();
+    ObjectInputStream objIn = new ObjectInputStream(new ByteArrayInputStream(java));
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      readObject(objIn);
+    }
+    decode = System.nanoTime() - start;
+    print(name, WireFormat.JAVA, (java.length - header) / iterations, iterations, encode, decode);
+  }
+
+  private static SOSPFPacket readObject(ObjectInputStream in) throws IOException {
+    try {
+      return (SOSPFPacket) in.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static void print(String name, WireFormat format, int size, int iterations, long encodeNanos, long decodeNanos) {
+    System.out.println(name + "\t" + format + "\t" + size + "\t"
+        + (long) (iterations * 1e9 / encodeNanos) + "\t" + (long) (iterations * 1e9 / decodeNanos));
+  }
+}
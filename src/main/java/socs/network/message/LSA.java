@@ -1,6 +1,7 @@
 package socs.network.message;
 
 import java.io.Serializable;
+import java.util.HashMap;
 import java.util.LinkedList;
 
 public class LSA implements Serializable {
@@ -11,10 +12,164 @@ public class LSA implements Serializable {
 
   public LinkedList<LinkDescription> links = new LinkedList<LinkDescription>();
 
+  //wall clock time (ms) the originator built this instance, and the links it crossed since, to
+  //trace how long a change takes to reach every router
+  public long originTime;
+  public int hops = 0;
+
+  //age (seconds) of the instance when it was originated or received, it keeps aging while it is
+  //held from installedAt (System.nanoTime() when installed in a database, local only). An instance
+  //reaching MaxAge is flushed from every database
+  public int age = 0;
+  public transient long installedAt = 0;
+
+  //OSPF's MaxAge and LSRefreshTime, in seconds
+  public static final int MAX_AGE = 3600;
+  public static final int REFRESH_TIME = 1800;
+  //the codec writes the age on 2 bytes
+  private static final int AGE_LIMIT = 0xffff;
+
+  //a delta LSA only carries the links added or changed since baseSeqNumber (in links) and the
+  //linkIDs removed since then, receivers holding the base instance rebuild the full LSA from it
+  public boolean delta = false;
+  public int baseSeqNumber;
+  public LinkedList<String> removedLinks = new LinkedList<String>();
+
+  //a summary LSA is originated by an area border router into one of its areas: its links are the
+  //routers it reaches outside of that area, with the cost from the border router. Its linkStateID
+  //is summaryID() of the border router, so it does not replace the router's own LSA
+  public boolean summary = false;
+
+  private static final String SUMMARY_SUFFIX = "/summary";
+
+  /**
+   * linkStateID of the summary LSA of the given border router
+   */
+  public static String summaryID(String router) {
+    return router + SUMMARY_SUFFIX;
+  }
+
+  /**
+   * border router originating the summary LSA with the given linkStateID
+   */
+  public static String summaryRouter(String linkStateID) {
+    return linkStateID.substring(0, linkStateID.length() - SUMMARY_SUFFIX.length());
+  }
+
+  /**
+   * delta turning base into next, or null if sending next in full is not larger
+   */
+  public static LSA delta(LSA base, LSA next) {
+    HashMap<String, LinkDescription> old = new HashMap<String, LinkDescription>();
+    for (LinkDescription ld : base.links) {
+      old.put(ld.linkID, ld);
+    }
+    LSA d = new LSA();
+    d.linkStateID = next.linkStateID;
+    d.lsaSeqNumber = next.lsaSeqNumber;
+    d.delta = true;
+    d.summary = next.summary;
+    d.baseSeqNumber = base.lsaSeqNumber;
+    d.originTime = next.originTime;
+    d.hops = next.hops;
+    d.age = next.age;
+    for (LinkDescription ld : next.links) {
+      if (!ld.equals(old.remove(ld.linkID))) {
+        d.links.add(ld);
+      }
+    }
+    d.removedLinks.addAll(old.keySet());
+    if (d.links.size() + d.removedLinks.size() >= next.links.size()) {
+      return null;
+    }
+    return d;
+  }
+
+  /**
+   * full LSA obtained by applying this delta to base, which must be the instance baseSeqNumber
+   */
+  public LSA applyTo(LSA base) {
+    LSA full = new LSA();
+    full.linkStateID = linkStateID;
+    full.lsaSeqNumber = lsaSeqNumber;
+    full.summary = summary;
+    full.originTime = originTime;
+    full.hops = hops;
+    full.age = age;
+    HashMap<String, LinkDescription> changed = new HashMap<String, LinkDescription>();
+    for (LinkDescription ld : links) {
+      changed.put(ld.linkID, ld);
+    }
+    for (LinkDescription ld : base.links) {
+      if (removedLinks.contains(ld.linkID)) {
+        continue;
+      }
+      LinkDescription replacement = changed.remove(ld.linkID);
+      full.links.add(replacement != null ? replacement : ld);
+    }
+    for (LinkDescription ld : links) {
+      if (changed.containsKey(ld.linkID)) {
+        full.links.add(ld);
+      }
+    }
+    return full;
+  }
+
+  /**
+   * current age in seconds, counting the time held since installation
+   */
+  public int ageNow() {
+    if (installedAt == 0) {
+      return age;
+    }
+    return (int) Math.min(AGE_LIMIT, age + (System.nanoTime() - installedAt) / 1000000000L);
+  }
+
+  /**
+   * this LSA as received from a neighbour, one hop further from its originator and a second older
+   * for the transmission (OSPF's InfTransDelay). A copy, as the instance may be shared with the
+   * sender; the link lists are shared too, they are never modified
+   */
+  public LSA nextHop() {
+    LSA next = copy();
+    next.hops = hops + 1;
+    next.age = Math.min(AGE_LIMIT, ageNow() + 1);
+    return next;
+  }
+
+  /**
+   * a copy of this instance at the given age, not installed anywhere
+   */
+  public LSA aged(int age) {
+    LSA next = copy();
+    next.age = Math.min(AGE_LIMIT, age);
+    return next;
+  }
+
+  private LSA copy() {
+    LSA next = new LSA();
+    next.linkStateID = linkStateID;
+    next.lsaSeqNumber = lsaSeqNumber;
+    next.links = links;
+    next.originTime = originTime;
+    next.hops = hops;
+    next.age = age;
+    next.delta = delta;
+    next.summary = summary;
+    next.baseSeqNumber = baseSeqNumber;
+    next.removedLinks = removedLinks;
+    return next;
+  }
+
+  // java serialization writes the current age, like the binary codec
+  private Object writeReplace() {
+    return installedAt == 0 ? this : aged(ageNow());
+  }
+
   @Override
   public String toString() {
     StringBuffer sb = new StringBuffer();
-    sb.append(linkStateID + ":").append(lsaSeqNumber + "\n");
+    sb.append(linkStateID + ":").append(lsaSeqNumber + " age " + ageNow() + "\n");
     for (LinkDescription ld : links) {
       sb.append(ld);
     }
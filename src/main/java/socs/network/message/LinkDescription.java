@@ -5,8 +5,23 @@ import java.io.Serializable;
 public class LinkDescription implements Serializable {
   public String linkID; // simulated IP of destination? 
   public int portNum; // Port number (0-3) of the router (next hop?)
+  public int cost = 1; // cost of the link towards linkID, as used by the shortest path computation
 
   public String toString() {
-    return linkID + ","  + portNum;
+    return linkID + ","  + portNum + "," + cost;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof LinkDescription)) {
+      return false;
+    }
+    LinkDescription ld = (LinkDescription) o;
+    return portNum == ld.portNum && cost == ld.cost && (linkID == null ? ld.linkID == null : linkID.equals(ld.linkID));
+  }
+
+  @Override
+  public int hashCode() {
+    return ((linkID == null ? 0 : linkID.hashCode()) * 31 + portNum) * 31 + cost;
   }
 }
@@ -0,0 +1,358 @@
+package socs.network.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * compact binary encoding of SOSPFPacket, used instead of java serialization on the wire.
+ * <p/>
+ * A frame is a 4 byte length followed by the packet:
+ * <pre>
+ * version:1 sospfType:2 flags:1 srcProcessIP srcProcessPort:2 srcIP dstIP [routerID] [neighborID]
+ * [timestamp:8 echoTimestamp:8 echoDelay:8 area:4] (HELLO only)
+ * [seq:4 flowID:4 ttl:1 hops:1 timestamp:8 payloadLength:4 payload] (DATA only)
+ * lsaCount:4 (-1 for null) then for each LSA: linkStateID lsaSeqNumber:4 originTime:8 hops:2 age:2
+ *   lsaFlags:1
+ *   [baseSeqNumber:4 removedCount:4 removed linkIDs] (delta LSAs only)
+ *   linkCount:4 then for each link: linkID portNum:4 cost:4
+ * </pre>
+ * Addresses are written as a tag byte followed by 4 bytes for dotted IPv4 strings, or a UTF-8
+ * string otherwise. routerID and neighborID are only written when they differ from srcIP and dstIP,
+ * the flags also carry the reply bit of DATA.
+ */
+public class PacketCodec {
+
+  public static final byte VERSION = 7;
+
+  // frames larger than this are rejected, a corrupted length would otherwise allocate gigabytes
+  public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+  private static final byte FLAG_ROUTER_ID = 1;
+  private static final byte FLAG_NEIGHBOR_ID = 2;
+  private static final byte FLAG_REPLY = 4;
+
+  private static final byte LSA_DELTA = 1;
+  private static final byte LSA_SUMMARY = 2;
+
+  private static final byte ADDR_NULL = 0;
+  private static final byte ADDR_IPV4 = 1;
+  private static final byte ADDR_STRING = 2;
+
+  /**
+   * write one length-prefixed frame
+   */
+  public static void writeFrame(DataOutput out, SOSPFPacket packet) throws IOException {
+    byte[] body = encode(packet);
+    out.writeInt(body.length);
+    out.write(body);
+  }
+
+  /**
+   * read one length-prefixed frame, blocking until it is complete
+   */
+  public static SOSPFPacket readFrame(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_FRAME) {
+      throw new IOException("Invalid frame length " + length);
+    }
+    byte[] body = new byte[length];
+    in.readFully(body);
+    return decode(body);
+  }
+
+  /**
+   * encode a packet without the frame length
+   */
+  public static byte[] encode(SOSPFPacket packet) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (packet.payload == null ? 0 : packet.payload.length));
+    DataOutputStream out = new DataOutputStream(bytes);
+    byte flags = 0;
+    if (packet.routerID != null && !packet.routerID.equals(packet.srcIP)) {
+      flags |= FLAG_ROUTER_ID;
+    }
+    if (packet.neighborID != null && !packet.neighborID.equals(packet.dstIP)) {
+      flags |= FLAG_NEIGHBOR_ID;
+    }
+    if (packet.reply) {
+      flags |= FLAG_REPLY;
+    }
+    out.writeByte(VERSION);
+    out.writeShort(packet.sospfType);
+    out.writeByte(flags);
+    writeAddress(out, packet.srcProcessIP);
+    out.writeShort(packet.srcProcessPort);
+    writeAddress(out, packet.srcIP);
+    writeAddress(out, packet.dstIP);
+    if ((flags & FLAG_ROUTER_ID) != 0) {
+      writeAddress(out, packet.routerID);
+    }
+    if ((flags & FLAG_NEIGHBOR_ID) != 0) {
+      writeAddress(out, packet.neighborID);
+    }
+    if (packet.sospfType == SOSPFPacket.HELLO) {
+      out.writeLong(packet.timestamp);
+      out.writeLong(packet.echoTimestamp);
+      out.writeLong(packet.echoDelay);
+      out.writeInt(packet.area);
+    }
+    if (packet.sospfType == SOSPFPacket.DATA) {
+      out.writeInt(packet.seq);
+      out.writeInt(packet.flowID);
+      out.writeByte(packet.ttl);
+      out.writeByte(Math.min(packet.hops, 0xff));
+      out.writeLong(packet.timestamp);
+      if (packet.payload == null) {
+        out.writeInt(0);
+      } else {
+        out.writeInt(packet.payload.length);
+        out.write(packet.payload);
+      }
+    }
+    if (packet.lsaArray == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(packet.lsaArray.size());
+      for (LSA lsa : packet.lsaArray) {
+        writeLSA(out, lsa);
+      }
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * decode a packet produced by encode()
+   */
+  public static SOSPFPacket decode(byte[] body) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    byte version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported wire version " + version);
+    }
+    SOSPFPacket packet = new SOSPFPacket();
+    packet.sospfType = in.readShort();
+    if (packet.sospfType < 0 || packet.sospfType > SOSPFPacket.MAX_TYPE) {
+      throw new IOException("Unknown sospfType " + packet.sospfType);
+    }
+    byte flags = in.readByte();
+    packet.srcProcessIP = readAddress(in);
+    packet.srcProcessPort = in.readShort();
+    packet.srcIP = readAddress(in);
+    packet.dstIP = readAddress(in);
+    packet.routerID = (flags & FLAG_ROUTER_ID) != 0 ? readAddress(in) : packet.srcIP;
+    packet.neighborID = (flags & FLAG_NEIGHBOR_ID) != 0 ? readAddress(in) : packet.dstIP;
+    if (packet.sospfType == SOSPFPacket.HELLO) {
+      packet.timestamp = in.readLong();
+      packet.echoTimestamp = in.readLong();
+      packet.echoDelay = in.readLong();
+      packet.area = in.readInt();
+    }
+    if (packet.sospfType == SOSPFPacket.DATA) {
+      packet.reply = (flags & FLAG_REPLY) != 0;
+      packet.seq = in.readInt();
+      packet.flowID = in.readInt();
+      packet.ttl = in.readUnsignedByte();
+      packet.hops = in.readUnsignedByte();
+      packet.timestamp = in.readLong();
+      int length = in.readInt();
+      if (length < 0 || length > body.length) {
+        throw new IOException("Invalid payload length " + length);
+      }
+      packet.payload = new byte[length];
+      in.readFully(packet.payload);
+    }
+    int count = in.readInt();
+    if (count >= 0) {
+      packet.lsaArray = new Vector<LSA>(Math.min(count, 1 << 16));
+      for (int i = 0; i < count; i++) {
+        packet.lsaArray.add(readLSA(in));
+      }
+    }
+    return packet;
+  }
+
+  /**
+   * encode a list of LSAs alone: lsaCount:4 then each LSA as in a packet
+   */
+  public static byte[] encodeLSAs(Collection<LSA> lsas) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 32 * lsas.size());
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(lsas.size());
+    for (LSA lsa : lsas) {
+      writeLSA(out, lsa);
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * decode LSAs produced by encodeLSAs() from the remaining bytes of the buffer, which are read in
+   * place (a memory-mapped file is not copied to the heap first)
+   */
+  public static List<LSA> decodeLSAs(ByteBuffer body) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferInputStream(body));
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("Invalid LSA count " + count);
+    }
+    ArrayList<LSA> lsas = new ArrayList<LSA>(Math.min(count, 1 << 16));
+    for (int i = 0; i < count; i++) {
+      lsas.add(readLSA(in));
+    }
+    return lsas;
+  }
+
+  private static void writeLSA(DataOutputStream out, LSA lsa) throws IOException {
+    writeAddress(out, lsa.linkStateID);
+    out.writeInt(lsa.lsaSeqNumber);
+    out.writeLong(lsa.originTime);
+    out.writeShort(Math.min(lsa.hops, 0xffff));
+    out.writeShort(lsa.ageNow());
+    out.writeByte((lsa.delta ? LSA_DELTA : 0) | (lsa.summary ? LSA_SUMMARY : 0));
+    if (lsa.delta) {
+      out.writeInt(lsa.baseSeqNumber);
+      out.writeInt(lsa.removedLinks.size());
+      for (String linkID : lsa.removedLinks) {
+        writeAddress(out, linkID);
+      }
+    }
+    out.writeInt(lsa.links.size());
+    for (LinkDescription ld : lsa.links) {
+      writeAddress(out, ld.linkID);
+      out.writeInt(ld.portNum);
+      out.writeInt(ld.cost);
+    }
+  }
+
+  private static LSA readLSA(DataInputStream in) throws IOException {
+    LSA lsa = new LSA();
+    lsa.linkStateID = readAddress(in);
+    lsa.lsaSeqNumber = in.readInt();
+    lsa.originTime = in.readLong();
+    lsa.hops = in.readUnsignedShort();
+    lsa.age = in.readUnsignedShort();
+    byte flags = in.readByte();
+    lsa.summary = (flags & LSA_SUMMARY) != 0;
+    if ((flags & LSA_DELTA) != 0) {
+      lsa.delta = true;
+      lsa.baseSeqNumber = in.readInt();
+      int removed = in.readInt();
+      for (int i = 0; i < removed; i++) {
+        lsa.removedLinks.add(readAddress(in));
+      }
+    }
+    int links = in.readInt();
+    for (int i = 0; i < links; i++) {
+      LinkDescription ld = new LinkDescription();
+      ld.linkID = readAddress(in);
+      ld.portNum = in.readInt();
+      ld.cost = in.readInt();
+      lsa.links.add(ld);
+    }
+    return lsa;
+  }
+
+  private static void writeAddress(DataOutputStream out, String address) throws IOException {
+    if (address == null) {
+      out.writeByte(ADDR_NULL);
+      return;
+    }
+    int ip = parseIPv4(address);
+    if (ip != -1 || address.equals("255.255.255.255")) {
+      out.writeByte(ADDR_IPV4);
+      out.writeInt(ip);
+      return;
+    }
+    byte[] utf = address.getBytes(StandardCharsets.UTF_8);
+    out.writeByte(ADDR_STRING);
+    out.writeShort(utf.length);
+    out.write(utf);
+  }
+
+  private static String readAddress(DataInputStream in) throws IOException {
+    byte tag = in.readByte();
+    if (tag == ADDR_NULL) {
+      return null;
+    } else if (tag == ADDR_IPV4) {
+      int ip = in.readInt();
+      return (ip >>> 24) + "." + ((ip >>> 16) & 0xff) + "." + ((ip >>> 8) & 0xff) + "." + (ip & 0xff);
+    } else if (tag == ADDR_STRING) {
+      byte[] utf = new byte[in.readUnsignedShort()];
+      in.readFully(utf);
+      return new String(utf, StandardCharsets.UTF_8);
+    }
+    throw new IOException("Unknown address tag " + tag);
+  }
+
+  /**
+   * value of a canonical dotted IPv4 address ("10.0.0.1", no leading zeros), or -1 if the string
+   * is anything else (255.255.255.255 also returns -1, callers check for it)
+   */
+  public static int parseIPv4(String s) {
+    int ip = 0;
+    int octets = 0;
+    int value = -1;
+    int digits = 0;
+    for (int i = 0; i <= s.length(); i++) {
+      char c = i < s.length() ? s.charAt(i) : '.';
+      if (c == '.') {
+        if (digits == 0 || value > 255 || (digits > 1 && s.charAt(i - digits) == '0')) {
+          return -1;
+        }
+        ip = (ip << 8) | value;
+        octets++;
+        value = -1;
+        digits = 0;
+      } else if (c >= '0' && c <= '9') {
+        value = (value == -1 ? 0 : value * 10) + (c - '0');
+        if (++digits > 3) {
+          return -1;
+        }
+      } else {
+        return -1;
+      }
+    }
+    return octets == 4 ? ip : -1;
+  }
+
+  // reads a ByteBuffer from its position, a read past its limit is the end of the stream
+  private static class BufferInputStream extends InputStream {
+    private ByteBuffer buffer;
+
+    BufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, buffer.remaining());
+      buffer.get(b, off, len);
+      return len;
+    }
+
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
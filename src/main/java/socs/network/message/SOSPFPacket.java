@@ -6,6 +6,20 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public class SOSPFPacket implements Serializable {
 
+  public static final short ATTACH_REQUEST = 0;
+  public static final short ACCEPT_ATTACH = 1;
+  public static final short REJECT_ATTACH = 2;
+  public static final short HELLO = 3;
+  public static final short ACCEPT_HELLO = 4;
+  public static final short QUIT = 5;
+  public static final short LSAUPDATE = 6;
+  public static final short LSREQUEST = 7;
+  public static final short DBDESCRIPTION = 8;
+  public static final short LSACK = 9;
+  public static final short DATA = 10;
+  // highest sospfType in use, anything above is rejected by the codec
+  public static final short MAX_TYPE = DATA;
+
   //for inter-process communication
   public String srcProcessIP;
   public short srcProcessPort;
@@ -23,6 +37,10 @@ public class SOSPFPacket implements Serializable {
    * sosfType = 4: ACCEPT HELLO
    * sosfType = 5: QUIT
    * sosfType = 6: LSAUPDATE
+   * sosfType = 7: LSREQUEST (lsaArray lists the linkStateIDs whose full LSA is wanted)
+   * sosfType = 8: DBDESCRIPTION (lsaArray holds the linkStateID and lsaSeqNumber of every LSA, no links)
+   * sosfType = 9: LSACK (linkStateID and lsaSeqNumber of the LSAs of an LSAUPDATE, no links)
+   * sosfType = 10: DATA (payload from srcIP to dstIP, forwarded hop by hop)
    */
   public short sospfType; 
   public String routerID;
@@ -32,7 +50,27 @@ public class SOSPFPacket implements Serializable {
   //simulated IP address
   public String neighborID; //neighbor's simulated IP address
 
-  //used by LSAUPDATE
+  //used by HELLO to measure the round-trip time of the link: the sender's System.nanoTime(), the
+  //last timestamp received from the neighbour and how long it was held before being echoed
+  public long timestamp;
+  public long echoTimestamp;
+  public long echoDelay;
+
+  //used by HELLO: area the sender puts the link in, both ends have to agree
+  public int area;
+
+  //used by DATA: seq numbers the packets of a send command and flowID picks their equal-cost next
+  //hops, ttl is decremented and hops incremented at every hop, timestamp is the sender's
+  //System.nanoTime(). The destination echoes every packet back without payload, with reply set,
+  //the same seq, flowID and timestamp, and hops counting on from the forward path
+  public int seq;
+  public int flowID;
+  public int ttl;
+  public int hops;
+  public boolean reply;
+  public byte[] payload;
+
+  //used by LSAUPDATE, LSREQUEST, DBDESCRIPTION and LSACK
   public Vector<LSA> lsaArray = null;
 
   public SOSPFPacket() {}
@@ -0,0 +1,18 @@
+package socs.network.message;
+
+/**
+ * encoding used for SOSPFPackets on a link
+ */
+public enum WireFormat {
+  // versioned, length-prefixed frames written by PacketCodec
+  BINARY,
+  // java.io object serialization, kept for compatibility
+  JAVA;
+
+  /**
+   * parse the value of socs.network.router.wireFormat ("binary" or "java")
+   */
+  public static WireFormat parse(String value) {
+    return WireFormat.valueOf(value.trim().toUpperCase());
+  }
+}
@@ -0,0 +1,226 @@
+package socs.network.node;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * the route from every router of a topology to every other, for network-wide analysis and to
+ * check the forwarding tables of all routers at once.
+ * <p/>
+ * One Dijkstra per source, split across a ForkJoinPool; every run reads the same immutable
+ * TopologyGraph and writes its own row, so nothing is shared but the graph. The results are two
+ * columns of nodeCount x nodeCount entries, row = source: the cost (ShortestPathTree.INFINITY when
+ * unreachable) and the equal-cost next hops as a bit mask over the links of the source, bit j for
+ * the j-th neighbour of its row in the graph. A mask is as many longs as the largest degree needs,
+ * so a hub with hundreds of links gets every next hop recorded.
+ * <p/>
+ * Dump layout, one section per topology: magic:4 area:4 nodeCount:4 edgeCount:4 maskWords:4, the
+ * router ids (length:2 then UTF-8), the graph offsets (nodeCount + 1 ints) and neighbours
+ * (edgeCount ints), then the cost column (ints) and the next hop column (maskWords longs per pair),
+ * all big endian.
+ */
+public class AllPairsRoutes {
+
+  private static final int MAGIC = 0x41505250; // "APRP"
+  // sources computed by one task, below this splitting costs more than it spreads
+  private static final int SOURCES_PER_TASK = 8;
+  // largest table computed, 16M pairs take 192 MB with one mask word each
+  static final long MAX_PAIRS = 1L << 24;
+
+  public final TopologyGraph graph;
+  public final int nodeCount;
+  public final int[] cost;
+  // longs per next hop mask, pair (s, d) has nextHops[(s * nodeCount + d) * maskWords ...]
+  public final int maskWords;
+  public final long[] nextHops;
+
+  // statistics
+  long elapsedNanos = 0;
+  int parallelism = 0;
+
+  private AllPairsRoutes(TopologyGraph graph, int maskWords) {
+    this.graph = graph;
+    this.nodeCount = graph.nodeCount;
+    this.maskWords = maskWords;
+    this.cost = new int[nodeCount * nodeCount];
+    this.nextHops = new long[nodeCount * nodeCount * maskWords];
+  }
+
+  // words of a mask with one bit per link of the busiest router
+  private static int maskWords(TopologyGraph graph) {
+    int degree = 0;
+    for (int u = 0; u < graph.nodeCount; u++) {
+      degree = Math.max(degree, graph.offsets[u + 1] - graph.offsets[u]);
+    }
+    return Math.max(1, (degree + 63) >>> 6);
+  }
+
+  /**
+   * routes between every pair of routers of the graph, computed on the given pool
+   */
+  public static AllPairsRoutes compute(TopologyGraph graph, ForkJoinPool pool) {
+    int words = maskWords(graph);
+    if ((long) graph.nodeCount * graph.nodeCount * words > MAX_PAIRS) {
+      throw new IllegalArgumentException(graph.nodeCount + " routers with masks of " + words
+          + " words, more than " + MAX_PAIRS + " pairs");
+    }
+    long start = System.nanoTime();
+    AllPairsRoutes routes = new AllPairsRoutes(graph, words);
+    pool.invoke(routes.new Sources(0, graph.nodeCount));
+    routes.elapsedNanos = System.nanoTime() - start;
+    routes.parallelism = pool.getParallelism();
+    return routes;
+  }
+
+  private class Sources extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+
+    Sources(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute() {
+      if (to - from > SOURCES_PER_TASK) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new Sources(from, mid), new Sources(mid, to));
+        return;
+      }
+      SpfCalculator calculator = new SpfCalculator();
+      for (int source = from; source < to; source++) {
+        row(calculator, source);
+      }
+    }
+  }
+
+  // one Dijkstra, then the next hops spread from the source along the settle order: every edge
+  // x -> y on a shortest path gives y the next hops of x (or the link itself when x is the source)
+  private void row(SpfCalculator calculator, int source) {
+    int settled = calculator.run(graph, source);
+    int base = source * nodeCount;
+    int[] dist = calculator.dist;
+    System.arraycopy(dist, 0, cost, base, nodeCount);
+    int[] offsets = graph.offsets;
+    int[] neighbours = graph.neighbours;
+    int[] weights = graph.weights;
+    int w = maskWords;
+    for (int i = 0; i < settled; i++) {
+      int x = calculator.order[i];
+      int from = (base + x) * w;
+      for (int e = offsets[x]; e < offsets[x + 1]; e++) {
+        int y = neighbours[e];
+        if (dist[x] + weights[e] != dist[y]) {
+          continue;
+        }
+        int to = (base + y) * w;
+        if (x == source) {
+          int link = e - offsets[source];
+          nextHops[to + (link >>> 6)] |= 1L << link;
+        } else {
+          for (int k = 0; k < w; k++) {
+            nextHops[to + k] |= nextHops[from + k];
+          }
+        }
+      }
+    }
+  }
+
+  public int cost(int source, int destination) {
+    return cost[source * nodeCount + destination];
+  }
+
+  /**
+   * equal-cost next hops from source to destination, in the order of their ids
+   */
+  public List<String> nextHops(int source, int destination) {
+    ArrayList<String> hops = new ArrayList<String>();
+    int at = (source * nodeCount + destination) * maskWords;
+    for (int k = 0; k < maskWords; k++) {
+      long mask = nextHops[at + k];
+      for (int e = graph.offsets[source] + 64 * k; mask != 0; e++, mask >>>= 1) {
+        if ((mask & 1) != 0) {
+          hops.add(graph.ids.name(graph.neighbours[e]));
+        }
+      }
+    }
+    hops.sort(null);
+    return hops;
+  }
+
+  /**
+   * append the table to the file as one section, see the class comment
+   */
+  public void write(FileChannel out, int area) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(20);
+    header.putInt(MAGIC).putInt(area).putInt(nodeCount).putInt(graph.edgeCount()).putInt(maskWords).flip();
+    writeFully(out, header);
+    for (int i = 0; i < nodeCount; i++) {
+      byte[] name = graph.ids.name(i).getBytes(StandardCharsets.UTF_8);
+      ByteBuffer b = ByteBuffer.allocate(2 + name.length);
+      b.putShort((short) name.length).put(name).flip();
+      writeFully(out, b);
+    }
+    ByteBuffer ints = ByteBuffer.allocate(4 * (nodeCount + 1 + graph.edgeCount()));
+    ints.asIntBuffer().put(graph.offsets, 0, nodeCount + 1).put(graph.neighbours);
+    writeFully(out, ints);
+    // the columns go out in slices, so a large table needs no second copy
+    int rows = Math.max(1, (1 << 16) / Math.max(1, nodeCount));
+    for (int from = 0; from < nodeCount; from += rows) {
+      int length = (Math.min(nodeCount, from + rows) - from) * nodeCount;
+      ByteBuffer slice = ByteBuffer.allocate(4 * length);
+      slice.asIntBuffer().put(cost, from * nodeCount, length);
+      writeFully(out, slice);
+    }
+    for (int from = 0; from < nodeCount; from += rows) {
+      int length = (Math.min(nodeCount, from + rows) - from) * nodeCount * maskWords;
+      ByteBuffer slice = ByteBuffer.allocate(8 * length);
+      slice.asLongBuffer().put(nextHops, from * nodeCount * maskWords, length);
+      writeFully(out, slice);
+    }
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer b) throws IOException {
+    while (b.hasRemaining()) {
+      out.write(b);
+    }
+  }
+
+  /**
+   * number of pairs with a route, the mean and largest cost and how many have several next hops
+   */
+  public String summary() {
+    long reachable = 0;
+    long total = 0;
+    int max = 0;
+    long multipath = 0;
+    for (int i = 0; i < cost.length; i++) {
+      if (cost[i] == ShortestPathTree.INFINITY || cost[i] == 0) {
+        continue;
+      }
+      reachable++;
+      total += cost[i];
+      max = Math.max(max, cost[i]);
+      int paths = 0;
+      for (int k = 0; k < maskWords; k++) {
+        paths += Long.bitCount(nextHops[i * maskWords + k]);
+      }
+      if (paths > 1) {
+        multipath++;
+      }
+    }
+    long pairs = (long) nodeCount * (nodeCount - 1);
+    return nodeCount + " routers, " + reachable + " of " + pairs + " pairs reachable, cost mean "
+        + String.format("%.1f", reachable == 0 ? 0.0 : (double) total / reachable) + " max " + max + ", "
+        + multipath + " with equal-cost paths; computed in " + String.format("%.1f", elapsedNanos / 1e6)
+        + " ms on " + parallelism + " threads";
+  }
+}
@@ -0,0 +1,359 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * the OSPF-style areas of a router.
+ * <p/>
+ * Every link is in one area and the router keeps one link state database per area it has links
+ * in, so a router inside an area holds the topology of its area only and reaches the rest of the
+ * network through the summary LSAs of the area border routers (routers with adjacencies in more
+ * than one area). Intra-area routes are preferred over inter-area ones whatever their cost.
+ * <p/>
+ * As in OSPF, area 0 is the backbone: a border router attached to it advertises into the backbone
+ * the routers of its other areas only, and into its other areas those plus the inter-area routes
+ * learned from backbone summaries, the only summaries it routes on. So summaries never loop
+ * between areas. A border router without a backbone adjacency routes on the summaries of all its
+ * areas and advertises intra-area routes only.
+ */
+public class Areas {
+
+  public static final int BACKBONE = 0;
+
+  private Router router;
+  private String self;
+
+  // area of the links not configured otherwise, its database is Router.lsd
+  final int home;
+  private ConcurrentHashMap<Integer, LinkStateDatabase> databases = new ConcurrentHashMap<Integer, LinkStateDatabase>();
+
+  // routes to routers of other areas, rebuilt when a database changed
+  private HashMap<String, ForwardingTable.Route> interArea = new HashMap<String, ForwardingTable.Route>();
+  private long interAreaStamp = -1;
+
+  // data plane view of every route, rebuilt when the routes changed
+  private volatile Fib fib = null;
+  private volatile long fibStamp = -1;
+
+  public Areas(Router router, int home) {
+    this.router = router;
+    this.self = router.rd.simulatedIPAddress;
+    this.home = home;
+    get(home);
+  }
+
+  /**
+   * database of the given area, created empty (but for our own LSA) on first use
+   */
+  public LinkStateDatabase get(int area) {
+    LinkStateDatabase db = databases.get(area);
+    if (db != null) {
+      return db;
+    }
+    return databases.computeIfAbsent(area, a -> {
+      LinkStateDatabase created = new LinkStateDatabase(router.rd);
+      created.area = a;
+      LinkStateDatabase first = databases.get(home);
+      created.verifySpf = first != null && first.verifySpf;
+      if (first != null) {
+        created.setAging(first.maxAgeSeconds, first.refreshSeconds, first.flushHoldMillis);
+        created.spfThrottle = first.spfThrottle.copy();
+        created.timers = first.timers;
+        created.afterHeldSync = first.afterHeldSync;
+      }
+      return created;
+    });
+  }
+
+  public LinkStateDatabase home() {
+    return databases.get(home);
+  }
+
+  /**
+   * every area we hold a database of, in order
+   */
+  public Set<Integer> ids() {
+    return new TreeSet<Integer>(databases.keySet());
+  }
+
+  public Collection<LinkStateDatabase> all() {
+    return databases.values();
+  }
+
+  // areas whose summaries our inter-area routes are taken from
+  private Set<Integer> transitAreas(Set<Integer> adjacent) {
+    if (adjacent.size() > 1 && adjacent.contains(BACKBONE)) {
+      return Collections.singleton(BACKBONE);
+    }
+    return ids();
+  }
+
+  // sum of the database versions, moves whenever any database changed
+  private long stamp() {
+    long stamp = databases.size();
+    for (LinkStateDatabase db : databases.values()) {
+      stamp += db.snapshot().version;
+    }
+    return stamp;
+  }
+
+  // moves whenever any database or the routes computed from it changed
+  private long routesStamp() {
+    long stamp = stamp();
+    for (LinkStateDatabase db : databases.values()) {
+      stamp += db.routesVersion;
+    }
+    return stamp;
+  }
+
+  /**
+   * forwarding information base holding the route to every router we know of, in any area or
+   * behind a border router
+   */
+  public Fib fib() {
+    // pending changes first, so the lookups of the build do not move the stamp
+    for (LinkStateDatabase db : databases.values()) {
+      db.syncRoutes();
+    }
+    long stamp = routesStamp();
+    Fib current = fib;
+    if (current != null && fibStamp == stamp) {
+      return current;
+    }
+    synchronized (this) {
+      if (fib != null && fibStamp == stamp) {
+        return fib;
+      }
+      TreeSet<String> destinations = new TreeSet<String>();
+      for (LinkStateDatabase db : databases.values()) {
+        for (LSA lsa : db.snapshot().lsas.values()) {
+          if (db.flushed(lsa)) {
+            continue;
+          }
+          if (!lsa.summary) {
+            destinations.add(lsa.linkStateID);
+            continue;
+          }
+          for (LinkDescription ld : lsa.links) {
+            destinations.add(ld.linkID);
+          }
+        }
+      }
+      destinations.remove(self);
+      Fib built = new Fib();
+      for (String destination : destinations) {
+        ForwardingTable.Route r = route(destination);
+        if (r.reachable() && !r.nextHops.isEmpty()) {
+          built.add(destination, r);
+        }
+      }
+      fibStamp = stamp;
+      fib = built;
+      return built;
+    }
+  }
+
+  /**
+   * best route to the destination: intra-area in any of our areas, else through the summaries
+   */
+  public ForwardingTable.Route route(String destinationIP) {
+    LinkStateDatabase db = reaching(destinationIP);
+    if (db != null) {
+      return db.route(destinationIP);
+    }
+    ForwardingTable.Route r = interArea().get(destinationIP);
+    return r != null ? r : home().route(destinationIP);
+  }
+
+  // database with the cheapest intra-area route to the given router, null if none reaches it
+  private LinkStateDatabase reaching(String routerIP) {
+    LinkStateDatabase best = null;
+    int bestCost = ShortestPathTree.INFINITY;
+    for (LinkStateDatabase db : databases.values()) {
+      ForwardingTable.Route r = db.route(routerIP);
+      if (r.reachable() && r.cost < bestCost) {
+        best = db;
+        bestCost = r.cost;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * shortest path to the destination as output by detect, null if there is none. The path to a
+   * router of another area ends with the border router, then "=> destination"
+   */
+  public String describePath(String destinationIP) {
+    LinkStateDatabase db = reaching(destinationIP);
+    if (db != null) {
+      return db.getShortestPath(destinationIP);
+    }
+    ForwardingTable.Route r = interArea().get(destinationIP);
+    if (r == null) {
+      return null;
+    }
+    return String.join(" -> ", r.path.subList(0, r.path.size() - 1)) + " => " + destinationIP + interAreaNote(r);
+  }
+
+  /**
+   * every shortest path to the destination, at most max of them, as output by "detect all"; to a
+   * router of another area, the paths to the border router it is reached through
+   */
+  public String describePaths(String destinationIP, int max) {
+    LinkStateDatabase db = reaching(destinationIP);
+    if (db != null) {
+      return db.getEqualCostPaths(destinationIP, max);
+    }
+    ForwardingTable.Route r = interArea().get(destinationIP);
+    LinkStateDatabase toBorder = r == null ? null : reaching(r.border);
+    String paths = toBorder == null ? null : toBorder.getEqualCostPaths(r.border, max);
+    if (paths == null) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String line : paths.split("\n")) {
+      sb.append(line.startsWith("...") ? line : line + " => " + destinationIP).append("\n");
+    }
+    return sb.append(interAreaNote(r).trim()).toString();
+  }
+
+  private static String interAreaNote(ForwardingTable.Route r) {
+    return " (inter-area via border router " + r.border + ", cost " + r.cost + ")";
+  }
+
+  /**
+   * area whose database holds the LSA of the given router, -1 if none does
+   */
+  public int areaOf(String routerIP) {
+    for (int area : ids()) {
+      if (databases.get(area).getLSA(routerIP) != null) {
+        return area;
+      }
+    }
+    return -1;
+  }
+
+  private synchronized Map<String, ForwardingTable.Route> interArea() {
+    long stamp = stamp();
+    if (stamp == interAreaStamp) {
+      return interArea;
+    }
+    HashMap<String, ForwardingTable.Route> routes = new HashMap<String, ForwardingTable.Route>();
+    for (int area : transitAreas(router.adjacentAreas())) {
+      LinkStateDatabase db = databases.get(area);
+      for (LSA lsa : db.snapshot().lsas.values()) {
+        if (!lsa.summary || db.flushed(lsa)) {
+          continue;
+        }
+        String border = LSA.summaryRouter(lsa.linkStateID);
+        ForwardingTable.Route toBorder = border.equals(self) ? null : db.route(border);
+        if (toBorder == null || !toBorder.reachable()) {
+          continue;
+        }
+        for (LinkDescription ld : lsa.links) {
+          if (ld.linkID.equals(self)) {
+            continue;
+          }
+          int cost = (int) Math.min(ShortestPathTree.INFINITY - 1, (long) toBorder.cost + ld.cost);
+          routes.merge(ld.linkID, through(ld.linkID, toBorder, cost, border), Areas::better);
+        }
+      }
+    }
+    interArea = routes;
+    interAreaStamp = stamp;
+    return interArea;
+  }
+
+  // route to a router of another area, along the intra-area path to a border router
+  private static ForwardingTable.Route through(String destination, ForwardingTable.Route toBorder, int cost, String border) {
+    ArrayList<String> path = new ArrayList<String>(toBorder.path);
+    path.add(destination);
+    ArrayList<String> hops = new ArrayList<String>(toBorder.nextHops);
+    return new ForwardingTable.Route(destination, path, hops, cost, border);
+  }
+
+  // the cheaper route, or both next hop sets when they cost the same
+  private static ForwardingTable.Route better(ForwardingTable.Route a, ForwardingTable.Route b) {
+    if (a.cost != b.cost) {
+      return a.cost < b.cost ? a : b;
+    }
+    TreeSet<String> hops = new TreeSet<String>(a.nextHops);
+    hops.addAll(b.nextHops);
+    ForwardingTable.Route first = a.border.compareTo(b.border) <= 0 ? a : b;
+    return new ForwardingTable.Route(first.destination, first.path, new ArrayList<String>(hops), first.cost, first.border);
+  }
+
+  /**
+   * routers to advertise in our summary LSA into the given area, with their cost; empty unless we
+   * are a border router
+   */
+  public List<LinkDescription> summarize(int into, Set<Integer> adjacent) {
+    ArrayList<LinkDescription> links = new ArrayList<LinkDescription>();
+    if (adjacent.size() < 2 || !adjacent.contains(into)) {
+      return links;
+    }
+    HashSet<String> inside = new HashSet<String>(get(into).snapshot().lsas.keySet());
+    TreeMap<String, Integer> costs = new TreeMap<String, Integer>();
+    for (int area : adjacent) {
+      if (area == into) {
+        continue;
+      }
+      LinkStateDatabase db = databases.get(area);
+      for (LSA lsa : db.snapshot().lsas.values()) {
+        if (lsa.summary || lsa.linkStateID.equals(self) || inside.contains(lsa.linkStateID)) {
+          continue;
+        }
+        ForwardingTable.Route r = db.route(lsa.linkStateID);
+        if (r.reachable()) {
+          costs.merge(lsa.linkStateID, r.cost, Math::min);
+        }
+      }
+    }
+    if (into != BACKBONE && adjacent.contains(BACKBONE)) {
+      for (ForwardingTable.Route r : interArea().values()) {
+        if (!inside.contains(r.destination)) {
+          costs.putIfAbsent(r.destination, r.cost);
+        }
+      }
+    }
+    for (Map.Entry<String, Integer> e : costs.entrySet()) {
+      LinkDescription ld = new LinkDescription();
+      ld.linkID = e.getKey();
+      ld.portNum = -1;
+      ld.cost = e.getValue();
+      links.add(ld);
+    }
+    return links;
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int area : ids()) {
+      int routers = 0;
+      int summaries = 0;
+      for (LSA lsa : databases.get(area).snapshot().lsas.values()) {
+        if (lsa.summary) {
+          summaries++;
+        } else {
+          routers++;
+        }
+      }
+      sb.append(sb.length() == 0 ? "" : ", ").append("area ").append(area).append(" (").append(routers)
+          .append(" routers, ").append(summaries).append(" summaries)");
+    }
+    return sb.toString();
+  }
+}
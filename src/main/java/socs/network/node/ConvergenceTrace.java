@@ -0,0 +1,110 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.util.Histogram;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * how long the LSAs of other routers took to reach this router and to be reflected in its routes.
+ * <p/>
+ * Latencies are measured from the originTime stamped by the originator, so across machines they
+ * include the clock offset between the two (clamped at 0). An LSA learned from a database
+ * description is as old as its last change, not a fresh propagation.
+ */
+public class ConvergenceTrace {
+
+  /**
+   * the latest instance of one router's LSA installed here
+   */
+  public static class Arrival {
+    public final int lsaSeqNumber;
+    public final long originTime;
+    public final int hops;
+    public final long arrivedAt;
+    // 0 until the shortest path tree was brought up to date with this instance
+    volatile long routedAt = 0;
+
+    Arrival(LSA lsa, long arrivedAt) {
+      lsaSeqNumber = lsa.lsaSeqNumber;
+      originTime = lsa.originTime;
+      hops = lsa.hops;
+      this.arrivedAt = arrivedAt;
+    }
+
+    public long arrivalMillis() {
+      return Math.max(0, arrivedAt - originTime);
+    }
+
+    /**
+     * time from origination to the routes using this instance, -1 while they do not yet
+     */
+    public long routedMillis() {
+      long routed = routedAt;
+      return routed == 0 ? -1 : Math.max(0, routed - originTime);
+    }
+  }
+
+  private String self;
+  private ConcurrentHashMap<String, Arrival> arrivals = new ConcurrentHashMap<String, Arrival>();
+
+  // over every LSA of another router installed here
+  Histogram arrivalMillis = new Histogram();
+  Histogram routedMillis = new Histogram();
+  Histogram hops = new Histogram();
+
+  ConvergenceTrace(String self) {
+    this.self = self;
+  }
+
+  /**
+   * an LSA was installed, called before the change is visible to the route computation
+   */
+  void installed(LSA lsa) {
+    if (lsa.linkStateID.equals(self) || lsa.originTime == 0) {
+      return;
+    }
+    Arrival a = new Arrival(lsa, System.currentTimeMillis());
+    arrivals.put(lsa.linkStateID, a);
+    arrivalMillis.record(a.arrivalMillis());
+    hops.record(a.hops);
+  }
+
+  /**
+   * the shortest path tree now reflects the given instance
+   */
+  void routed(LSA lsa) {
+    Arrival a = arrivals.get(lsa.linkStateID);
+    if (a == null || a.lsaSeqNumber != lsa.lsaSeqNumber || a.routedAt != 0) {
+      return;
+    }
+    a.routedAt = System.currentTimeMillis();
+    routedMillis.record(a.routedMillis());
+  }
+
+  /**
+   * latest arrival of the LSA of the given router, or null
+   */
+  public Arrival get(String linkStateID) {
+    return arrivals.get(linkStateID);
+  }
+
+  public String describe(String linkStateID) {
+    Arrival a = arrivals.get(linkStateID);
+    if (a == null) {
+      return "No LSA of " + linkStateID + " received";
+    }
+    long routed = a.routedMillis();
+    return linkStateID + " seq " + a.lsaSeqNumber + " originated at "
+        + new SimpleDateFormat("HH:mm:ss.SSS").format(new Date(a.originTime)) + ", arrived after "
+        + a.arrivalMillis() + " ms over " + a.hops + " hops, "
+        + (routed == -1 ? "routes not updated yet" : "routes updated after " + routed + " ms");
+  }
+
+  public String toString() {
+    return "Arrival: " + arrivalMillis.summary(1, "ms") + "\nRoutes updated: " + routedMillis.summary(1, "ms")
+        + "\nHops: " + hops.summary(1, "hops");
+  }
+}
@@ -0,0 +1,118 @@
+package socs.network.node;
+
+import socs.network.message.SOSPFPacket;
+import socs.network.util.Histogram;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * one run of the send command: DATA packets sent to a destination, and the echoes it sends back.
+ * <p/>
+ * Echoes carry our send time and the hop count of the whole round trip, so the latency per hop is
+ * the round-trip time over the hops, whatever clocks the routers on the way have.
+ */
+public class DataProbe {
+
+  final String destination;
+  final int count;
+  final int size;
+
+  private long startedAt = System.nanoTime();
+  private long sentAt = 0;
+  private int sent = 0;
+  private int notSent = 0;
+
+  private BitSet replied = new BitSet();
+  private int replies = 0;
+  private long lastReplyAt = 0;
+  private Histogram rtt = new Histogram();
+  private Histogram hops = new Histogram();
+  private Histogram perHop = new Histogram();
+
+  public DataProbe(String destination, int count, int size) {
+    this.destination = destination;
+    this.count = count;
+    this.size = size;
+  }
+
+  /**
+   * one packet was handed to the first link, or dropped before
+   */
+  public synchronized void sent(boolean queued) {
+    if (queued) {
+      sent++;
+    } else {
+      notSent++;
+    }
+  }
+
+  /**
+   * every packet has been sent
+   */
+  public synchronized void done() {
+    sentAt = System.nanoTime();
+  }
+
+  /**
+   * an echo came back, duplicates and echoes of other runs are ignored
+   */
+  public synchronized void replied(SOSPFPacket echo) {
+    if (echo.seq < 0 || echo.seq >= count || replied.get(echo.seq) || echo.timestamp - startedAt < 0) {
+      return;
+    }
+    replied.set(echo.seq);
+    long now = System.nanoTime();
+    long rttNanos = now - echo.timestamp;
+    rtt.record(rttNanos);
+    hops.record(echo.hops);
+    perHop.record(rttNanos / Math.max(1, echo.hops));
+    replies++;
+    lastReplyAt = now;
+    if (replies == sent) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * wait for the echo of every packet sent, at most the given time after the last one was sent
+   */
+  public synchronized void await(long timeoutMillis) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (replies < sent) {
+      long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (left <= 0) {
+        return;
+      }
+      wait(left);
+    }
+  }
+
+  private static String rate(long packets, long nanos) {
+    return String.format("%.0f", packets * 1e9 / Math.max(1, nanos));
+  }
+
+  public synchronized String report() {
+    long sending = sentAt - startedAt;
+    StringBuilder sb = new StringBuilder();
+    sb.append("Sent ").append(sent).append(" packets of ").append(size).append(" bytes to ").append(destination)
+        .append(" in ").append(String.format("%.1f", sending / 1e6)).append(" ms: ").append(rate(sent, sending))
+        .append(" packets/s, ").append(String.format("%.1f", (double) sent * size / Math.max(1, sending) * 1e9 / (1 << 20)))
+        .append(" MB/s");
+    if (notSent > 0) {
+      sb.append(" (").append(notSent).append(" not sent)");
+    }
+    sb.append("\nEchoed ").append(replies).append(" of ").append(sent);
+    if (sent > 0) {
+      sb.append(" (").append(String.format("%.1f", 100.0 * (sent - replies) / sent)).append("% lost)");
+    }
+    if (replies == 0) {
+      return sb.toString();
+    }
+    sb.append(", delivered at ").append(rate(replies, lastReplyAt - startedAt)).append(" packets/s")
+        .append("\nRound trip ").append(rtt.summary(1000, "us"))
+        .append("\nHops there and back: mean ").append(String.format("%.1f", hops.mean()))
+        .append("\nPer hop ").append(perHop.summary(1000, "us"));
+    return sb.toString();
+  }
+}
@@ -0,0 +1,70 @@
+package socs.network.node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * the LSAs of a database ordered by the time something is due for them: another router's LSA
+ * reaches MaxAge, our own has to be refreshed, a flushed one has been held long enough.
+ * <p/>
+ * Replacing or removing an LSA replaces or drops its entry, so there is exactly one entry per LSA
+ * and finding what is due only looks at the head, instead of scanning the whole store.
+ */
+public class ExpiryIndex {
+
+  private static class Entry implements Comparable<Entry> {
+    final long dueAt;
+    final String linkStateID;
+
+    Entry(long dueAt, String linkStateID) {
+      this.dueAt = dueAt;
+      this.linkStateID = linkStateID;
+    }
+
+    public int compareTo(Entry o) {
+      int c = Long.compare(dueAt, o.dueAt);
+      return c != 0 ? c : linkStateID.compareTo(o.linkStateID);
+    }
+  }
+
+  private TreeSet<Entry> byTime = new TreeSet<Entry>();
+  private HashMap<String, Entry> byID = new HashMap<String, Entry>();
+
+  /**
+   * the LSA with the given linkStateID is due at the given System.nanoTime()
+   */
+  public synchronized void put(String linkStateID, long dueAt) {
+    Entry e = new Entry(dueAt, linkStateID);
+    Entry old = byID.put(linkStateID, e);
+    if (old != null) {
+      byTime.remove(old);
+    }
+    byTime.add(e);
+  }
+
+  public synchronized void remove(String linkStateID) {
+    Entry old = byID.remove(linkStateID);
+    if (old != null) {
+      byTime.remove(old);
+    }
+  }
+
+  /**
+   * take the linkStateIDs due by the given System.nanoTime(), earliest first
+   */
+  public synchronized List<String> due(long now) {
+    ArrayList<String> due = new ArrayList<String>();
+    while (!byTime.isEmpty() && byTime.first().dueAt - now <= 0) {
+      Entry e = byTime.pollFirst();
+      byID.remove(e.linkStateID);
+      due.add(e.linkStateID);
+    }
+    return due;
+  }
+
+  public synchronized int size() {
+    return byID.size();
+  }
+}
@@ -0,0 +1,116 @@
+package socs.network.node;
+
+import socs.network.message.PacketCodec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * forwarding information base of the data plane: longest-prefix match of 32-bit simulated
+ * addresses over a binary trie.
+ * <p/>
+ * The trie is three int arrays indexed by node (child for bit 0, child for bit 1, route index), not
+ * one object per node, so a table of thousands of routes is a handful of arrays and a lookup
+ * follows at most 32 indices. A FIB is filled once and then only read, the router builds a new
+ * one when its routes change. Destinations that are not dotted IPv4 addresses are kept in a map.
+ */
+public class Fib {
+
+  private static final int NONE = -1;
+
+  private int[] zero = new int[64];
+  private int[] one = new int[64];
+  private int[] entry = new int[64];
+  private int nodes = 0;
+  private ArrayList<ForwardingTable.Route> routes = new ArrayList<ForwardingTable.Route>();
+  private HashMap<String, ForwardingTable.Route> others = new HashMap<String, ForwardingTable.Route>();
+
+  public Fib() {
+    newNode();
+  }
+
+  private int newNode() {
+    if (nodes == zero.length) {
+      zero = Arrays.copyOf(zero, 2 * nodes);
+      one = Arrays.copyOf(one, 2 * nodes);
+      entry = Arrays.copyOf(entry, 2 * nodes);
+    }
+    zero[nodes] = NONE;
+    one[nodes] = NONE;
+    entry[nodes] = NONE;
+    return nodes++;
+  }
+
+  /**
+   * route the addresses starting with the first length bits of prefix
+   */
+  public void add(int prefix, int length, ForwardingTable.Route route) {
+    int node = 0;
+    for (int bit = 0; bit < length; bit++) {
+      boolean set = (prefix << bit) < 0;
+      int next = set ? one[node] : zero[node];
+      if (next == NONE) {
+        next = newNode();
+        if (set) {
+          one[node] = next;
+        } else {
+          zero[node] = next;
+        }
+      }
+      node = next;
+    }
+    if (entry[node] == NONE) {
+      entry[node] = routes.size();
+      routes.add(route);
+    } else {
+      routes.set(entry[node], route);
+    }
+  }
+
+  /**
+   * host route to the given destination, an IPv4 address or any other router id
+   */
+  public void add(String destination, ForwardingTable.Route route) {
+    int ip = PacketCodec.parseIPv4(destination);
+    if (ip != -1 || destination.equals("255.255.255.255")) {
+      add(ip, 32, route);
+    } else {
+      others.put(destination, route);
+    }
+  }
+
+  /**
+   * route of the longest prefix matching the address, null if none does
+   */
+  public ForwardingTable.Route lookup(int address) {
+    int node = 0;
+    int best = entry[0];
+    for (int bit = 0; bit < 32; bit++) {
+      node = (address << bit) < 0 ? one[node] : zero[node];
+      if (node == NONE) {
+        break;
+      }
+      if (entry[node] != NONE) {
+        best = entry[node];
+      }
+    }
+    return best == NONE ? null : routes.get(best);
+  }
+
+  public ForwardingTable.Route lookup(String destination) {
+    int ip = PacketCodec.parseIPv4(destination);
+    if (ip != -1 || destination.equals("255.255.255.255")) {
+      return lookup(ip);
+    }
+    return others.get(destination);
+  }
+
+  public int size() {
+    return routes.size() + others.size();
+  }
+
+  public String toString() {
+    return size() + " routes, " + nodes + " trie nodes (" + (12L * zero.length) / 1024 + " KB)";
+  }
+}
@@ -0,0 +1,173 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.message.SOSPFPacket;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Vector;
+
+/**
+ * LSAs waiting to be flooded over one link.
+ * <p/>
+ * Instead of one LSAUPDATE per LSA, the queue collects LSAs for a pacing window and sends them as a
+ * single LSAUPDATE. Only the newest instance of each linkStateID is kept, so a router whose LSA
+ * changes several times within the window is sent once. As in the database, the MaxAge copy of an
+ * instance is newer than the instance itself, so a flush is never lost to the live LSA it flushes.
+ * <p/>
+ * An LSA may be queued together with its delta against the previous instance, the delta is sent
+ * instead of the full LSA unless the entry was coalesced (the neighbour then misses the base of the
+ * newest delta, so it gets the full LSA).
+ * <p/>
+ * The window flush runs on the timers, and without pacing add() flushes on the thread that floods,
+ * usually a receive thread: neither waits for room in the outbound queue. An LSAUPDATE the queue
+ * drops is recorded in the retransmit list like any other and sent again.
+ */
+public class FloodQueue {
+
+  private LinkService service;
+  private TimingWheel timers;
+  private long pacingMillis;
+  private int maxAgeSeconds;
+
+  // linkStateID => newest pending instance, in arrival order
+  private LinkedHashMap<String, LSA> pending = new LinkedHashMap<String, LSA>();
+  // linkStateID => delta to send instead of the pending full instance
+  private HashMap<String, LSA> deltas = new HashMap<String, LSA>();
+  private boolean flushScheduled = false;
+
+  // statistics
+  long lsasQueued = 0;
+  long lsasCoalesced = 0;
+  long batchesSent = 0;
+  long lsasSent = 0;
+  int maxBatch = 0;
+  long deltasSent = 0;
+
+  public FloodQueue(LinkService service, TimingWheel timers, long pacingMillis, int maxAgeSeconds) {
+    this.service = service;
+    this.timers = timers;
+    this.pacingMillis = pacingMillis;
+    this.maxAgeSeconds = maxAgeSeconds;
+  }
+
+  // same order as LinkStateDatabase.newer(): a higher sequence number, or the MaxAge copy of the
+  // same instance
+  private boolean replaces(LSA lsa, LSA queued) {
+    return lsa.lsaSeqNumber > queued.lsaSeqNumber
+        || (lsa.lsaSeqNumber == queued.lsaSeqNumber && lsa.age >= maxAgeSeconds && queued.age < maxAgeSeconds);
+  }
+
+  /**
+   * queue an LSA, it is sent with everything else queued within the pacing window
+   */
+  public void add(LSA lsa) {
+    add(lsa, null);
+  }
+
+  /**
+   * queue an LSA, sending the given delta (may be null) in its place if nothing else is queued for
+   * the same router
+   */
+  public void add(LSA lsa, LSA delta) {
+    boolean flushNow = false;
+    synchronized (this) {
+      lsasQueued++;
+      LSA queued = pending.get(lsa.linkStateID);
+      if (queued != null) {
+        lsasCoalesced++;
+        if (!replaces(lsa, queued)) {
+          return;
+        }
+        delta = null;
+      }
+      pending.put(lsa.linkStateID, lsa);
+      if (delta != null) {
+        deltas.put(lsa.linkStateID, delta);
+      } else {
+        deltas.remove(lsa.linkStateID);
+      }
+      if (pacingMillis <= 0) {
+        flushNow = true;
+      } else if (!flushScheduled) {
+        flushScheduled = true;
+        timers.schedule(new Runnable() {
+          public void run() {
+            flush();
+          }
+        }, pacingMillis);
+      }
+    }
+    if (flushNow) {
+      flush();
+    }
+  }
+
+  /**
+   * send everything pending as one LSAUPDATE, dropped if the outbound queue is full
+   */
+  public void flush() {
+    flush(false);
+  }
+
+  /**
+   * send everything pending as one LSAUPDATE
+   *
+   * @param mayWait true to wait for room in the outbound queue, only for the terminal
+   */
+  public void flush(boolean mayWait) {
+    Vector<LSA> batch;
+    synchronized (this) {
+      flushScheduled = false;
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = new Vector<LSA>(pending.size());
+      for (LSA lsa : pending.values()) {
+        service.retransmit.sent(lsa);
+        LSA delta = deltas.get(lsa.linkStateID);
+        if (delta != null) {
+          deltasSent++;
+          batch.add(delta);
+        } else {
+          batch.add(lsa);
+        }
+      }
+      pending.clear();
+      deltas.clear();
+      batchesSent++;
+      lsasSent += batch.size();
+      maxBatch = Math.max(maxBatch, batch.size());
+    }
+    Link link = service.link;
+    if (link == null) {
+      return;
+    }
+    SOSPFPacket packet = new SOSPFPacket(link.sourceRouter.processIPAddress, link.sourceRouter.processPortNumber,
+        link.sourceRouter.simulatedIPAddress, link.targetRouter.simulatedIPAddress);
+    packet.sospfType = SOSPFPacket.LSAUPDATE;
+    packet.lsaArray = batch;
+    if (mayWait) {
+      service.send(packet);
+    } else {
+      service.offer(packet);
+    }
+  }
+
+  public synchronized int depth() {
+    return pending.size();
+  }
+
+  /**
+   * LSAUPDATE packets saved by batching, compared to one packet per queued LSA
+   */
+  public synchronized long packetsSaved() {
+    return lsasQueued - pending.size() - batchesSent;
+  }
+
+  public synchronized String toString() {
+    return "queued " + lsasQueued + ", coalesced " + lsasCoalesced + ", batches " + batchesSent
+        + ", avg batch " + String.format("%.1f", batchesSent == 0 ? 0.0 : (double) lsasSent / batchesSent) + ", max batch " + maxBatch
+        + ", packets saved " + packetsSaved() + ", deltas " + deltasSent + ", depth " + pending.size();
+  }
+}
@@ -0,0 +1,165 @@
+package socs.network.node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * per-router forwarding table: destination => next hops, full path and cost.
+ * <p/>
+ * A destination reached over several equal-cost paths has one next hop per distinct first hop, and
+ * flows are spread over them by rendezvous hashing: a flow stays on its next hop as long as that
+ * one remains, and only the flows of a next hop that goes away move.
+ * <p/>
+ * Entries are filled lazily from the shortest path tree on the first lookup and stay valid until
+ * the database changes in a way that moves the route, i.e. an LSA is added, removed or replaced by
+ * one with a different lsaSeqNumber and the tree update touches the destination.
+ */
+public class ForwardingTable {
+
+  /**
+   * route to one destination, unreachable destinations are cached too (with a null path)
+   */
+  public static class Route {
+    public final String destination;
+    // next hop of the path held by the tree
+    public final String nextHop;
+    // every equal-cost next hop, sorted
+    public final List<String> nextHops;
+    public final List<String> path;
+    public final int cost;
+    // border router the path leaves the area at for a router of another area, null within the area
+    public final String border;
+    private final int[] hopHashes;
+
+    Route(String destination, List<String> path, List<String> nextHops, int cost) {
+      this(destination, path, nextHops, cost, null);
+    }
+
+    Route(String destination, List<String> path, List<String> nextHops, int cost, String border) {
+      this.destination = destination;
+      this.border = border;
+      this.path = path == null ? null : Collections.unmodifiableList(path);
+      this.nextHop = path == null || path.size() < 2 ? null : path.get(1);
+      this.nextHops = Collections.unmodifiableList(nextHops);
+      this.cost = cost;
+      hopHashes = new int[nextHops.size()];
+      for (int i = 0; i < hopHashes.length; i++) {
+        hopHashes[i] = nextHops.get(i).hashCode();
+      }
+    }
+
+    public boolean reachable() {
+      return path != null;
+    }
+
+    /**
+     * next hop of the flow with the given hash, see flowHash(); null if there is none
+     */
+    public String nextHop(int flowHash) {
+      if (hopHashes.length < 2) {
+        return nextHop;
+      }
+      int best = 0;
+      int bestScore = mix(flowHash ^ hopHashes[0]);
+      for (int i = 1; i < hopHashes.length; i++) {
+        int score = mix(flowHash ^ hopHashes[i]);
+        if (score > bestScore) {
+          best = i;
+          bestScore = score;
+        }
+      }
+      return nextHops.get(best);
+    }
+  }
+
+  /**
+   * hash identifying a flow, every packet of a flow takes the same next hop
+   */
+  public static int flowHash(String sourceIP, String destinationIP, int flowID) {
+    return mix(mix(sourceIP.hashCode()) * 31 + destinationIP.hashCode()) ^ mix(flowID);
+  }
+
+  // murmur3 finalizer, so hashes differing in a few bits score independently
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  private HashMap<String, Route> entries = new HashMap<String, Route>();
+  private ShortestPathTree spt;
+  private RouterIds ids;
+
+  // statistics
+  long hits = 0;
+  long misses = 0;
+  long invalidations = 0;
+
+  public ForwardingTable(RouterIds ids, ShortestPathTree spt) {
+    this.ids = ids;
+    this.spt = spt;
+  }
+
+  /**
+   * cached route to the destination, or null on a miss. Does not touch the tree.
+   */
+  public synchronized Route cached(String destinationIP) {
+    Route r = entries.get(destinationIP);
+    if (r != null) {
+      hits++;
+    }
+    return r;
+  }
+
+  /**
+   * route to the destination, computed from the shortest path tree on a miss. The caller must
+   * keep the tree from changing meanwhile.
+   */
+  public synchronized Route lookup(String destinationIP) {
+    Route r = entries.get(destinationIP);
+    if (r != null) {
+      hits++;
+      return r;
+    }
+    misses++;
+    ArrayList<String> path = spt.pathTo(destinationIP);
+    r = new Route(destinationIP, path, spt.nextHopsTo(destinationIP),
+        path == null ? ShortestPathTree.INFINITY : spt.distanceTo(destinationIP));
+    entries.put(destinationIP, r);
+    return r;
+  }
+
+  /**
+   * drop the entries whose routes moved during the last update of the shortest path tree
+   */
+  public synchronized void invalidate() {
+    if (spt.allChanged) {
+      invalidateAll();
+      return;
+    }
+    for (int i = 0; i < spt.changedCount; i++) {
+      if (entries.remove(ids.name(spt.changed[i])) != null) {
+        invalidations++;
+      }
+    }
+  }
+
+  public synchronized void invalidateAll() {
+    invalidations += entries.size();
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized String toString() {
+    return "forwarding table: " + entries.size() + " entries, " + hits + " hits, " + misses + " misses, "
+        + invalidations + " invalidations";
+  }
+}
@@ -1,7 +1,5 @@
 package socs.network.node;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
@@ -11,39 +9,27 @@ public class Link {
   public RouterDescription sourceRouter;
   public RouterDescription targetRouter;
   public Socket socket;
-  public ObjectInputStream in;
-  public ObjectOutputStream out;
+  public PacketStream stream;
 
-  public Link(RouterDescription r1, RouterDescription r2, Socket socket, ObjectInputStream in, ObjectOutputStream out) {
+  public Link(RouterDescription r1, RouterDescription r2, Socket socket, PacketStream stream) {
     this.sourceRouter = r1;
     this.targetRouter = r2;
     this.socket = socket;
-    this.in = in;
-    this.out = out;
+    this.stream = stream;
   }
 
+  // the router descriptions are left in place, threads still holding the link may read them
   public void destroy() {
-    this.sourceRouter = null;
-    this.targetRouter = null;
-    if (this.in != null) {
+    if (this.stream != null) {
       try {
-        this.in.close();
-      } catch (IOException e) {
-        System.out.println("Failed to in.close() in Link");
-        e.printStackTrace();
-      }
-      this.in = null;
-    }
-    if (this.out != null) {
-      try {
-        this.out.close();
+        this.stream.close();
       } catch (SocketException e) {
-        System.out.println("Connection severed, in Link.out.close()");
+        System.out.println("Connection severed, in Link.stream.close()");
       } catch (IOException e) {
-        System.out.println("Failed to out.close() in Link");
+        System.out.println("Failed to stream.close() in Link");
         e.printStackTrace();
       }
-      this.out = null;
+      this.stream = null;
     }
     if (this.socket != null) {
       try {
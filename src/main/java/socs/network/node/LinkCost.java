@@ -0,0 +1,90 @@
+package socs.network.node;
+
+/**
+ * cost of one link as advertised in our LSA.
+ * <p/>
+ * A static cost comes from the attach/connect command or the configuration. In dynamic mode the
+ * cost follows the round-trip time measured with the HELLO timestamps: one cost unit per unitNanos
+ * of smoothed RTT. Every change of the advertised cost floods a new LSA, so the RTT is smoothed
+ * and the cost only moves once the smoothed value is off by more than the hysteresis fraction
+ * (plus half a unit) of the advertised cost.
+ */
+public class LinkCost {
+
+  // the codec carries any cost, the SPF clamps what it reads to this so sums stay far from overflowing
+  public static final int MAX_COST = 0xffff;
+
+  // samples taken before the first dynamic cost is advertised
+  private static final int WARMUP_SAMPLES = 4;
+
+  private boolean dynamic;
+  private long unitNanos;
+  private double hysteresis;
+
+  private volatile int cost;
+  private long smoothedNanos = 0;
+  private long samples = 0;
+
+  // statistics
+  long changes = 0;
+
+  public LinkCost(int cost, boolean dynamic, long unitNanos, double hysteresis) {
+    this.cost = clamp(cost);
+    this.dynamic = dynamic;
+    this.unitNanos = Math.max(1, unitNanos);
+    this.hysteresis = hysteresis;
+  }
+
+  private static int clamp(long cost) {
+    return (int) Math.max(1, Math.min(MAX_COST, cost));
+  }
+
+  public int get() {
+    return cost;
+  }
+
+  public boolean dynamic() {
+    return dynamic;
+  }
+
+  /**
+   * a static cost for this link, which stops following the RTT
+   */
+  public synchronized void setStatic(int cost) {
+    dynamic = false;
+    this.cost = clamp(cost);
+  }
+
+  /**
+   * one RTT measurement
+   *
+   * @return true if the advertised cost changed
+   */
+  public synchronized boolean sample(long rttNanos) {
+    if (!dynamic || rttNanos < 0) {
+      return false;
+    }
+    smoothedNanos = samples == 0 ? rttNanos : smoothedNanos + (rttNanos - smoothedNanos) / 8;
+    samples++;
+    if (samples < WARMUP_SAMPLES) {
+      return false;
+    }
+    // the band is half a unit wider than the hysteresis, so a value between two costs sticks
+    double units = (double) smoothedNanos / unitNanos;
+    int wanted = clamp(Math.round(units));
+    if (wanted == cost || (samples > WARMUP_SAMPLES && Math.abs(units - cost) <= 0.5 + hysteresis * cost)) {
+      return false;
+    }
+    cost = wanted;
+    changes++;
+    return true;
+  }
+
+  public synchronized String toString() {
+    if (!dynamic) {
+      return "cost " + cost;
+    }
+    return "cost " + cost + " (rtt " + String.format("%.3f", smoothedNanos / 1e6) + " ms over " + samples + " samples, "
+        + changes + " changes)";
+  }
+}
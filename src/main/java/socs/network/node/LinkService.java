@@ -1,9 +1,7 @@
 package socs.network.node;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.EOFException;
-import java.net.Socket;
 import java.net.SocketException;
+import java.util.HashMap;
 
 import socs.network.message.SOSPFPacket;
 
@@ -12,14 +10,95 @@ public class LinkService {
 
     public Thread linkServiceThread;
 
-    public LinkService(Link link) {
+    // router owning this link, told when the adjacency comes up or goes down
+    Router router;
+
+    // LSAs waiting to be flooded to the neighbour
+    FloodQueue floodQueue;
+
+    // LSAs flooded to the neighbour and not acknowledged yet
+    RetransmitList retransmit;
+
+    // cost of the link advertised in our LSA
+    LinkCost cost;
+
+    // area of the link, the neighbour has to put it in the same one
+    int area;
+    private boolean areaMismatch = false;
+
+    // last HELLO timestamp of the neighbour and when it arrived, echoed in our next HELLO
+    private long peerTimestamp = 0;
+    private long peerTimestampAt = 0;
+
+    // packets waiting to be written to the link
+    OutboundQueue outbound;
+
+    // port table of the router and our port in it, set by PortTable.put
+    PortTable ports;
+    int port = -1;
+
+    // linkStateID => sequence number we asked the neighbour for while LOADING, only touched by
+    // the thread handling the packets of this link
+    HashMap<String, Integer> requested = new HashMap<String, Integer>();
+
+    // System.nanoTime() of the last packet received from the neighbour, for the dead interval
+    volatile long lastHeard = System.nanoTime();
+
+    public LinkService(Router router, Link link) {
+        this.router = router;
         this.link = link;
+        this.floodQueue = new FloodQueue(this, router.timers, router.floodPacingMillis, router.lsd.maxAgeSeconds);
+        this.retransmit = new RetransmitList(this, router.timers, router.retransmitIntervalMillis);
+        this.cost = router.newLinkCost(link.targetRouter.simulatedIPAddress);
+        this.area = router.areaOf(link.targetRouter.simulatedIPAddress);
+        this.outbound = new OutboundQueue(this, router.outboundCapacity, router.outboundPolicy, link.stream.blocking());
     }
 
+    /**
+     * queue a packet for the writer of the link, never blocks on the socket
+     *
+     * @return false if the packet was dropped because the queue is full or the link closed
+     */
     public boolean send(SOSPFPacket packet) {
+        return outbound.send(packet);
+    }
+
+    /**
+     * queue a packet, dropping it rather than waiting when the queue is full: for the timers and the
+     * receive threads, which must never stall on a slow link
+     *
+     * @return false if the packet was dropped or the link closed
+     */
+    public boolean offer(SOSPFPacket packet) {
+        return outbound.offer(packet);
+    }
+
+    // the stream takes more packets now, see PacketStream.ready()
+    boolean ready() {
+        Link l = link;
+        return l == null || l.stream.ready();
+    }
+
+    // the calling thread may wait for room in the outbound queue, see PacketStream.mayWait()
+    boolean mayWait() {
+        Link l = link;
+        return l == null || l.stream.mayWait();
+    }
+
+    // called by the writer of the outbound queue only
+    boolean write(SOSPFPacket packet) {
         boolean ret = false;
+        Link l = link;
+        if (l == null) {
+          return false;
+        }
+        if (packet.sospfType == SOSPFPacket.HELLO) {
+          stamp(packet);
+        }
         try {
-          link.out.writeObject(packet);
+          l.stream.send(packet);
+          router.metrics.sent(port, packet, l.stream.lastSentBytes);
+          ret = true;
         } catch (SocketException e) {
           System.out.println("Connection severed, in LinkService.send()");
         } catch (Exception e) {
@@ -29,15 +108,72 @@ public class LinkService {
         return ret;
     }
 
-    public SOSPFPacket receive() {
+    /**
+     * link state database of the area of the link
+     */
+    LinkStateDatabase lsd() {
+      return router.areas.get(area);
+    }
+
+    // timestamps of a HELLO, taken when it is written so queueing does not count in the RTT
+    private synchronized void stamp(SOSPFPacket hello) {
+      long now = System.nanoTime();
+      hello.area = area;
+      hello.timestamp = now;
+      if (peerTimestamp != 0) {
+        hello.echoTimestamp = peerTimestamp;
+        hello.echoDelay = now - peerTimestampAt;
+        peerTimestamp = 0;
+      }
+    }
+
+    // a HELLO arrived: keep its timestamp to echo, and measure the RTT if it echoes one of ours
+    private void helloReceived(SOSPFPacket hello) {
+      long now = System.nanoTime();
+      synchronized (this) {
+        if (hello.timestamp != 0) {
+          peerTimestamp = hello.timestamp;
+          peerTimestampAt = now;
+        }
+      }
+      if (hello.echoTimestamp != 0 && cost.sample(now - hello.echoTimestamp - hello.echoDelay)) {
+        router.onCostChange(this);
+      }
+    }
+
+    /**
+     * progress of the database synchronization with the neighbour
+     */
+    void setStatus(RouterStatus status) {
+      Link l = link;
+      if (l != null) {
+        l.targetRouter.status = status;
+        l.sourceRouter.status = status;
+      }
+    }
+
+    /**
+     * next packet of the link, null if one could not be read
+     *
+     * @throws EOFException once the link is closed, by the neighbour or by another thread (dead
+     *                      interval, disconnect)
+     */
+    public SOSPFPacket receive() throws EOFException {
+        Link l = link;
+        if (l == null) {
+          throw new EOFException("Link closed");
+        }
         SOSPFPacket incomingPacket = null;
         try {
-          incomingPacket = (SOSPFPacket) link.in.readObject();
-        } catch (SocketException e) {
-          return null;
+          incomingPacket = l.stream.receive();
         } catch (EOFException e) {
-          return null;
+          throw e;
+        } catch (SocketException e) {
+          throw new EOFException(e.getMessage());
         } catch (Exception e) {
+          if (link == null) {
+            throw new EOFException("Link closed");
+          }
           System.out.println("Something went wrong when reading incoming packet");
           e.printStackTrace();
         }
@@ -46,20 +182,39 @@ public class LinkService {
 
     public void closeConnection() {
       // The thread is blocked on the receive() method, so we need to close the connection
-      if (this.link != null) {
-        this.link.destroy();
-        this.link = null;
+      boolean wasUp = false;
+      synchronized (this) {
+        if (this.link != null) {
+          wasUp = RouterStatus.adjacent(this.link.targetRouter.status);
+          this.outbound.close();
+          this.link.destroy();
+          this.link = null;
+        }
+      }
+      // Give the port back
+      if (this.ports != null) {
+        this.ports.release(this.port, this);
+      }
+      // The adjacency is gone, our LSA has to say so
+      if (wasUp) {
+        router.onLinkDown(this);
       }
     }
 
-    // Start thread on the link service
+    // Start thread on the link service, unless the stream delivers packets by itself
     public void startThread() {
+      if (link.stream.deliverTo(this)) {
+        return;
+      }
       LinkServiceThread service = new LinkServiceThread();
       this.linkServiceThread = new Thread(service);
       this.linkServiceThread.start();
     }
     // Stop
     public void stopThread() {
+      if (this.linkServiceThread == null) {
+        return;
+      }
       this.linkServiceThread.interrupt();
       try {
         this.linkServiceThread.join();
@@ -70,54 +225,96 @@ public class LinkService {
       }
     }
 
+    /**
+     * HELLO/QUIT state machine of the link, called for every incoming packet either by the
+     * LinkServiceThread or by the event loop of a non-blocking transport
+     *
+     * @return false once the link has been closed
+     */
+    public boolean handlePacket(SOSPFPacket incomingPacket) {
+      if (link == null) {
+        return false;
+      }
+      lastHeard = System.nanoTime();
+      router.metrics.received(port, incomingPacket, link.stream.lastReceivedBytes);
+      if(incomingPacket.sospfType == 3) {
+        if (incomingPacket.area != area) {
+          // an adjacency across two areas would merge their databases, ignore the neighbour
+          if (!areaMismatch) {
+            areaMismatch = true;
+            System.out.print("\nHELLO ERROR: " + incomingPacket.srcIP + " puts the link in area " + incomingPacket.area
+                + ", we put it in area " + area + ";\n>> ");
+          }
+          return true;
+        }
+        helloReceived(incomingPacket);
+        // print status for debugging
+        // System.out.println("Status of " + link.sourceRouter.simulatedIPAddress + ": " + link.sourceRouter.status);
+        if(link.targetRouter.status == null) {
+          // Inform user that the router has received a HELLO
+          System.out.println("\nReceived HELLO from " + incomingPacket.srcIP);
+          // Set the router to INIT
+          link.targetRouter.status = RouterStatus.INIT;
+          link.sourceRouter.status = RouterStatus.INIT;
+          // Inform user that the router is now in INIT
+          System.out.println("Set " + incomingPacket.srcIP + " STATE to INIT");
+          // Send a HELLO back
+          SOSPFPacket helloPacket = new SOSPFPacket(link.sourceRouter.processIPAddress, link.sourceRouter.processPortNumber, link.sourceRouter.simulatedIPAddress, incomingPacket.srcIP);
+          helloPacket.sospfType = 3;
+          send(helloPacket);
+        } else if (link.targetRouter.status == RouterStatus.INIT) {
+          // Inform user that the router has received a HELLO
+          System.out.println("\nReceived HELLO from " + incomingPacket.srcIP);
+          // Set router to TWO_WAY
+          link.targetRouter.status = RouterStatus.TWO_WAY;
+          link.sourceRouter.status = RouterStatus.TWO_WAY;
+          // Inform user that the router is now in TWO_WAY
+          System.out.print("Set " + incomingPacket.srcIP + " STATE to TWO_WAY\n>> ");
+          // Send HELLO back
+          SOSPFPacket helloPacket = new SOSPFPacket(link.sourceRouter.processIPAddress, link.sourceRouter.processPortNumber, link.sourceRouter.simulatedIPAddress, incomingPacket.srcIP);
+          helloPacket.sospfType = 3;
+          send(helloPacket);
+          // The adjacency is up: announce it and synchronize the databases
+          router.onLinkUp(this);
+        } else if (RouterStatus.adjacent(link.targetRouter.status)) {
+          // Should we inform the user that the router is already in TWO_WAY?
+        }
+      } else if (incomingPacket.sospfType == SOSPFPacket.LSAUPDATE) {
+        router.receiveLSAUpdate(this, incomingPacket);
+      } else if (incomingPacket.sospfType == SOSPFPacket.LSREQUEST) {
+        router.receiveLSRequest(this, incomingPacket);
+      } else if (incomingPacket.sospfType == SOSPFPacket.DBDESCRIPTION) {
+        router.receiveDatabaseDescription(this, incomingPacket);
+      } else if (incomingPacket.sospfType == SOSPFPacket.LSACK) {
+        router.receiveLSAck(this, incomingPacket);
+      } else if (incomingPacket.sospfType == SOSPFPacket.DATA) {
+        router.receiveData(this, incomingPacket);
+      } else if (incomingPacket.sospfType == 5) {
+        // Inform user that the router is quitting
+        System.out.print("\nReceived QUIT from " + incomingPacket.srcIP + ". Closing connection.\n>> ");
+        // Close the link ourselves
+        closeConnection();
+        return false;
+      } else {
+        // We closed the connection, print for debugging
+        System.out.println("Connection severed");
+      }
+      return true;
+    }
+
     class LinkServiceThread implements Runnable {
       public void run() {
         while (!Thread.currentThread().isInterrupted() && link != null) {
-          SOSPFPacket incomingPacket = receive();
-          if (incomingPacket != null) {
-            if(incomingPacket.sospfType == 3) {
-              // print status for debugging
-              // System.out.println("Status of " + link.sourceRouter.simulatedIPAddress + ": " + link.sourceRouter.status);
-              if(link.targetRouter.status == null) {
-                // Inform user that the router has received a HELLO
-                System.out.println("\nReceived HELLO from " + incomingPacket.srcIP);
-                // Set the router to INIT
-                link.targetRouter.status = RouterStatus.INIT;
-                link.sourceRouter.status = RouterStatus.INIT;
-                // Inform user that the router is now in INIT
-                System.out.println("Set " + incomingPacket.srcIP + " STATE to INIT");
-                // Send a HELLO back
-                SOSPFPacket helloPacket = new SOSPFPacket(link.sourceRouter.processIPAddress, link.sourceRouter.processPortNumber, link.sourceRouter.simulatedIPAddress, incomingPacket.srcIP);
-                helloPacket.sospfType = 3;
-                send(helloPacket);
-              } else if (link.targetRouter.status == RouterStatus.INIT) {
-                // Inform user that the router has received a HELLO
-                System.out.println("\nReceived HELLO from " + incomingPacket.srcIP);
-                // Set router to TWO_WAY
-                link.targetRouter.status = RouterStatus.TWO_WAY;
-                link.sourceRouter.status = RouterStatus.TWO_WAY;
-                // Inform user that the router is now in TWO_WAY
-                System.out.print("Set " + incomingPacket.srcIP + " STATE to TWO_WAY\n>> ");
-                // Send HELLO back
-                SOSPFPacket helloPacket = new SOSPFPacket(link.sourceRouter.processIPAddress, link.sourceRouter.processPortNumber, link.sourceRouter.simulatedIPAddress, incomingPacket.srcIP);
-                helloPacket.sospfType = 3;
-                send(helloPacket);
-              } else if (link.targetRouter.status == RouterStatus.TWO_WAY) {
-                // Should we inform the user that the router is already in TWO_WAY?
-              }
-            } else if (incomingPacket.sospfType == 5) {
-              // Inform user that the router is quitting
-              System.out.print("\nReceived QUIT from " + incomingPacket.srcIP + ". Closing connection.\n>> ");
-              // The thread has to close itself
-              closeConnection();
-              return;
-              // Close the thread itself
-            } else {
-              // We closed the connection, print for debugging
-              System.out.println("Connection severed");
-            }
-          } else {
-            // Received a null packet, should we close the connection?
+          SOSPFPacket incomingPacket;
+          try {
+            incomingPacket = receive();
+          } catch (EOFException e) {
+            // The link is closed, whatever state the adjacency reached
+            break;
+          }
+          if (incomingPacket != null && !handlePacket(incomingPacket)) {
+            // The thread has to close itself
+            return;
           }
         }
         closeConnection();
@@ -2,28 +2,517 @@ package socs.network.node;
 
 import socs.network.message.LSA;
 import socs.network.message.LinkDescription;
+import socs.network.util.Histogram;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * the link state database of a router in one area: the LSAs of the routers of the area and the
+ * summary LSAs of its border routers, which the shortest path tree leaves out.
+ * <p/>
+ * Writers (the link service threads applying LSAs) lock only the stripe of the linkStateID they
+ * update, so LSAs from different routers are applied concurrently. Readers never lock: they work on
+ * an immutable Snapshot of the store, and the shortest path tree is brought up to date lazily, by
+ * the first route lookup after a change that the SPF throttle lets through; lookups it holds back
+ * get the previous routes and the tree is synced on the timers once the throttle allows it.
+ * Installed LSAs must not be modified afterwards.
+ * <p/>
+ * LSAs age from the time they are installed. The expiry index tells the router when our own LSAs
+ * are due for a refresh and when those of other routers reach MaxAge; a MaxAge instance is left
+ * out of the routes and kept for flushHoldMillis, so the flush reaches every neighbour, then
+ * removed.
+ */
 public class LinkStateDatabase {
 
+  private static final int STRIPES = 16;
+  // optimistic snapshot attempts before the reader takes every stripe lock
+  private static final int SNAPSHOT_RETRIES = 8;
+
+  /**
+   * immutable, consistent view of the store at one version
+   */
+  public static class Snapshot {
+    public final long version;
+    public final Map<String, LSA> lsas;
+
+    Snapshot(long version, Map<String, LSA> lsas) {
+      this.version = version;
+      this.lsas = Collections.unmodifiableMap(lsas);
+    }
+  }
+
   //linkID => LSAInstance
-  HashMap<String, LSA> _store = new HashMap<String, LSA>();
+  ConcurrentHashMap<String, LSA> _store = new ConcurrentHashMap<String, LSA>();
+
+  private Object[] stripes = new Object[STRIPES];
+
+  // a write is counted as started before it touches _store and finished after, a reader that saw
+  // no write start while copying the store got a consistent copy
+  private AtomicLong writesStarted = new AtomicLong();
+  private AtomicLong writesFinished = new AtomicLong();
+  private volatile Snapshot snapshot = new Snapshot(0, new HashMap<String, LSA>());
 
   private RouterDescription rd = null;
 
+  // area this database describes, see Areas
+  int area = Areas.BACKBONE;
+
+  // aging, the same maxAgeSeconds on every router
+  int maxAgeSeconds = LSA.MAX_AGE;
+  int refreshSeconds = LSA.REFRESH_TIME;
+  long flushHoldMillis = 60000;
+  ExpiryIndex expiry = new ExpiryIndex();
+  // MaxAge instances in the store, the topology is only filtered while there are some
+  private AtomicInteger flushedCount = new AtomicInteger();
+
+  // LSAs loaded from the snapshot that no neighbour has confirmed yet
+  Set<String> provisional = ConcurrentHashMap.newKeySet();
+
+  // dense ids for every router seen in the database, shared by the topology graph and the tree
+  RouterIds ids = new RouterIds();
+
+  // rebuilt lazily from the snapshot when it is stale
+  private volatile TopologyGraph topology = null;
+  private volatile long topologyVersion = -1;
+
+  // linkStateIDs changed since the shortest path tree was last brought up to date, each queued
+  // once however often it is written before the next sync
+  private ConcurrentLinkedQueue<String> dirty = new ConcurrentLinkedQueue<String>();
+  private Set<String> queued = ConcurrentHashMap.newKeySet();
+  private Object routeLock = new Object();
+  // while the tree is synced, full recomputes see the same snapshot as the incremental updates
+  private Snapshot pinned = null;
+
+  // shortest path tree rooted at this router, kept in sync with _store (under routeLock)
+  ShortestPathTree spt;
+
+  // cached routes, invalidated as the tree changes
+  ForwardingTable forwarding;
+
+  // how often the tree may be synced, and the timers running a sync held back by it (none for a
+  // database without a router, which is never held back)
+  SpfThrottle spfThrottle = new SpfThrottle(0, 0, 0);
+  TimingWheel timers = null;
+  private AtomicBoolean syncScheduled = new AtomicBoolean();
+  // run after a sync held back by the throttle, when the routes it stood for are in
+  Runnable afterHeldSync = null;
+
+  /**
+   * an LSA that arrived within the min arrival interval of the instance it replaces, and the link
+   * it came from; the router installs it once the interval is over
+   */
+  static class Early {
+    final LSA lsa;
+    final LinkService from;
+
+    Early(LSA lsa, LinkService from) {
+      this.lsa = lsa;
+      this.from = from;
+    }
+  }
+
+  // newest early instance per linkStateID
+  ConcurrentHashMap<String, Early> early = new ConcurrentHashMap<String, Early>();
+
+  // when set, every incremental SPF update is checked against a full recompute
+  boolean verifySpf = false;
+
+  // time spent bringing the tree and the forwarding table up to date, per sync
+  Histogram syncTimes = new Histogram();
+  // counts the syncs, the routes may have changed whenever it moves
+  volatile long routesVersion = 0;
+
+  // arrival and route update times of the LSAs of other routers
+  ConvergenceTrace trace;
+
   public LinkStateDatabase(RouterDescription routerDescription) {
     rd = routerDescription;
+    trace = new ConvergenceTrace(rd.simulatedIPAddress);
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Object();
+    }
+    spt = new ShortestPathTree(ids, rd.simulatedIPAddress, this::topology);
+    forwarding = new ForwardingTable(ids, spt);
     LSA l = initLinkStateDatabase();
-    _store.put(l.linkStateID, l);
+    installLSA(l);
+  }
+
+  private Object stripe(String linkStateID) {
+    return stripes[(linkStateID.hashCode() & 0x7fffffff) % STRIPES];
+  }
+
+  /**
+   * store the given LSA if it is newer than the instance we hold from the same router: a higher
+   * sequence number, or the MaxAge copy of the same instance. Safe to call from several threads at
+   * once.
+   *
+   * @return true if the LSA was installed, false if it was a duplicate or older
+   */
+  boolean installLSA(LSA lsa) {
+    synchronized (stripe(lsa.linkStateID)) {
+      LSA old = _store.get(lsa.linkStateID);
+      if (old != null && !newer(lsa, old)) {
+        return false;
+      }
+      writesStarted.incrementAndGet();
+      lsa.installedAt = System.nanoTime();
+      _store.put(lsa.linkStateID, lsa);
+      flushedCount.addAndGet((flushed(lsa) ? 1 : 0) - (old != null && flushed(old) ? 1 : 0));
+      expiry.put(lsa.linkStateID, dueAt(lsa));
+      trace.installed(lsa);
+      markDirty(lsa.linkStateID);
+      writesFinished.incrementAndGet();
+    }
+    return true;
+  }
+
+  /**
+   * remove the LSA originated by the given router
+   */
+  void removeLSA(String linkStateID) {
+    synchronized (stripe(linkStateID)) {
+      if (!_store.containsKey(linkStateID)) {
+        return;
+      }
+      writesStarted.incrementAndGet();
+      if (flushed(_store.remove(linkStateID))) {
+        flushedCount.decrementAndGet();
+      }
+      expiry.remove(linkStateID);
+      markDirty(linkStateID);
+      writesFinished.incrementAndGet();
+    }
+  }
+
+  /**
+   * true if a replaces b: a higher sequence number, or the MaxAge copy of the same instance
+   */
+  boolean newer(LSA a, LSA b) {
+    return a.lsaSeqNumber > b.lsaSeqNumber || (a.lsaSeqNumber == b.lsaSeqNumber && flushed(a) && !flushed(b));
+  }
+
+  /**
+   * how long the given LSA has to wait before replacing the instance held from the same router,
+   * which has to be installed for minArrivalMillis first; 0 if it may be installed now
+   */
+  long arrivalWait(LSA lsa, long minArrivalMillis) {
+    LSA held = _store.get(lsa.linkStateID);
+    if (held == null || minArrivalMillis <= 0 || held.installedAt == 0 || !newer(lsa, held)) {
+      return 0;
+    }
+    long left = held.installedAt + TimeUnit.MILLISECONDS.toNanos(minArrivalMillis) - System.nanoTime();
+    return left > 0 ? TimeUnit.NANOSECONDS.toMillis(left) + 1 : 0;
+  }
+
+  /**
+   * true for a MaxAge instance, one being flushed from the network
+   */
+  boolean flushed(LSA lsa) {
+    return lsa.age >= maxAgeSeconds;
+  }
+
+  private boolean own(LSA lsa) {
+    return lsa.linkStateID.equals(rd.simulatedIPAddress) || lsa.linkStateID.equals(LSA.summaryID(rd.simulatedIPAddress));
+  }
+
+  // when the router has to look at an installed LSA again: refresh our own, flush one reaching
+  // MaxAge, remove a flushed one
+  private long dueAt(LSA lsa) {
+    if (flushed(lsa)) {
+      return lsa.installedAt + TimeUnit.MILLISECONDS.toNanos(flushHoldMillis);
+    }
+    int seconds = (own(lsa) ? refreshSeconds : maxAgeSeconds) - lsa.age;
+    return lsa.installedAt + TimeUnit.SECONDS.toNanos(Math.max(0, seconds));
+  }
+
+  /**
+   * age the LSAs with the given limits, the LSAs already held are due again accordingly
+   */
+  void setAging(int maxAgeSeconds, int refreshSeconds, long flushHoldMillis) {
+    this.maxAgeSeconds = maxAgeSeconds;
+    this.refreshSeconds = refreshSeconds;
+    this.flushHoldMillis = flushHoldMillis;
+    for (LSA lsa : _store.values()) {
+      synchronized (stripe(lsa.linkStateID)) {
+        if (_store.get(lsa.linkStateID) == lsa) {
+          expiry.put(lsa.linkStateID, dueAt(lsa));
+        }
+      }
+    }
+  }
+
+  /**
+   * the LSAs due by the given System.nanoTime(), each returned once per installed instance
+   */
+  List<LSA> due(long now) {
+    ArrayList<LSA> due = new ArrayList<LSA>();
+    for (String linkStateID : expiry.due(now)) {
+      LSA lsa = _store.get(linkStateID);
+      if (lsa != null) {
+        due.add(lsa);
+      }
+    }
+    return due;
+  }
+
+  private void markDirty(String linkStateID) {
+    if (queued.add(linkStateID)) {
+      dirty.add(linkStateID);
+      spfThrottle.changed(System.nanoTime());
+    }
+  }
+
+  /**
+   * LSA currently held for the given router, or null
+   */
+  LSA getLSA(String linkStateID) {
+    return _store.get(linkStateID);
+  }
+
+  /**
+   * consistent immutable copy of the store, readers never block writers to get it
+   */
+  Snapshot snapshot() {
+    for (int attempt = 0; attempt < SNAPSHOT_RETRIES; attempt++) {
+      long finished = writesFinished.get();
+      long started = writesStarted.get();
+      Snapshot cached = snapshot;
+      if (cached.version == started && started == finished) {
+        return cached;
+      }
+      if (started != finished) {
+        Thread.yield(); // a write is in flight
+        continue;
+      }
+      HashMap<String, LSA> copy = new HashMap<String, LSA>(_store);
+      if (writesStarted.get() == started) {
+        return publish(new Snapshot(started, copy));
+      }
+    }
+    // the store keeps changing under us, stop the writers for the time of one copy
+    return lockedSnapshot(0);
+  }
+
+  private Snapshot lockedSnapshot(int stripe) {
+    if (stripe == STRIPES) {
+      return publish(new Snapshot(writesStarted.get(), new HashMap<String, LSA>(_store)));
+    }
+    synchronized (stripes[stripe]) {
+      return lockedSnapshot(stripe + 1);
+    }
+  }
+
+  private Snapshot publish(Snapshot s) {
+    if (s.version > snapshot.version) {
+      snapshot = s;
+    }
+    return s;
+  }
+
+  /**
+   * compact view of the current topology for route computation, rebuilt only after a change
+   */
+  TopologyGraph topology() {
+    synchronized (routeLock) {
+      Snapshot s = pinned != null ? pinned : snapshot();
+      if (topology == null || topologyVersion != s.version) {
+        topology = TopologyGraph.build(ids, live(s.lsas.values()));
+        topologyVersion = s.version;
+      }
+      return topology;
+    }
+  }
+
+  /**
+   * routes between every pair of routers of the current topology, computed on the given pool
+   *
+   * @throws IllegalArgumentException if the topology has too many routers for the table
+   */
+  public AllPairsRoutes allPairs(ForkJoinPool pool) {
+    return AllPairsRoutes.compute(topology(), pool);
+  }
+
+  // the LSAs that are not being flushed
+  private Collection<LSA> live(Collection<LSA> lsas) {
+    if (flushedCount.get() == 0) {
+      return lsas;
+    }
+    ArrayList<LSA> live = new ArrayList<LSA>(lsas.size());
+    for (LSA lsa : lsas) {
+      if (!flushed(lsa)) {
+        live.add(lsa);
+      }
+    }
+    return live;
+  }
+
+  /**
+   * bring the shortest path tree and the forwarding table up to date with the store
+   */
+  void syncRoutes() {
+    if (dirty.isEmpty()) {
+      return;
+    }
+    long wait = spfThrottle.waitMillis(System.nanoTime());
+    if (wait > 0) {
+      scheduleSync(wait);
+      return;
+    }
+    synchronized (routeLock) {
+      // every write contained in the snapshot queued its id before the snapshot was taken
+      Snapshot s = snapshot();
+      LinkedHashSet<String> changed = new LinkedHashSet<String>();
+      String id;
+      while ((id = dirty.poll()) != null) {
+        queued.remove(id);
+        changed.add(id);
+      }
+      if (changed.isEmpty()) {
+        return;
+      }
+      pinned = s;
+      long start = System.nanoTime();
+      try {
+        for (String linkStateID : changed) {
+          LSA lsa = s.lsas.get(linkStateID);
+          if (lsa != null && lsa.summary) {
+            // not part of the area topology, read by the inter-area routes
+          } else if (lsa != null && !flushed(lsa)) {
+            spt.update(lsa);
+          } else {
+            spt.remove(linkStateID);
+          }
+          forwarding.invalidate();
+          // written again after the snapshot, apply the newer instance on the next sync
+          if (_store.get(linkStateID) != lsa) {
+            markDirty(linkStateID);
+          }
+        }
+        checkSpf();
+        for (String linkStateID : changed) {
+          LSA lsa = s.lsas.get(linkStateID);
+          if (lsa != null) {
+            trace.routed(lsa);
+          }
+        }
+      } finally {
+        pinned = null;
+        long end = System.nanoTime();
+        syncTimes.record(end - start);
+        routesVersion++;
+        spfThrottle.ran(end);
+        if (!dirty.isEmpty()) {
+          spfThrottle.changed(end);
+        }
+      }
+    }
+  }
+
+  // sync the tree once the throttle lets it, for the lookups that got the previous routes
+  private void scheduleSync(long delayMillis) {
+    if (timers == null || !syncScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    timers.schedule(new Runnable() {
+      public void run() {
+        syncScheduled.set(false);
+        syncRoutes();
+        if (afterHeldSync != null) {
+          afterHeldSync.run();
+        }
+      }
+    }, delayMillis);
+  }
+
+  private void checkSpf() {
+    if (!verifySpf) {
+      return;
+    }
+    boolean ok = spt.verify();
+    // verify() leaves the tree rebuilt from scratch, so every cached route has to go
+    forwarding.invalidateAll();
+    if (!ok) {
+      System.out.println("SPF ERROR: incremental tree differs from full recompute;");
+    }
+  }
+
+  /**
+   * route to the destination from the forwarding table, after applying pending changes
+   */
+  ForwardingTable.Route route(String destinationIP) {
+    syncRoutes();
+    ForwardingTable.Route r = forwarding.cached(destinationIP);
+    if (r != null) {
+      return r;
+    }
+    synchronized (routeLock) {
+      return forwarding.lookup(destinationIP);
+    }
   }
 
   /**
    * output the shortest path from this router to the destination with the given IP address
    */
   String getShortestPath(String destinationIP) {
-    //TODO: fill the implementation here
-    return null;
+    List<String> path = route(destinationIP).path;
+    if (path == null) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < path.size(); i++) {
+      if (i > 0) {
+        sb.append(" -> ");
+      }
+      sb.append(path.get(i));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * every shortest path from this router to the destination, one per line, at most max of them
+   * followed by the number left out; null if there is none
+   */
+  String getEqualCostPaths(String destinationIP, int max) {
+    syncRoutes();
+    ArrayList<ArrayList<String>> paths;
+    long count;
+    synchronized (routeLock) {
+      paths = spt.pathsTo(destinationIP, max);
+      count = spt.pathCount(destinationIP);
+    }
+    if (paths.isEmpty()) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (List<String> path : paths) {
+      for (int i = 0; i < path.size(); i++) {
+        if (i > 0) {
+          sb.append(" -> ");
+        }
+        sb.append(path.get(i));
+      }
+      sb.append("\n");
+    }
+    if (count > paths.size()) {
+      sb.append("... and ").append(count == Long.MAX_VALUE ? "countless" : String.valueOf(count - paths.size()))
+          .append(" more\n");
+    }
+    sb.setLength(sb.length() - 1);
+    return sb.toString();
   }
 
   //initialize the linkstate database by adding an entry about the router itself
@@ -41,10 +530,10 @@ public class LinkStateDatabase {
 
   public String toString() {
     StringBuilder sb = new StringBuilder();
-    for (LSA lsa: _store.values()) {
-      sb.append(lsa.linkStateID).append("(" + lsa.lsaSeqNumber + ")").append(":\t");
+    for (LSA lsa: snapshot().lsas.values()) {
+      sb.append(lsa.linkStateID).append("(" + lsa.lsaSeqNumber + ", age " + lsa.ageNow() + ")").append(":\t");
       for (LinkDescription ld : lsa.links) {
-        sb.append(ld.linkID).append(",").append(ld.portNum).append("\t");
+        sb.append(ld.linkID).append(",").append(ld.portNum).append(",").append(ld.cost).append("\t");
       }
       sb.append("\n");
     }
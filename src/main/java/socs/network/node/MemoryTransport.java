@@ -0,0 +1,191 @@
+package socs.network.node;
+
+import socs.network.message.PacketCodec;
+import socs.network.message.SOSPFPacket;
+import socs.network.message.WireFormat;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * links between routers of the same JVM, without sockets.
+ * <p/>
+ * Each end has an inbox that is drained by a small shared thread pool, one drain at a time per
+ * inbox, so packets of a link are handled in order and by one thread like with a real link, while
+ * thousands of links need no thread of their own. Every packet is encoded with the binary codec, on
+ * the receiving side so the sender (often the timer thread) only queues it, to count the bytes it
+ * would take on the wire; it is decoded again only when copy is set, otherwise the receiver gets
+ * the sender's objects, which is safe as installed LSAs are never modified.
+ */
+public class MemoryTransport {
+
+  // packets handled per drain before the pool thread is given to another inbox
+  private static final int DRAIN_BATCH = 64;
+
+  private ExecutorService pool;
+  private boolean copy;
+  // fraction of the LSAUPDATE and LSACK packets lost on the way, the packets flooding recovers
+  private double loss = 0;
+
+  // statistics
+  final AtomicLong packets = new AtomicLong();
+  final AtomicLong bytes = new AtomicLong();
+  final AtomicLongArray packetsByType = new AtomicLongArray(SOSPFPacket.MAX_TYPE + 1);
+  // sent but not handled yet
+  final AtomicLong inFlight = new AtomicLong();
+  final AtomicLong lost = new AtomicLong();
+
+  public MemoryTransport(int threads, boolean copy) {
+    this.copy = copy;
+    pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "memory-transport");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * lose the given fraction of LSAUPDATE and LSACK packets
+   */
+  public void setLoss(double loss) {
+    this.loss = loss;
+  }
+
+  /**
+   * two connected ends of a new link
+   */
+  public MemoryPacketStream[] pair() {
+    MemoryPacketStream a = new MemoryPacketStream();
+    MemoryPacketStream b = new MemoryPacketStream();
+    a.peer = b;
+    b.peer = a;
+    return new MemoryPacketStream[]{a, b};
+  }
+
+  /**
+   * true when every packet sent has been handled
+   */
+  public boolean idle() {
+    return inFlight.get() == 0;
+  }
+
+  public void shutdown() {
+    pool.shutdownNow();
+  }
+
+  /**
+   * one end of an in-memory link
+   */
+  public class MemoryPacketStream extends PacketStream {
+    private MemoryPacketStream peer;
+    private ConcurrentLinkedQueue<SOSPFPacket> inbox = new ConcurrentLinkedQueue<SOSPFPacket>();
+    private AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile LinkService service;
+    private volatile boolean closed = false;
+    // the peer closed its end, like an EOF once the inbox is drained
+    private volatile boolean peerClosed = false;
+
+    public WireFormat format() {
+      return WireFormat.BINARY;
+    }
+
+    public boolean blocking() {
+      return false;
+    }
+
+    public void send(SOSPFPacket packet) throws IOException {
+      if (closed || peer.closed) {
+        throw new IOException("Link is closed");
+      }
+      packets.incrementAndGet();
+      packetsByType.incrementAndGet(packet.sospfType);
+      if (loss > 0 && (packet.sospfType == SOSPFPacket.LSAUPDATE || packet.sospfType == SOSPFPacket.LSACK)
+          && ThreadLocalRandom.current().nextDouble() < loss) {
+        lost.incrementAndGet();
+        return;
+      }
+      inFlight.incrementAndGet();
+      peer.inbox.add(packet);
+      peer.schedule();
+    }
+
+    public SOSPFPacket receive() throws IOException {
+      throw new IOException("Packets of an in-memory link are delivered to the link service");
+    }
+
+    public boolean deliverTo(LinkService service) {
+      this.service = service;
+      schedule();
+      return true;
+    }
+
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      service = null;
+      // nobody will handle what is left
+      while (inbox.poll() != null) {
+        inFlight.decrementAndGet();
+      }
+      peer.peerClosed = true;
+      peer.schedule();
+    }
+
+    private void schedule() {
+      if (service != null && scheduled.compareAndSet(false, true)) {
+        pool.execute(new Runnable() {
+          public void run() {
+            drain();
+          }
+        });
+      }
+    }
+
+    private void drain() {
+      for (int i = 0; i < DRAIN_BATCH; i++) {
+        SOSPFPacket next = inbox.poll();
+        if (next == null) {
+          break;
+        }
+        LinkService s = service;
+        try {
+          byte[] body = PacketCodec.encode(next);
+          bytes.addAndGet(4 + body.length);
+          lastReceivedBytes = 4 + body.length;
+          // the sender could not know the size without encoding on its own thread
+          LinkService sender = peer.service;
+          if (sender != null) {
+            sender.router.metrics.sentBytes(sender.port, next.sospfType, 4 + body.length);
+          }
+          if (s != null) {
+            s.handlePacket(copy ? PacketCodec.decode(body) : next);
+          }
+        } catch (Exception e) {
+          System.out.println("SIMULATION ERROR: failed to handle a packet;");
+          e.printStackTrace();
+        } finally {
+          inFlight.decrementAndGet();
+        }
+      }
+      LinkService s = service;
+      if (peerClosed && inbox.isEmpty() && s != null) {
+        s.closeConnection();
+      }
+      scheduled.set(false);
+      if (!inbox.isEmpty() || (peerClosed && service != null)) {
+        schedule();
+      }
+    }
+  }
+}
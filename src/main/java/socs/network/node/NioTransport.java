@@ -0,0 +1,377 @@
+package socs.network.node;
+
+import socs.network.message.PacketCodec;
+import socs.network.message.SOSPFPacket;
+import socs.network.message.WireFormat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * non-blocking transport: one selector thread accepts connections and reads and writes every link
+ * of the router, incoming packets are handed to LinkService.handlePacket on that thread.
+ * <p/>
+ * Attach requests need an answer from the user, so they are decided on a separate worker thread
+ * to keep the selector running meanwhile. Only the binary wire format is spoken.
+ */
+public class NioTransport implements Runnable {
+
+  // how long stop() keeps flushing pending packets (e.g. QUIT) before closing everything
+  private static final long STOP_FLUSH_MILLIS = 1000;
+  // bytes a link holds for the selector before its outbound queue keeps the packets instead
+  private static final int WRITE_WINDOW = 64 * 1024;
+
+  private Router router;
+  private Selector selector;
+  private ServerSocketChannel server;
+  private Thread loopThread;
+  private ExecutorService attachWorker = Executors.newSingleThreadExecutor();
+
+  // work handed to the selector thread by other threads
+  private ConcurrentLinkedQueue<NioPacketStream> pendingRegistrations = new ConcurrentLinkedQueue<NioPacketStream>();
+  private ConcurrentLinkedQueue<NioPacketStream> pendingWrites = new ConcurrentLinkedQueue<NioPacketStream>();
+
+  private volatile boolean running = false;
+
+  public NioTransport(Router router) {
+    this.router = router;
+  }
+
+  /**
+   * bind the listener and start the selector thread
+   */
+  public void start(int port) throws IOException {
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(port));
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+    running = true;
+    loopThread = new Thread(this);
+    loopThread.start();
+  }
+
+  /**
+   * stop accepting, flush what is still queued for a short while and close the selector
+   */
+  public void stop() throws InterruptedException {
+    running = false;
+    selector.wakeup();
+    loopThread.join();
+    attachWorker.shutdownNow();
+  }
+
+  /**
+   * connect to a remote router. The returned stream is blocking until a LinkService is
+   * registered on it, so the attach handshake can be done synchronously.
+   */
+  public NioPacketStream connect(String processIP, short processPort) throws IOException {
+    SocketChannel channel = SocketChannel.open(new InetSocketAddress(processIP, processPort));
+    channel.socket().setTcpNoDelay(true);
+    return new NioPacketStream(channel, false);
+  }
+
+  public void run() {
+    long stopDeadline = 0;
+    while (true) {
+      if (!running) {
+        if (stopDeadline == 0) {
+          stopDeadline = System.currentTimeMillis() + STOP_FLUSH_MILLIS;
+        }
+        if (!hasPendingWrites() || System.currentTimeMillis() > stopDeadline) {
+          break;
+        }
+      }
+      try {
+        selector.select(running ? 0 : 50);
+      } catch (IOException e) {
+        System.out.println("Selector failed, closing the transport;");
+        e.printStackTrace();
+        break;
+      }
+      NioPacketStream stream;
+      while ((stream = pendingRegistrations.poll()) != null) {
+        register(stream);
+      }
+      while ((stream = pendingWrites.poll()) != null) {
+        if (stream.key != null && stream.key.isValid()) {
+          stream.key.interestOps(stream.key.interestOps() | SelectionKey.OP_WRITE);
+        }
+      }
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        try {
+          if (key.isAcceptable()) {
+            accept();
+          } else {
+            NioPacketStream s = (NioPacketStream) key.attachment();
+            if (key.isReadable()) {
+              s.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+              s.onWritable();
+            }
+          }
+        } catch (CancelledKeyException e) {
+          // the link was closed by another thread
+        } catch (IOException e) {
+          ((NioPacketStream) key.attachment()).onClosed();
+        }
+      }
+    }
+    try {
+      for (SelectionKey key : selector.keys()) {
+        key.channel().close();
+      }
+      selector.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    System.out.println("Server socket interrupted, closing...");
+  }
+
+  private boolean hasPendingWrites() {
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof NioPacketStream && ((NioPacketStream) key.attachment()).hasPendingWrites()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = server.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.socket().setTcpNoDelay(true);
+    register(new NioPacketStream(channel, true));
+  }
+
+  private void register(NioPacketStream stream) {
+    try {
+      stream.channel.configureBlocking(false);
+      stream.key = stream.channel.register(selector, SelectionKey.OP_READ, stream);
+      if (stream.hasPendingWrites()) {
+        stream.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    } catch (IOException e) {
+      stream.onClosed();
+    }
+  }
+
+  /**
+   * a link served by the selector thread
+   */
+  public class NioPacketStream extends PacketStream {
+    private SocketChannel channel;
+    private volatile SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+    private ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+    // bytes in writeQueue, at most about WRITE_WINDOW
+    private AtomicInteger queuedBytes = new AtomicInteger();
+
+    // true once the channel is served by the selector thread
+    private volatile boolean registered;
+    private volatile LinkService service;
+    // accepted channels wait for their attach request first
+    private boolean accepted;
+    private boolean attachPending = false;
+    private volatile boolean closing = false;
+
+    NioPacketStream(SocketChannel channel, boolean accepted) {
+      this.channel = channel;
+      this.accepted = accepted;
+      this.registered = accepted;
+    }
+
+    public WireFormat format() {
+      return WireFormat.BINARY;
+    }
+
+    public boolean blocking() {
+      return false;
+    }
+
+    public boolean ready() {
+      return !registered || queuedBytes.get() < WRITE_WINDOW;
+    }
+
+    public boolean mayWait() {
+      return Thread.currentThread() != loopThread;
+    }
+
+    public void send(SOSPFPacket packet) throws IOException {
+      byte[] body = PacketCodec.encode(packet);
+      ByteBuffer frame = ByteBuffer.allocate(4 + body.length);
+      frame.putInt(body.length).put(body).flip();
+      lastSentBytes = 4 + body.length;
+      if (!registered) {
+        // still in the blocking handshake
+        while (frame.hasRemaining()) {
+          channel.write(frame);
+        }
+        return;
+      }
+      if (closing) {
+        throw new IOException("Link is closed");
+      }
+      queuedBytes.addAndGet(frame.limit());
+      writeQueue.add(frame);
+      pendingWrites.add(this);
+      selector.wakeup();
+    }
+
+    public SOSPFPacket receive() throws IOException {
+      if (registered) {
+        throw new IOException("Packets of a registered link are delivered by the selector thread");
+      }
+      // no buffering, so nothing is lost when the channel switches to non-blocking mode
+      return PacketCodec.readFrame(new DataInputStream(Channels.newInputStream(channel)));
+    }
+
+    public boolean deliverTo(LinkService service) {
+      this.service = service;
+      if (!registered) {
+        registered = true;
+        pendingRegistrations.add(this);
+        selector.wakeup();
+      }
+      return true;
+    }
+
+    /**
+     * flushes what is already queued (e.g. a QUIT) before the channel is closed
+     */
+    public void close() throws IOException {
+      closing = true;
+      service = null;
+      if (!registered || writeQueue.isEmpty()) {
+        closeNow();
+      } else {
+        pendingWrites.add(this);
+        selector.wakeup();
+      }
+    }
+
+    private void closeNow() throws IOException {
+      if (key != null) {
+        key.cancel();
+      }
+      channel.close();
+    }
+
+    boolean hasPendingWrites() {
+      return !writeQueue.isEmpty();
+    }
+
+    // selector thread ---------------------------------------------------------
+
+    private void onReadable() throws IOException {
+      if (channel.read(readBuffer) == -1) {
+        onClosed();
+        return;
+      }
+      readBuffer.flip();
+      if (accepted && !attachPending && readBuffer.remaining() >= 2 && (readBuffer.getShort(0) & 0xffff) == 0xACED) {
+        System.out.println("Rejecting a java serialized connection, the nio transport only speaks the binary format;");
+        closeNow();
+        return;
+      }
+      while (readBuffer.remaining() >= 4) {
+        int length = readBuffer.getInt(readBuffer.position());
+        if (length < 0 || length > PacketCodec.MAX_FRAME) {
+          throw new IOException("Invalid frame length " + length);
+        }
+        if (readBuffer.remaining() < 4 + length) {
+          if (readBuffer.capacity() < 4 + length) {
+            ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+            bigger.put(readBuffer).flip();
+            readBuffer = bigger;
+          }
+          break;
+        }
+        byte[] body = new byte[length];
+        readBuffer.position(readBuffer.position() + 4);
+        readBuffer.get(body);
+        lastReceivedBytes = 4 + length;
+        dispatch(PacketCodec.decode(body));
+        if (!channel.isOpen()) {
+          return;
+        }
+      }
+      readBuffer.compact();
+    }
+
+    private void dispatch(final SOSPFPacket packet) throws IOException {
+      LinkService s = service;
+      if (s != null) {
+        s.handlePacket(packet);
+      } else if (accepted && !attachPending) {
+        attachPending = true;
+        attachWorker.submit(new Runnable() {
+          public void run() {
+            try {
+              router.handleAttachRequest(null, NioPacketStream.this, packet);
+            } catch (Exception e) {
+              e.printStackTrace();
+            }
+          }
+        });
+      }
+    }
+
+    private void onWritable() throws IOException {
+      ByteBuffer frame;
+      while ((frame = writeQueue.peek()) != null) {
+        channel.write(frame);
+        if (frame.hasRemaining()) {
+          break; // socket buffer full, wait for the next OP_WRITE
+        }
+        writeQueue.poll();
+        queuedBytes.addAndGet(-frame.limit());
+      }
+      if (frame == null) {
+        key.interestOps(SelectionKey.OP_READ);
+        if (closing) {
+          closeNow();
+          return;
+        }
+      }
+      // room in the window, take what the outbound queue kept
+      LinkService s = service;
+      if (s != null && ready()) {
+        s.outbound.resume();
+      }
+    }
+
+    // the peer went away: same as a severed connection in the blocking transport
+    private void onClosed() {
+      LinkService s = service;
+      if (s != null) {
+        s.closeConnection();
+      } else {
+        try {
+          closeNow();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package socs.network.node;
+
+import socs.network.message.SOSPFPacket;
+
+import java.util.ArrayDeque;
+
+/**
+ * packets waiting to be written to one link, so callers (the terminal, the receive thread, the
+ * timers) never write to the stream themselves.
+ * <p/>
+ * Control packets (HELLO, QUIT, database sync) are written before any bulk LSAUPDATE or DATA. The
+ * bulk queue is bounded, what happens when it is full is decided by the FullPolicy; control packets
+ * are few and losing one breaks the adjacency, so they are never dropped.
+ * <p/>
+ * Over a blocking stream one writer thread per link drains the queue. Streams that do not block
+ * (nio) are drained by whichever thread enqueues, one at a time, as their write is only a hand-off
+ * to the selector. Once such a stream holds its write window the packets stay here, where the
+ * capacity and the policy apply, until the stream has written enough and calls resume().
+ * The thread writing the stream never waits for room, it drops instead.
+ */
+public class OutboundQueue implements Runnable {
+
+  /**
+   * what send() does when the bulk queue is full
+   */
+  public enum FullPolicy {
+    // wait for the writer to make room; offer() drops instead
+    BLOCK,
+    // refuse the packet being sent
+    DROP_NEWEST,
+    // make room by dropping the oldest queued bulk packet
+    DROP_OLDEST;
+
+    public static FullPolicy parse(String name) {
+      return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+  }
+
+  private LinkService service;
+  private int capacity;
+  private FullPolicy policy;
+  private boolean dedicatedWriter;
+
+  private ArrayDeque<SOSPFPacket> control = new ArrayDeque<SOSPFPacket>();
+  private ArrayDeque<SOSPFPacket> bulk = new ArrayDeque<SOSPFPacket>();
+  // a packet taken off the queues and being written
+  private boolean writing = false;
+  // the stream asked to be drained again while a drain was stopping
+  private boolean resumed = false;
+  private boolean closed = false;
+  private Thread writer;
+
+  // statistics
+  long enqueued = 0;
+  long written = 0;
+  long dropped = 0;
+  long blocked = 0;
+  long blockedNanos = 0;
+  int maxDepth = 0;
+
+  public OutboundQueue(LinkService service, int capacity, FullPolicy policy, boolean dedicatedWriter) {
+    this.service = service;
+    this.capacity = Math.max(1, capacity);
+    this.policy = policy;
+    this.dedicatedWriter = dedicatedWriter;
+  }
+
+  static boolean isControl(SOSPFPacket packet) {
+    return packet.sospfType != SOSPFPacket.LSAUPDATE && packet.sospfType != SOSPFPacket.DATA;
+  }
+
+  /**
+   * queue a packet for the writer
+   *
+   * @return false if the packet was dropped or the queue is closed
+   */
+  public boolean send(SOSPFPacket packet) {
+    return enqueue(packet, true);
+  }
+
+  /**
+   * queue a packet, dropping it rather than waiting when the bulk queue is full whatever the
+   * policy: a receive thread forwarding DATA must not stall the link it reads
+   */
+  public boolean offer(SOSPFPacket packet) {
+    return enqueue(packet, false);
+  }
+
+  private boolean enqueue(SOSPFPacket packet, boolean mayWait) {
+    mayWait = mayWait && service.mayWait();
+    synchronized (this) {
+      if (closed) {
+        return false;
+      }
+      if (isControl(packet)) {
+        control.add(packet);
+      } else {
+        if (bulk.size() >= capacity) {
+          if (policy == FullPolicy.DROP_NEWEST || (policy == FullPolicy.BLOCK && !mayWait)) {
+            dropped++;
+            return false;
+          } else if (policy == FullPolicy.DROP_OLDEST) {
+            bulk.poll();
+            dropped++;
+          } else {
+            blocked++;
+            long start = System.nanoTime();
+            while (bulk.size() >= capacity && !closed) {
+              try {
+                wait();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+              }
+            }
+            blockedNanos += System.nanoTime() - start;
+            if (closed) {
+              return false;
+            }
+          }
+        }
+        bulk.add(packet);
+      }
+      enqueued++;
+      maxDepth = Math.max(maxDepth, depth());
+      if (dedicatedWriter) {
+        if (writer == null) {
+          writer = new Thread(this, "link-writer");
+          writer.setDaemon(true);
+          writer.start();
+        }
+        notifyAll();
+        return true;
+      }
+      if (writing) {
+        return true; // the thread draining the queue will write it
+      }
+      writing = true;
+    }
+    drain();
+    return true;
+  }
+
+  /**
+   * a non-blocking stream takes packets again, drain what it left queued
+   */
+  public void resume() {
+    synchronized (this) {
+      if (writing) {
+        resumed = true;
+        return;
+      }
+      if (closed || (control.isEmpty() && bulk.isEmpty())) {
+        return;
+      }
+      writing = true;
+    }
+    drain();
+  }
+
+  // inline drain of a non-blocking stream, by the thread that found the queue idle
+  private void drain() {
+    while (true) {
+      SOSPFPacket packet;
+      boolean ready = service.ready();
+      synchronized (this) {
+        if (!ready && !resumed) {
+          writing = false;
+          notifyAll();
+          return;
+        }
+        resumed = false;
+        packet = next();
+        if (packet == null) {
+          writing = false;
+          notifyAll();
+          return;
+        }
+      }
+      write(packet);
+    }
+  }
+
+  public void run() {
+    while (true) {
+      SOSPFPacket packet;
+      synchronized (this) {
+        writing = false;
+        notifyAll();
+        while ((packet = next()) == null) {
+          if (closed) {
+            return;
+          }
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        writing = true;
+      }
+      write(packet);
+    }
+  }
+
+  // caller holds the lock
+  private SOSPFPacket next() {
+    SOSPFPacket packet = control.poll();
+    if (packet == null) {
+      packet = bulk.poll();
+      if (packet != null) {
+        notifyAll(); // room for a blocked sender
+      }
+    }
+    return packet;
+  }
+
+  private void write(SOSPFPacket packet) {
+    if (service.write(packet)) {
+      synchronized (this) {
+        written++;
+      }
+    }
+  }
+
+  /**
+   * wait until everything queued so far has been written, at most the given time
+   */
+  public synchronized void flush(long timeoutMillis) {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while ((writing || !control.isEmpty() || !bulk.isEmpty()) && !closed) {
+      long left = deadline - System.currentTimeMillis();
+      if (left <= 0) {
+        return;
+      }
+      try {
+        wait(left);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * drop what is still queued and let the writer thread end
+   */
+  public synchronized void close() {
+    closed = true;
+    control.clear();
+    bulk.clear();
+    notifyAll();
+  }
+
+  public synchronized int depth() {
+    return control.size() + bulk.size();
+  }
+
+  public synchronized String toString() {
+    return "depth " + depth() + " (control " + control.size() + ", bulk " + bulk.size() + "/" + capacity + ")"
+        + ", max depth " + maxDepth + ", queued " + enqueued + ", written " + written + ", dropped " + dropped
+        + ", blocked " + blocked + " (" + String.format("%.1f", blockedNanos / 1e6) + " ms)";
+  }
+}
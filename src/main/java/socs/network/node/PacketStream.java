@@ -0,0 +1,247 @@
+package socs.network.node;
+
+import socs.network.message.PacketCodec;
+import socs.network.message.SOSPFPacket;
+import socs.network.message.WireFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * packet-level view of a link's socket, hides which WireFormat is used
+ */
+public abstract class PacketStream {
+
+  // first bytes of every java serialization stream (ObjectStreamConstants.STREAM_MAGIC)
+  private static final int JAVA_MAGIC = 0xACED;
+
+  // size on the wire of the last packet sent and of the last packet received, for the metrics
+  // (0 when the transport does not know it)
+  volatile int lastSentBytes = 0;
+  volatile int lastReceivedBytes = 0;
+
+  public abstract WireFormat format();
+
+  public abstract void send(SOSPFPacket packet) throws IOException;
+
+  /**
+   * block until the next packet arrives
+   */
+  public abstract SOSPFPacket receive() throws IOException;
+
+  public abstract void close() throws IOException;
+
+  /**
+   * streams that push incoming packets to the link service themselves (instead of being polled
+   * by a LinkServiceThread) register the service here and return true
+   */
+  public boolean deliverTo(LinkService service) {
+    return false;
+  }
+
+  /**
+   * false for streams whose send only hands the packet over without waiting for the socket
+   */
+  public boolean blocking() {
+    return true;
+  }
+
+  /**
+   * false while a stream that does not block holds as much as it takes before the socket drains
+   * it; the outbound queue keeps its packets meanwhile, until the stream resumes it
+   */
+  public boolean ready() {
+    return true;
+  }
+
+  /**
+   * false on the thread that writes the stream, it must not wait for room in an outbound queue
+   */
+  public boolean mayWait() {
+    return true;
+  }
+
+  /**
+   * open the streams of a socket we connected, using the given format
+   */
+  public static PacketStream open(Socket socket, WireFormat format) throws IOException {
+    if (format == WireFormat.JAVA) {
+      return new ObjectPacketStream(socket.getInputStream(), socket.getOutputStream());
+    }
+    return new BinaryPacketStream(socket.getInputStream(), socket.getOutputStream());
+  }
+
+  /**
+   * open the streams of an accepted socket, answering in whatever format the peer speaks
+   */
+  public static PacketStream accept(Socket socket) throws IOException {
+    BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+    in.mark(2);
+    int magic = (in.read() << 8) | in.read();
+    in.reset();
+    if (magic == JAVA_MAGIC) {
+      return new ObjectPacketStream(in, socket.getOutputStream());
+    }
+    return new BinaryPacketStream(in, socket.getOutputStream());
+  }
+
+  /**
+   * the original java serialization transport
+   */
+  static class ObjectPacketStream extends PacketStream {
+    private CountingInputStream counted;
+    private CountingOutputStream written;
+    private ObjectInputStream in;
+    private ObjectOutputStream out;
+
+    ObjectPacketStream(InputStream in, OutputStream out) throws IOException {
+      counted = new CountingInputStream(in);
+      written = new CountingOutputStream(out);
+      // the output stream first: ObjectInputStream blocks until the peer's header arrives
+      this.out = new ObjectOutputStream(written);
+      this.out.flush();
+      this.in = new ObjectInputStream(counted);
+    }
+
+    public WireFormat format() {
+      return WireFormat.JAVA;
+    }
+
+    public void send(SOSPFPacket packet) throws IOException {
+      synchronized (out) {
+        long before = written.count;
+        out.writeObject(packet);
+        // forget the handles of this packet, otherwise the table grows forever and a re-sent
+        // (mutated) LSA would arrive as a back reference to its stale copy
+        out.reset();
+        out.flush();
+        lastSentBytes = (int) (written.count - before);
+      }
+    }
+
+    public SOSPFPacket receive() throws IOException {
+      try {
+        long before = counted.count;
+        SOSPFPacket packet = (SOSPFPacket) in.readObject();
+        // approximate, the object stream may read ahead
+        lastReceivedBytes = (int) (counted.count - before);
+        return packet;
+      } catch (ClassNotFoundException e) {
+        throw new IOException("Unknown class in packet stream", e);
+      }
+    }
+
+    public void close() throws IOException {
+      try {
+        in.close();
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * length-prefixed PacketCodec frames
+   */
+  static class BinaryPacketStream extends PacketStream {
+    private CountingInputStream counted;
+    private CountingOutputStream written;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    BinaryPacketStream(InputStream in, OutputStream out) {
+      counted = new CountingInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in));
+      written = new CountingOutputStream(out);
+      this.in = new DataInputStream(counted);
+      this.out = new DataOutputStream(new BufferedOutputStream(written));
+    }
+
+    public WireFormat format() {
+      return WireFormat.BINARY;
+    }
+
+    public void send(SOSPFPacket packet) throws IOException {
+      synchronized (out) {
+        long before = written.count;
+        PacketCodec.writeFrame(out, packet);
+        out.flush();
+        lastSentBytes = (int) (written.count - before);
+      }
+    }
+
+    public SOSPFPacket receive() throws IOException {
+      long before = counted.count;
+      SOSPFPacket packet = PacketCodec.readFrame(in);
+      lastReceivedBytes = (int) (counted.count - before);
+      return packet;
+    }
+
+    public void close() throws IOException {
+      try {
+        in.close();
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  // byte counters between the socket and the streams of a link
+
+  static class CountingInputStream extends FilterInputStream {
+    long count = 0;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count++;
+      }
+      return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+
+  static class CountingOutputStream extends FilterOutputStream {
+    long count = 0;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package socs.network.node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * the ports of a router and the link service attached at each of them.
+ * <p/>
+ * Free ports are kept on a stack, so allocating and releasing a port is O(1), and attached
+ * neighbours are indexed by simulated IP. A port is reserved by allocate() before the attach
+ * handshake and must then be filled with put() or given back with release(), so the request
+ * handler and the terminal can never pick the same port. All methods are thread safe.
+ */
+public class PortTable {
+
+  private LinkService[] slots;
+  // simulated IP attached at each port, kept apart since a closed link forgets its target
+  private String[] neighbors;
+  private boolean[] reserved;
+  private int[] free;
+  private int freeCount;
+  private HashMap<String, Integer> byNeighbor = new HashMap<String, Integer>();
+
+  public PortTable(int size) {
+    slots = new LinkService[size];
+    neighbors = new String[size];
+    reserved = new boolean[size];
+    free = new int[size];
+    // lowest port on top of the stack
+    for (int i = 0; i < size; i++) {
+      free[i] = size - 1 - i;
+    }
+    freeCount = size;
+  }
+
+  public int size() {
+    return slots.length;
+  }
+
+  public synchronized int freePorts() {
+    return freeCount;
+  }
+
+  /**
+   * reserve a free port
+   *
+   * @return the port number, or -1 if every port is in use
+   */
+  public synchronized int allocate() {
+    if (freeCount == 0) {
+      return -1;
+    }
+    int port = free[--freeCount];
+    reserved[port] = true;
+    return port;
+  }
+
+  /**
+   * attach a link service at a port obtained from allocate()
+   */
+  public synchronized void put(int port, LinkService service) {
+    slots[port] = service;
+    reserved[port] = false;
+    service.ports = this;
+    service.port = port;
+    neighbors[port] = service.link.targetRouter.simulatedIPAddress;
+    byNeighbor.put(neighbors[port], port);
+  }
+
+  /**
+   * give a port back, either a reservation that was not used or the port of a closed link.
+   * If a service is given, the port is only released while that service still holds it.
+   */
+  public synchronized void release(int port, LinkService service) {
+    if (port < 0 || port >= slots.length) {
+      return;
+    }
+    if (service != null && slots[port] != service) {
+      return;
+    }
+    if (slots[port] == null && !reserved[port]) {
+      return; // already free
+    }
+    if (slots[port] != null) {
+      byNeighbor.remove(neighbors[port]);
+    }
+    slots[port] = null;
+    neighbors[port] = null;
+    reserved[port] = false;
+    free[freeCount++] = port;
+  }
+
+  public synchronized LinkService get(int port) {
+    if (port < 0 || port >= slots.length) {
+      return null;
+    }
+    return slots[port];
+  }
+
+  /**
+   * link service attached to the given neighbour, or null
+   */
+  public synchronized LinkService lookup(String simulatedIP) {
+    Integer port = byNeighbor.get(simulatedIP);
+    return port == null ? null : slots[port];
+  }
+
+  /**
+   * ports that currently have a link service, in increasing order
+   */
+  public synchronized List<Integer> usedPorts() {
+    ArrayList<Integer> used = new ArrayList<Integer>();
+    for (int i = 0; i < slots.length; i++) {
+      if (slots[i] != null) {
+        used.add(i);
+      }
+    }
+    return used;
+  }
+}
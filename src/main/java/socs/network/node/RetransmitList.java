@@ -0,0 +1,191 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LSAs flooded to one neighbour that it has not acknowledged yet.
+ * <p/>
+ * The neighbour acknowledges every LSA of an LSAUPDATE with an LSACK, or implicitly by sending us
+ * the same or a newer instance. Whatever is still unacknowledged after the retransmit timeout (the
+ * LSAUPDATE was dropped by a full outbound queue, failed to be written, or the ack was lost) is
+ * flooded again, in full as the neighbour may lack the base of a delta.
+ * <p/>
+ * A busy neighbour acks late rather than never, so like TCP the timeout follows the measured ack
+ * delay (smoothed delay plus four deviations, at least the configured interval), is doubled for
+ * every retransmission of the same LSA, and retransmitted LSAs are not used as samples. And as a
+ * link delivers in order, a timed out LSA is only sent again if the neighbour acked one sent after
+ * it, or acked nothing for the whole timeout; otherwise it is just behind.
+ */
+public class RetransmitList {
+
+  private static class Entry {
+    LSA lsa;
+    long sentAt;
+    int attempts;
+
+    Entry(LSA lsa, long sentAt, int attempts) {
+      this.lsa = lsa;
+      this.sentAt = sentAt;
+      this.attempts = attempts;
+    }
+  }
+
+  // the timeout stops doubling after this many retransmissions of an LSA
+  private static final int MAX_BACKOFF = 3;
+
+  private LinkService service;
+  private TimingWheel timers;
+  private long intervalMillis;
+
+  // ack delay estimate (nanoseconds), 0 until the first sample
+  private long smoothedNanos = 0;
+  private long deviationNanos = 0;
+  // instances flooded again by retransmit(), recorded with their attempt count when sent
+  private HashMap<String, Integer> resending = new HashMap<String, Integer>();
+  // time of the last LSACK, and latest send time of an LSA acknowledged by one
+  private long lastAckAt = 0;
+  private long newestAckedSentAt = 0;
+
+  // linkStateID => newest instance sent and not acknowledged, oldest sent first
+  private LinkedHashMap<String, Entry> unacked = new LinkedHashMap<String, Entry>();
+  private boolean timerScheduled = false;
+
+  // statistics
+  long acknowledged = 0;
+  long retransmitted = 0;
+  int maxSize = 0;
+
+  public RetransmitList(LinkService service, TimingWheel timers, long intervalMillis) {
+    this.service = service;
+    this.timers = timers;
+    this.intervalMillis = intervalMillis;
+  }
+
+  /**
+   * the full instance of an LSA was just sent (itself or as a delta)
+   */
+  public void sent(LSA lsa) {
+    if (intervalMillis <= 0) {
+      return;
+    }
+    synchronized (this) {
+      // re-inserted so the map stays in the order of sending
+      unacked.remove(lsa.linkStateID);
+      Integer attempts = resending.remove(lsa.linkStateID);
+      unacked.put(lsa.linkStateID, new Entry(lsa, System.nanoTime(), attempts == null ? 0 : attempts));
+      maxSize = Math.max(maxSize, unacked.size());
+      if (timerScheduled) {
+        return;
+      }
+      timerScheduled = true;
+    }
+    schedule(intervalMillis);
+  }
+
+  /**
+   * the neighbour holds the given instance, or a newer one
+   *
+   * @param explicit true for an LSACK, false when the neighbour sent us the LSA itself
+   */
+  public synchronized void acknowledge(String linkStateID, int lsaSeqNumber, boolean explicit) {
+    long now = System.nanoTime();
+    if (explicit) {
+      lastAckAt = now;
+    }
+    Entry e = unacked.get(linkStateID);
+    if (e != null && e.lsa.lsaSeqNumber <= lsaSeqNumber) {
+      unacked.remove(linkStateID);
+      acknowledged++;
+      if (explicit) {
+        newestAckedSentAt = Math.max(newestAckedSentAt, e.sentAt);
+        if (e.attempts == 0) {
+          sample(now - e.sentAt);
+        }
+      }
+    }
+  }
+
+  // caller holds the lock
+  private void sample(long delayNanos) {
+    if (smoothedNanos == 0) {
+      smoothedNanos = delayNanos;
+      deviationNanos = delayNanos / 2;
+    } else {
+      deviationNanos += (Math.abs(delayNanos - smoothedNanos) - deviationNanos) / 4;
+      smoothedNanos += (delayNanos - smoothedNanos) / 8;
+    }
+  }
+
+  /**
+   * current timeout of a first transmission, in milliseconds
+   */
+  public synchronized long timeoutMillis() {
+    return Math.max(intervalMillis, TimeUnit.NANOSECONDS.toMillis(smoothedNanos + 4 * deviationNanos));
+  }
+
+  private void schedule(long delayMillis) {
+    timers.schedule(new Runnable() {
+      public void run() {
+        retransmit();
+      }
+    }, delayMillis);
+  }
+
+  // flood again what has waited for an ack for the interval, then wait for the next one due
+  private void retransmit() {
+    ArrayList<LSA> due = new ArrayList<LSA>();
+    long next;
+    synchronized (this) {
+      if (service.link == null) {
+        unacked.clear();
+        resending.clear();
+        timerScheduled = false;
+        return;
+      }
+      long now = System.nanoTime();
+      long timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis());
+      next = timeoutMillis();
+      Iterator<Entry> it = unacked.values().iterator();
+      while (it.hasNext()) {
+        Entry e = it.next();
+        long waited = now - e.sentAt;
+        long wait = timeout << Math.min(e.attempts, MAX_BACKOFF);
+        if (waited < wait) {
+          next = Math.min(next, TimeUnit.NANOSECONDS.toMillis(wait - waited) + 1);
+          continue;
+        }
+        if (e.sentAt > newestAckedSentAt && now - lastAckAt < wait) {
+          continue; // acks are still coming, for LSAs sent before this one
+        }
+        due.add(e.lsa);
+        resending.put(e.lsa.linkStateID, e.attempts + 1);
+        it.remove();
+      }
+      retransmitted += due.size();
+      if (unacked.isEmpty() && due.isEmpty()) {
+        timerScheduled = false;
+        return;
+      }
+    }
+    // sending records the LSAs again, with a new time
+    for (LSA lsa : due) {
+      service.floodQueue.add(lsa);
+    }
+    schedule(next);
+  }
+
+  public synchronized int size() {
+    return unacked.size();
+  }
+
+  public synchronized String toString() {
+    return "unacked " + unacked.size() + ", max " + maxSize + ", acknowledged " + acknowledged
+        + ", retransmitted " + retransmitted + ", timeout " + timeoutMillis() + " ms";
+  }
+}
@@ -1,89 +1,1061 @@
 package socs.network.node;
 
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
 import socs.network.message.SOSPFPacket;
+import socs.network.message.WireFormat;
 import socs.network.util.Configuration;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.ServerSocket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.sql.Time;
 
 public class Router {
 
+  // database of our home area, the only one unless we are an area border router
   protected LinkStateDatabase lsd;
 
+  // one database per area we have links in, and the area of the links to some neighbours when it
+  // is not the home area
+  Areas areas;
+  HashMap<String, Integer> neighbourAreas = new HashMap<String, Integer>();
+  // set once we originated a summary LSA, which has to be withdrawn if we stop being a border router
+  private volatile boolean summarized = false;
+  private AtomicBoolean summariesPending = new AtomicBoolean();
+  // System.nanoTime() of our last summary origination, 0 if none
+  private volatile long summarizedAt = 0;
+
   RouterDescription rd = new RouterDescription();
 
-  //assuming that all routers are with 4 ports
-  LinkService[] linkServices = new LinkService[4];
-  // We need 4 ports for each router, so we need to keep track of the ports that are being used
+  // "blocking" (a thread per link) or "nio" (one selector thread for the listener and all links)
+  String transport = "blocking";
+  NioTransport nioTransport = null;
+
+  // encoding used on the links we open, accepted links answer in the format of the peer
+  WireFormat wireFormat = WireFormat.BINARY;
+
+  // 4 ports unless socs.network.router.maxPorts says otherwise
+  static final int DEFAULT_MAX_PORTS = 4;
+  // We need to keep track of the ports that are being used
+  PortTable ports;
   // Request handler thread
   Thread requestHandlerThread;
 
+  // counters shown by the stats command and over JMX
+  RouterMetrics metrics;
+
+  // timers of the router (hello, dead interval, flood pacing), run on one daemon thread which
+  // may be shared by several routers
+  TimingWheel timers;
+
+  // a HELLO is sent on every adjacency at this interval (0 disables keep-alives), a neighbour
+  // silent for the dead interval is disconnected
+  long helloIntervalMillis = 2000;
+  long deadIntervalMillis = 8000;
+
+  // dead neighbour detection: how long the neighbour had been silent when it was declared dead
+  long deadNeighbours = 0;
+  long totalSilenceMillis = 0;
+  long maxSilenceMillis = 0;
+
+  // LSAs flooded to a neighbour within this window are sent as one LSAUPDATE
+  long floodPacingMillis = 50;
+
+  // LSAs a neighbour has not acknowledged within this interval are flooded to it again (0 disables)
+  long retransmitIntervalMillis = 5000;
+
+  // bulk packets (LSAUPDATEs) each link may have waiting to be written, and what to do beyond
+  int outboundCapacity = 256;
+  OutboundQueue.FullPolicy outboundPolicy = OutboundQueue.FullPolicy.BLOCK;
+
+  // how long a disconnect waits for the QUIT to be written before closing the link
+  private static final long QUIT_FLUSH_MILLIS = 1000;
+
+  // summary LSAs are brought up to date this long after a change, once for a whole burst
+  private static final long SUMMARY_DELAY_MILLIS = 100;
+
+  // how often the databases are checked for LSAs to refresh, flush or remove
+  private static final long AGING_TICK_MILLIS = 1000;
+
+  // hops a DATA packet may take before it is dropped, in case routes loop while they converge
+  static final int DATA_TTL = 64;
+  // largest payload of the send command, and how long it waits for the last echoes
+  private static final int MAX_PAYLOAD = 1 << 20;
+  private static final long ECHO_TIMEOUT_MILLIS = 2000;
+
+  // equal-cost paths listed by "detect <ip> all", a grid has exponentially many
+  private static final int MAX_DETECT_PATHS = 32;
+
+  // every database syncs its shortest path tree at most as its throttle lets it: the first change
+  // after a quiet period after the initial delay, then at least the hold apart, doubling up to the
+  // max wait while changes keep coming
+  long spfInitialDelayMillis = 0;
+  long spfHoldMillis = 100;
+  long spfMaxWaitMillis = 5000;
+
+  // an LSA arriving within minLSArrival of the previous instance from the same router is held back
+  // to the end of the interval, and only the newest of those arriving meanwhile is installed and
+  // flooded. Our own LSA and summary are originated at most once per minLSInterval in each area, so
+  // a flapping link floods one change per interval
+  long minLSArrivalMillis = 100;
+  long minLSIntervalMillis = 200;
+  // area => System.nanoTime() of the last origination of our LSA in it
+  private HashMap<Integer, Long> originatedAt = new HashMap<Integer, Long>();
+  // areas whose origination was held back, and those of them not to be flooded as a delta
+  private HashSet<Integer> originationPending = new HashSet<Integer>();
+  private HashSet<Integer> pendingInFull = new HashSet<Integer>();
+
+  // flood changes of our own LSA as deltas against the previous instance when they are smaller
+  boolean deltaLSA = true;
+
+  // cost of our links unless given to attach/connect: per neighbour, or the default; in dynamic
+  // mode the cost follows the RTT, one unit per costUnitNanos
+  int defaultCost = 1;
+  HashMap<String, Integer> neighbourCosts = new HashMap<String, Integer>();
+  boolean dynamicCost = false;
+  long costUnitNanos = TimeUnit.MILLISECONDS.toNanos(1);
+  double costHysteresis = 0.25;
+
+  // the database is saved to this file periodically and on quit, and loaded back on start
+  SnapshotFile snapshotFile = null;
+  long snapshotIntervalMillis = 30000;
+  private long savedVersion = -1;
+
+  // LSA aging: our LSAs refreshed, LSAs of other routers flushed at MaxAge, flushed LSAs removed
+  long lsasRefreshed = 0;
+  long lsasFlushed = 0;
+  long lsasRemoved = 0;
+  // set by quit, our flushed LSAs are not originated again while the links go down
+  private volatile boolean quitting = false;
+
+  // the send command running, echoes are matched against it; every run is a new flow
+  private volatile DataProbe probe = null;
+  private AtomicInteger flows = new AtomicInteger();
+
   private volatile String userAnswer = "";
   private volatile boolean attachmentInProgess = false;
   private Object attachLock = new Object();
 
   // Helper methods -----------------------------------------------------------
 
-  private void closeSeveredConnections() {
-    // link thread close themselves, so we just need to check if the link is null
-    for (int i = 0; i < linkServices.length; i++) {
-      if (linkServices[i] != null && linkServices[i].link == null) {
-        linkServices[i] = null;
-      }
-    }
-  }
-  
-  // get available port
-  private int getAvailablePort() {
-    // First step is to close any severe connections
-    closeSeveredConnections();
-
-    // then we could check if the port is available... trying to avoid race conditions...
-    int ret = -1;
-    for (int i = 0; i < linkServices.length; i++) {
-      if (linkServices[i] == null) {
-        ret = i;
-        break;
-      }
-    }
-    return ret;
-  }
-
   // add link method
-  private void addLinkService(String processIP, short processPort, String simIP, int port, Socket socket, ObjectInputStream in, ObjectOutputStream out) {
+  private void addLinkService(String processIP, short processPort, String simIP, int port, Socket socket, PacketStream stream) {
     RouterDescription remoteRouter = new RouterDescription();
     remoteRouter.processIPAddress = processIP;
     remoteRouter.processPortNumber = processPort;
     remoteRouter.simulatedIPAddress = simIP;
 
-    linkServices[port] = new LinkService(new Link(rd, remoteRouter, socket, in, out));
+    ports.put(port, new LinkService(this, new Link(rd, remoteRouter, socket, stream)));
   }
 
-  // updates linkServices if need be, upon get
+  // link service at the given port, null if the port is free or its link was just severed
   private LinkService getLinkService(int index) {
-    LinkService ls = linkServices[index];
+    LinkService ls = ports.get(index);
     if (ls != null && ls.link == null) {
-      linkServices[index] = null;
       ls = null;
     }
     return ls;
   }
 
+  // link at the given port if its neighbour is adjacent, links may be closed by other threads
+  private Link adjacentLink(int index) {
+    LinkService ls = ports.get(index);
+    Link link = ls == null ? null : ls.link;
+    if (link == null || !RouterStatus.adjacent(link.targetRouter.status)) {
+      return null;
+    }
+    return link;
+  }
+
+  // Flooding -----------------------------------------------------------------
+
+  /**
+   * build a new instance of our own LSA in the given area from the adjacencies of the area that
+   * are TWO_WAY, install it and flood it to every neighbour in the area
+   */
+  void originateLSA(int area) {
+    originateLSA(area, deltaLSA);
+  }
+
+  private synchronized void originateLSA(final int area, boolean sendDelta) {
+    if (quitting) {
+      return;
+    }
+    long now = System.nanoTime();
+    Long last = originatedAt.get(area);
+    long left = last == null ? 0 : last + TimeUnit.MILLISECONDS.toNanos(minLSIntervalMillis) - now;
+    if (originationPending.contains(area) || left > 0) {
+      // coalesced into the origination at the end of the interval
+      metrics.originationsDeferred.increment();
+      if (!sendDelta) {
+        pendingInFull.add(area);
+      }
+      if (originationPending.add(area)) {
+        timers.schedule(new Runnable() {
+          public void run() {
+            originatePending(area);
+          }
+        }, TimeUnit.NANOSECONDS.toMillis(left) + 1);
+      }
+      return;
+    }
+    originatedAt.put(area, now);
+    LinkStateDatabase db = areas.get(area);
+    LSA previous = db.getLSA(rd.simulatedIPAddress);
+    LSA lsa = new LSA();
+    lsa.linkStateID = rd.simulatedIPAddress;
+    lsa.lsaSeqNumber = previous.lsaSeqNumber + 1;
+    lsa.originTime = System.currentTimeMillis();
+    LinkDescription self = new LinkDescription();
+    self.linkID = rd.simulatedIPAddress;
+    self.portNum = -1;
+    lsa.links.add(self);
+    for (int i : ports.usedPorts()) {
+      LinkService linkService = ports.get(i);
+      Link link = adjacentLink(i);
+      if (link != null && linkService != null && linkService.area == area) {
+        LinkDescription ld = new LinkDescription();
+        ld.linkID = link.targetRouter.simulatedIPAddress;
+        ld.portNum = i;
+        ld.cost = linkService.cost.get();
+        lsa.links.add(ld);
+      }
+    }
+    db.installLSA(lsa);
+    flood(area, lsa, sendDelta ? LSA.delta(previous, lsa) : null, null);
+    scheduleSummaries();
+  }
+
+  private synchronized void originatePending(int area) {
+    originationPending.remove(area);
+    originateLSA(area, deltaLSA && !pendingInFull.remove(area));
+  }
+
+  /**
+   * queue the LSA (or its delta, when not null) on every TWO_WAY link of the area except the one it
+   * came from
+   */
+  void flood(int area, LSA lsa, LSA delta, LinkService except) {
+    for (int i : ports.usedPorts()) {
+      LinkService linkService = ports.get(i);
+      if (linkService != except && linkService != null && linkService.area == area && adjacentLink(i) != null) {
+        linkService.floodQueue.add(lsa, delta);
+      }
+    }
+  }
+
+  /**
+   * a link reached TWO_WAY: announce the new adjacency and describe our database to the neighbour,
+   * which asks for the LSAs it is missing
+   */
+  void onLinkUp(LinkService linkService) {
+    startKeepalive(linkService);
+    originateLSA(linkService.area);
+    Vector<LSA> headers = new Vector<LSA>();
+    LinkStateDatabase db = linkService.lsd();
+    for (LSA lsa : db.snapshot().lsas.values()) {
+      if (!db.flushed(lsa)) {
+        headers.add(header(lsa.linkStateID, lsa.lsaSeqNumber));
+      }
+    }
+    linkService.setStatus(RouterStatus.EXCHANGE);
+    SOSPFPacket description = packetTo(linkService, SOSPFPacket.DBDESCRIPTION);
+    if (description != null) {
+      description.lsaArray = headers;
+      linkService.send(description);
+    }
+  }
+
+  /**
+   * a TWO_WAY link went down: announce that the adjacency is gone
+   */
+  void onLinkDown(LinkService linkService) {
+    originateLSA(linkService.area);
+  }
+
+  /**
+   * the measured cost of a link moved out of its hysteresis band: announce it
+   */
+  void onCostChange(LinkService linkService) {
+    Link link = linkService.link;
+    if (link != null && RouterStatus.adjacent(link.targetRouter.status)) {
+      originateLSA(linkService.area);
+    }
+  }
+
+  // cost of a new link to the given neighbour, until attach/connect set one
+  LinkCost newLinkCost(String simulatedIP) {
+    Integer configured = neighbourCosts.get(simulatedIP);
+    boolean fixed = configured != null;
+    return new LinkCost(fixed ? configured : defaultCost, dynamicCost && !fixed, costUnitNanos, costHysteresis);
+  }
+
+  // an LSA without links, naming an instance in database descriptions and requests
+  private static LSA header(String linkStateID, int lsaSeqNumber) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = linkStateID;
+    lsa.lsaSeqNumber = lsaSeqNumber;
+    return lsa;
+  }
+
+  // packet of the given type to the neighbour of the link, null if the link was severed
+  private SOSPFPacket packetTo(LinkService linkService, short type) {
+    Link link = linkService.link;
+    if (link == null) {
+      return null;
+    }
+    SOSPFPacket packet = new SOSPFPacket(link.sourceRouter.processIPAddress, link.sourceRouter.processPortNumber,
+        link.sourceRouter.simulatedIPAddress, link.targetRouter.simulatedIPAddress);
+    packet.sospfType = type;
+    return packet;
+  }
+
+  /**
+   * the neighbour described its database: request every LSA we do not hold or hold an older
+   * instance of, the link is FULL once they have all arrived
+   */
+  void receiveDatabaseDescription(LinkService from, SOSPFPacket packet) {
+    LinkStateDatabase db = from.lsd();
+    reconcile(db, packet);
+    Vector<LSA> missing = new Vector<LSA>();
+    if (packet.lsaArray != null) {
+      for (LSA header : packet.lsaArray) {
+        if (header.linkStateID.equals(rd.simulatedIPAddress)) {
+          continue; // a stale own LSA is taken over when it is flooded to us
+        }
+        LSA held = db.getLSA(header.linkStateID);
+        if (held == null || held.lsaSeqNumber < header.lsaSeqNumber) {
+          missing.add(header(header.linkStateID, header.lsaSeqNumber));
+          from.requested.put(header.linkStateID, header.lsaSeqNumber);
+        }
+      }
+    }
+    if (missing.isEmpty()) {
+      from.setStatus(RouterStatus.FULL);
+      return;
+    }
+    from.setStatus(RouterStatus.LOADING);
+    SOSPFPacket request = packetTo(from, SOSPFPacket.LSREQUEST);
+    if (request != null) {
+      request.lsaArray = missing;
+      from.send(request);
+    }
+  }
+
+  // drop the requests of a LOADING link answered by the given LSA, FULL when none are left
+  private void loaded(LinkService from, String linkStateID) {
+    Integer wanted = from.requested.get(linkStateID);
+    if (wanted == null) {
+      return;
+    }
+    LSA held = from.lsd().getLSA(linkStateID);
+    if (held != null && held.lsaSeqNumber >= wanted) {
+      from.requested.remove(linkStateID);
+      if (from.requested.isEmpty()) {
+        from.setStatus(RouterStatus.FULL);
+      }
+    }
+  }
+
+  /**
+   * install the LSAs of an LSAUPDATE that are newer than ours and flood them further, every LSA
+   * is acknowledged except deltas we cannot apply (the full LSA is requested instead). Duplicates
+   * are not flooded again; a neighbour sending an older instance than ours gets ours back. A
+   * MaxAge LSA we do not hold is only acknowledged, one arriving within minLSArrival of the
+   * instance it replaces is installed and flooded at the end of the interval
+   */
+  void receiveLSAUpdate(LinkService from, SOSPFPacket packet) {
+    if (packet.lsaArray == null) {
+      return;
+    }
+    LinkStateDatabase db = from.lsd();
+    boolean installed = false;
+    Vector<LSA> missing = null;
+    Vector<LSA> acks = new Vector<LSA>(packet.lsaArray.size());
+    for (LSA received : packet.lsaArray) {
+      LSA lsa = received.nextHop();
+      // a neighbour sending an instance holds it, as good as an ack of what we sent it
+      from.retransmit.acknowledge(lsa.linkStateID, lsa.lsaSeqNumber, false);
+      LSA delta = null;
+      if (lsa.delta) {
+        LSA base = db.getLSA(lsa.linkStateID);
+        if (base != null && base.lsaSeqNumber >= lsa.lsaSeqNumber) {
+          // we already have this instance or a newer one
+          acks.add(header(lsa.linkStateID, lsa.lsaSeqNumber));
+          if (base.lsaSeqNumber > lsa.lsaSeqNumber) {
+            from.floodQueue.add(base);
+          }
+          continue;
+        }
+        if (base == null || base.lsaSeqNumber != lsa.baseSeqNumber) {
+          // we do not hold the instance the delta was made against, ask for the full LSA
+          if (missing == null) {
+            missing = new Vector<LSA>();
+          }
+          missing.add(header(lsa.linkStateID, lsa.lsaSeqNumber));
+          continue;
+        }
+        delta = lsa;
+        lsa = delta.applyTo(base);
+      }
+      acks.add(header(lsa.linkStateID, lsa.lsaSeqNumber));
+      if (lsa.linkStateID.equals(rd.simulatedIPAddress)) {
+        // an old instance of our own LSA (e.g. from before a restart) outlived us: take over its
+        // sequence number so our current LSA wins everywhere
+        synchronized (this) {
+          LSA own = db.getLSA(rd.simulatedIPAddress);
+          if (lsa.lsaSeqNumber > own.lsaSeqNumber) {
+            LSA bumped = new LSA();
+            bumped.linkStateID = own.linkStateID;
+            bumped.lsaSeqNumber = lsa.lsaSeqNumber;
+            bumped.originTime = System.currentTimeMillis();
+            bumped.links = own.links;
+            db.installLSA(bumped);
+            // the neighbours hold a different instance under the bumped number, no delta against it
+            originateLSA(from.area, false);
+          } else if (lsa.lsaSeqNumber == own.lsaSeqNumber && db.flushed(lsa) && !db.flushed(own)) {
+            // our current instance was aged out on the way, a new one replaces the flushed copies
+            originateLSA(from.area, false);
+          }
+        }
+        continue;
+      }
+      if (db.flushed(lsa) && db.getLSA(lsa.linkStateID) == null) {
+        loaded(from, lsa.linkStateID);
+        continue;
+      }
+      long wait = db.arrivalWait(lsa, minLSArrivalMillis);
+      if (wait > 0) {
+        holdBack(db, from, lsa, wait);
+        continue;
+      }
+      if (lsa.summary && LSA.summaryRouter(lsa.linkStateID).equals(rd.simulatedIPAddress)) {
+        // an old summary of ours: installed like any other, and replaced (or withdrawn) right after
+        summarized = true;
+      }
+      if (db.installLSA(lsa)) {
+        db.provisional.remove(lsa.linkStateID);
+        installed = true;
+        flood(from.area, lsa, delta, from);
+      } else {
+        LSA held = db.getLSA(lsa.linkStateID);
+        if (held != null && (held.lsaSeqNumber > lsa.lsaSeqNumber
+            || (held.lsaSeqNumber == lsa.lsaSeqNumber && db.flushed(held) && !db.flushed(lsa)))) {
+          from.floodQueue.add(held);
+        }
+      }
+      loaded(from, lsa.linkStateID);
+    }
+    if (installed) {
+      scheduleSummaries();
+    }
+    if (!acks.isEmpty()) {
+      SOSPFPacket ack = packetTo(from, SOSPFPacket.LSACK);
+      if (ack != null) {
+        ack.lsaArray = acks;
+        from.send(ack);
+      }
+    }
+    if (missing != null) {
+      SOSPFPacket request = packetTo(from, SOSPFPacket.LSREQUEST);
+      if (request != null) {
+        request.lsaArray = missing;
+        from.send(request);
+      }
+    }
+  }
+
+  // keep an LSA that arrived too soon until the instance it replaces has been installed for
+  // minLSArrival, only the newest of those arriving meanwhile is installed
+  private void holdBack(final LinkStateDatabase db, LinkService from, final LSA lsa, long wait) {
+    final boolean[] first = {false};
+    LinkStateDatabase.Early kept = db.early.compute(lsa.linkStateID, (id, previous) -> {
+      if (previous == null) {
+        first[0] = true;
+      } else if (!db.newer(lsa, previous.lsa)) {
+        return previous;
+      }
+      return new LinkStateDatabase.Early(lsa, from);
+    });
+    if (kept.lsa == lsa) {
+      metrics.lsasTooSoon.increment();
+    }
+    if (first[0]) {
+      timers.schedule(new Runnable() {
+        public void run() {
+          installEarly(db, lsa.linkStateID);
+        }
+      }, wait);
+    }
+  }
+
+  private void installEarly(LinkStateDatabase db, String linkStateID) {
+    LinkStateDatabase.Early e = db.early.remove(linkStateID);
+    if (e == null) {
+      return;
+    }
+    if (db.installLSA(e.lsa)) {
+      db.provisional.remove(linkStateID);
+      flood(db.area, e.lsa, null, e.from);
+      scheduleSummaries();
+    }
+    loaded(e.from, linkStateID);
+  }
+
+  /**
+   * a neighbour acknowledged LSAs we flooded to it
+   */
+  void receiveLSAck(LinkService from, SOSPFPacket packet) {
+    if (packet.lsaArray == null) {
+      return;
+    }
+    for (LSA header : packet.lsaArray) {
+      from.retransmit.acknowledge(header.linkStateID, header.lsaSeqNumber, true);
+    }
+  }
+
+  /**
+   * a neighbour could not apply a delta: queue the full LSAs it asked for on its link
+   */
+  void receiveLSRequest(LinkService from, SOSPFPacket packet) {
+    if (packet.lsaArray == null) {
+      return;
+    }
+    LinkStateDatabase db = from.lsd();
+    for (LSA wanted : packet.lsaArray) {
+      LSA lsa = db.getLSA(wanted.linkStateID);
+      if (lsa != null) {
+        from.floodQueue.add(lsa);
+      }
+    }
+  }
+
+  // Areas --------------------------------------------------------------------
+
+  // area of a link to the given neighbour
+  int areaOf(String simulatedIP) {
+    Integer configured = neighbourAreas.get(simulatedIP);
+    return configured != null ? configured : areas.home;
+  }
+
+  /**
+   * areas we have at least one TWO_WAY link in, more than one makes us an area border router
+   */
+  Set<Integer> adjacentAreas() {
+    TreeSet<Integer> adjacent = new TreeSet<Integer>();
+    for (int i : ports.usedPorts()) {
+      LinkService linkService = ports.get(i);
+      if (linkService != null && adjacentLink(i) != null) {
+        adjacent.add(linkService.area);
+      }
+    }
+    return adjacent;
+  }
+
+  /**
+   * routes in one of our areas may have changed: bring our summary LSAs up to date shortly, once
+   * for a whole burst of changes and no sooner than minLSInterval after the last ones. Nothing to
+   * do for a router inside a single area
+   */
+  void scheduleSummaries() {
+    if (quitting || (areas.ids().size() < 2 && !summarized)) {
+      return;
+    }
+    if (!summariesPending.compareAndSet(false, true)) {
+      return;
+    }
+    long delay = SUMMARY_DELAY_MILLIS;
+    if (summarizedAt != 0) {
+      long left = summarizedAt + TimeUnit.MILLISECONDS.toNanos(minLSIntervalMillis) - System.nanoTime();
+      delay = Math.max(delay, TimeUnit.NANOSECONDS.toMillis(left) + 1);
+    }
+    timers.schedule(new Runnable() {
+      public void run() {
+        summariesPending.set(false);
+        originateSummaries(-1);
+      }
+    }, delay);
+  }
+
+  /**
+   * originate our summary LSA into every area where what we reach outside of it changed, and
+   * again into the area to refresh (-1 for none). A summary left with nothing to advertise is
+   * flushed
+   */
+  private synchronized void originateSummaries(int refreshArea) {
+    if (quitting) {
+      return;
+    }
+    Set<Integer> adjacent = adjacentAreas();
+    String summaryID = LSA.summaryID(rd.simulatedIPAddress);
+    for (int area : areas.ids()) {
+      LinkStateDatabase db = areas.get(area);
+      List<LinkDescription> links = areas.summarize(area, adjacent);
+      LSA previous = db.getLSA(summaryID);
+      boolean held = previous != null && !db.flushed(previous);
+      if (held && links.isEmpty()) {
+        flush(db, previous);
+        continue;
+      }
+      if (held ? previous.links.equals(links) && area != refreshArea : links.isEmpty()) {
+        continue;
+      }
+      LSA lsa = new LSA();
+      lsa.linkStateID = summaryID;
+      lsa.summary = true;
+      lsa.lsaSeqNumber = previous == null ? Integer.MIN_VALUE + 1 : previous.lsaSeqNumber + 1;
+      lsa.originTime = System.currentTimeMillis();
+      lsa.links.addAll(links);
+      db.installLSA(lsa);
+      summarized = true;
+      summarizedAt = System.nanoTime() | 1;
+      flood(area, lsa, deltaLSA && held ? LSA.delta(previous, lsa) : null, null);
+    }
+  }
+
+  // Aging --------------------------------------------------------------------
+
+  private void scheduleAging() {
+    timers.schedule(new Runnable() {
+      public void run() {
+        ageLSAs();
+        scheduleAging();
+      }
+    }, AGING_TICK_MILLIS);
+  }
+
+  /**
+   * refresh our LSAs due for it, flush the LSAs of other routers that reached MaxAge and remove
+   * the flushed ones held long enough
+   */
+  void ageLSAs() {
+    long now = System.nanoTime();
+    String summaryID = LSA.summaryID(rd.simulatedIPAddress);
+    boolean changed = false;
+    for (LinkStateDatabase db : areas.all()) {
+      for (LSA lsa : db.due(now)) {
+        if (lsa.linkStateID.equals(rd.simulatedIPAddress)) {
+          // a flushed own LSA only exists while quitting, it stays until we are gone
+          if (!db.flushed(lsa)) {
+            originateLSA(db.area);
+            lsasRefreshed++;
+          }
+        } else if (lsa.linkStateID.equals(summaryID) && !db.flushed(lsa)) {
+          originateSummaries(db.area);
+          lsasRefreshed++;
+        } else if (db.flushed(lsa)) {
+          db.removeLSA(lsa.linkStateID);
+          db.provisional.remove(lsa.linkStateID);
+          lsasRemoved++;
+        } else {
+          // its router stopped refreshing it: gone without a word, or cut off from us
+          flush(db, lsa);
+          lsasFlushed++;
+          changed = true;
+        }
+      }
+    }
+    if (changed) {
+      scheduleSummaries();
+    }
+  }
+
+  // install the MaxAge copy of the LSA and flood it through the area
+  private void flush(LinkStateDatabase db, LSA lsa) {
+    LSA flushed = lsa.aged(db.maxAgeSeconds);
+    if (db.installLSA(flushed)) {
+      flood(db.area, flushed, null, null);
+    }
+  }
+
+  // Data plane ---------------------------------------------------------------
+
+  /**
+   * a DATA packet arrived: forward it, or deliver it and send the echo back to its source
+   */
+  void receiveData(LinkService from, SOSPFPacket packet) {
+    if (!rd.simulatedIPAddress.equals(packet.dstIP)) {
+      forwardData(packet, false);
+      return;
+    }
+    if (packet.reply) {
+      DataProbe running = probe;
+      if (running != null) {
+        running.replied(packet);
+      }
+      return;
+    }
+    metrics.dataDelivered.increment();
+    SOSPFPacket echo = dataPacket(packet.srcIP, packet.seq, packet.flowID, null);
+    echo.reply = true;
+    echo.timestamp = packet.timestamp;
+    echo.hops = packet.hops;
+    forwardData(echo, false);
+  }
+
+  private SOSPFPacket dataPacket(String destinationIP, int seq, int flowID, byte[] payload) {
+    SOSPFPacket packet = new SOSPFPacket(rd.processIPAddress, rd.processPortNumber, rd.simulatedIPAddress, destinationIP);
+    packet.sospfType = SOSPFPacket.DATA;
+    packet.seq = seq;
+    packet.flowID = flowID;
+    packet.ttl = DATA_TTL;
+    packet.payload = payload;
+    return packet;
+  }
+
+  /**
+   * queue a DATA packet on the link to the next hop the FIB gives for its flow; only the source
+   * may wait for room in the queue, a forwarding router drops the packet instead
+   *
+   * @return false if the packet was dropped
+   */
+  private boolean forwardData(SOSPFPacket packet, boolean mayWait) {
+    LinkService next = null;
+    if (packet.ttl > 0) {
+      ForwardingTable.Route route = areas.fib().lookup(packet.dstIP);
+      String nextHop = route == null ? null : route.nextHop(ForwardingTable.flowHash(packet.srcIP, packet.dstIP, packet.flowID));
+      next = nextHop == null ? null : linkTo(nextHop);
+    }
+    if (next == null) {
+      metrics.dataDropped.increment();
+      return false;
+    }
+    packet.ttl--;
+    packet.hops++;
+    boolean queued = mayWait ? next.outbound.send(packet) : next.outbound.offer(packet);
+    if (queued) {
+      metrics.dataForwarded.increment();
+    } else {
+      metrics.dataDropped.increment();
+    }
+    return queued;
+  }
+
+  // link service of the adjacency with the given neighbour, null if there is none
+  private LinkService linkTo(String neighbourIP) {
+    LinkService linkService = ports.lookup(neighbourIP);
+    Link link = linkService == null ? null : linkService.link;
+    if (link == null || !RouterStatus.adjacent(link.targetRouter.status)) {
+      return null;
+    }
+    return linkService;
+  }
+
+  // Keep-alive ---------------------------------------------------------------
+
+  /**
+   * send periodic HELLOs on an adjacency and watch it for the dead interval, both timers stop by
+   * themselves once the link is closed
+   */
+  void startKeepalive(final LinkService linkService) {
+    if (helloIntervalMillis <= 0) {
+      return;
+    }
+    linkService.lastHeard = System.nanoTime();
+    timers.schedule(new Runnable() {
+      public void run() {
+        sendHello(linkService);
+      }
+    }, helloIntervalMillis);
+    timers.schedule(new Runnable() {
+      public void run() {
+        checkDead(linkService);
+      }
+    }, deadIntervalMillis);
+  }
+
+  private void sendHello(final LinkService linkService) {
+    SOSPFPacket hello = packetTo(linkService, SOSPFPacket.HELLO);
+    if (hello == null) {
+      return;
+    }
+    linkService.send(hello);
+    timers.schedule(new Runnable() {
+      public void run() {
+        sendHello(linkService);
+      }
+    }, helloIntervalMillis);
+  }
+
+  // instead of re-arming the dead timer on every packet, it re-arms itself for what is left of the
+  // interval counted from the last packet heard
+  private void checkDead(final LinkService linkService) {
+    Link link = linkService.link;
+    if (link == null) {
+      return;
+    }
+    long silentMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - linkService.lastHeard);
+    if (silentMillis < deadIntervalMillis) {
+      timers.schedule(new Runnable() {
+        public void run() {
+          checkDead(linkService);
+        }
+      }, deadIntervalMillis - silentMillis);
+      return;
+    }
+    synchronized (this) {
+      deadNeighbours++;
+      totalSilenceMillis += silentMillis;
+      maxSilenceMillis = Math.max(maxSilenceMillis, silentMillis);
+    }
+    System.out.print("\nNothing heard from " + link.targetRouter.simulatedIPAddress + " for " + silentMillis
+        + " ms, declaring it dead. Closing connection.\n>> ");
+    linkService.closeConnection();
+  }
+
+  // Warm restart -------------------------------------------------------------
+
+  /**
+   * install the LSAs of the snapshot as provisional state in the database of their area, routes
+   * are available before any neighbour is up. Our own LSA only gives back its sequence number, the
+   * adjacencies it lists have to come up again
+   */
+  void loadSnapshot() {
+    long start = System.nanoTime();
+    Map<Integer, List<LSA>> saved;
+    try {
+      saved = snapshotFile.load();
+    } catch (IOException e) {
+      System.out.println("SNAPSHOT ERROR: could not load " + snapshotFile.path() + ", starting empty;");
+      e.printStackTrace();
+      return;
+    }
+    if (saved.isEmpty()) {
+      return;
+    }
+    // the LSAs kept aging while we were down
+    long downSeconds = Math.max(0, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - snapshotFile.savedAt));
+    int loaded = 0;
+    for (Map.Entry<Integer, List<LSA>> area : saved.entrySet()) {
+      LinkStateDatabase db = areas.get(area.getKey());
+      for (LSA lsa : area.getValue()) {
+        loaded++;
+        lsa.age = (int) Math.min(db.maxAgeSeconds, lsa.age + downSeconds);
+        if (lsa.linkStateID.equals(rd.simulatedIPAddress)) {
+          LSA own = db.getLSA(rd.simulatedIPAddress);
+          LSA resumed = new LSA();
+          resumed.linkStateID = own.linkStateID;
+          resumed.lsaSeqNumber = lsa.lsaSeqNumber;
+          resumed.links = own.links;
+          db.installLSA(resumed);
+        } else if (!db.flushed(lsa)) {
+          lsa.originTime = 0; // not an arrival to trace
+          if (db.installLSA(lsa)) {
+            db.provisional.add(lsa.linkStateID);
+          }
+        }
+      }
+    }
+    System.out.println("Loaded " + loaded + " LSAs in " + saved.size() + " areas from " + snapshotFile.path() + " in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+  }
+
+  /**
+   * write the database of every area to the snapshot file if one changed since the last save
+   */
+  synchronized void saveSnapshot() {
+    TreeMap<Integer, Collection<LSA>> lsas = new TreeMap<Integer, Collection<LSA>>();
+    long version = 0;
+    for (int area : areas.ids()) {
+      LinkStateDatabase.Snapshot s = areas.get(area).snapshot();
+      lsas.put(area, s.lsas.values());
+      version += s.version + 1;
+    }
+    if (version == savedVersion) {
+      return;
+    }
+    try {
+      snapshotFile.save(lsas);
+      savedVersion = version;
+    } catch (IOException e) {
+      System.out.println("SNAPSHOT ERROR: could not save " + snapshotFile.path() + ";");
+      e.printStackTrace();
+    }
+  }
+
+  private void scheduleSnapshot() {
+    timers.schedule(new Runnable() {
+      public void run() {
+        saveSnapshot();
+        scheduleSnapshot();
+      }
+    }, snapshotIntervalMillis);
+  }
+
+  // a neighbour described its database: provisional LSAs it holds the same instance of are
+  // confirmed, newer instances are fetched by the exchange. One neighbour missing an LSA says
+  // nothing, it may have restarted too; LSAs nobody confirms age out, and the router of one gone
+  // while we were down is unreachable as soon as the current LSAs of its neighbours drop it
+  private void reconcile(LinkStateDatabase db, SOSPFPacket description) {
+    if (db.provisional.isEmpty() || description.lsaArray == null) {
+      return;
+    }
+    for (LSA header : description.lsaArray) {
+      LSA held = db.getLSA(header.linkStateID);
+      if (held != null && held.lsaSeqNumber <= header.lsaSeqNumber) {
+        db.provisional.remove(header.linkStateID);
+      }
+    }
+  }
+
   // --------------------------------------------------------------------------
 
   public Router(Configuration config) {
+    this(config, new TimingWheel("router-timers", 10, 512));
+  }
+
+  /**
+   * a router whose timers run on the given wheel, so many routers can share one thread
+   */
+  public Router(Configuration config, TimingWheel timers) {
+    this.timers = timers;
     rd.simulatedIPAddress = config.getString("socs.network.router.ip");
     rd.processIPAddress = config.getString("socs.network.router.processIP");
     rd.processPortNumber = Short.parseShort(config.getString("socs.network.router.processPort"));
-    lsd = new LinkStateDatabase(rd);
+    areas = new Areas(this, config.hasPath("socs.network.router.area") ? config.getInt("socs.network.router.area") : Areas.BACKBONE);
+    lsd = areas.home();
+    int maxPorts = DEFAULT_MAX_PORTS;
+    if (config.hasPath("socs.network.router.maxPorts")) {
+      maxPorts = config.getInt("socs.network.router.maxPorts");
+    }
+    ports = new PortTable(maxPorts);
+    metrics = new RouterMetrics(this, maxPorts);
+    if (!config.hasPath("socs.network.router.jmx") || config.getBoolean("socs.network.router.jmx")) {
+      metrics.register();
+    }
+    if (config.hasPath("socs.network.router.floodPacingMs")) {
+      floodPacingMillis = config.getInt("socs.network.router.floodPacingMs");
+    }
+    if (config.hasPath("socs.network.router.retransmitIntervalMs")) {
+      retransmitIntervalMillis = config.getInt("socs.network.router.retransmitIntervalMs");
+    }
+    if (config.hasPath("socs.network.router.helloIntervalMs")) {
+      helloIntervalMillis = config.getInt("socs.network.router.helloIntervalMs");
+      deadIntervalMillis = 4 * helloIntervalMillis;
+    }
+    if (config.hasPath("socs.network.router.deadIntervalMs")) {
+      deadIntervalMillis = config.getInt("socs.network.router.deadIntervalMs");
+    }
+    if (config.hasPath("socs.network.router.outboundQueue")) {
+      outboundCapacity = config.getInt("socs.network.router.outboundQueue");
+    }
+    if (config.hasPath("socs.network.router.outboundFullPolicy")) {
+      outboundPolicy = OutboundQueue.FullPolicy.parse(config.getString("socs.network.router.outboundFullPolicy"));
+    }
+    if (config.hasPath("socs.network.router.deltaLSA")) {
+      deltaLSA = config.getBoolean("socs.network.router.deltaLSA");
+    }
+    if (config.hasPath("socs.network.router.spf.verify")) {
+      lsd.verifySpf = config.getBoolean("socs.network.router.spf.verify");
+    }
+    if (config.hasPath("socs.network.router.wireFormat")) {
+      wireFormat = WireFormat.parse(config.getString("socs.network.router.wireFormat"));
+    }
+    if (config.hasPath("socs.network.router.transport")) {
+      transport = config.getString("socs.network.router.transport");
+    }
+    if (config.hasPath("socs.network.router.cost")) {
+      defaultCost = config.getInt("socs.network.router.cost");
+    }
+    if (config.hasPath("socs.network.router.costs")) {
+      // "192.168.1.2=10, 192.168.1.3=5"
+      for (String entry : config.getString("socs.network.router.costs").split(",")) {
+        String[] pair = entry.trim().split("=");
+        if (pair.length == 2) {
+          neighbourCosts.put(pair[0].trim(), Integer.parseInt(pair[1].trim()));
+        }
+      }
+    }
+    if (config.hasPath("socs.network.router.areas")) {
+      // "192.168.1.3=1, 192.168.1.4=1"
+      for (String entry : config.getString("socs.network.router.areas").split(",")) {
+        String[] pair = entry.trim().split("=");
+        if (pair.length == 2) {
+          neighbourAreas.put(pair[0].trim(), Integer.parseInt(pair[1].trim()));
+        }
+      }
+    }
+    if (config.hasPath("socs.network.router.dynamicCost")) {
+      dynamicCost = config.getBoolean("socs.network.router.dynamicCost");
+    }
+    if (config.hasPath("socs.network.router.costUnitMicros")) {
+      costUnitNanos = TimeUnit.MICROSECONDS.toNanos(config.getInt("socs.network.router.costUnitMicros"));
+    }
+    if (config.hasPath("socs.network.router.costHysteresis")) {
+      costHysteresis = config.getDouble("socs.network.router.costHysteresis");
+    }
+    int maxAgeSeconds = LSA.MAX_AGE;
+    int refreshSeconds = LSA.REFRESH_TIME;
+    if (config.hasPath("socs.network.router.maxAgeSec")) {
+      maxAgeSeconds = config.getInt("socs.network.router.maxAgeSec");
+      refreshSeconds = Math.min(refreshSeconds, maxAgeSeconds / 2);
+    }
+    if (config.hasPath("socs.network.router.refreshIntervalSec")) {
+      refreshSeconds = config.getInt("socs.network.router.refreshIntervalSec");
+    }
+    if (refreshSeconds <= 0 || refreshSeconds >= maxAgeSeconds) {
+      System.out.println("CONFIG ERROR: refresh interval " + refreshSeconds + " s not below the max age " + maxAgeSeconds
+          + " s, using " + maxAgeSeconds / 2 + " s;");
+      refreshSeconds = Math.max(1, maxAgeSeconds / 2);
+    }
+    // long enough for the flush to be retransmitted to a neighbour that missed it
+    long flushHoldMillis = Math.max(10000, 2 * retransmitIntervalMillis);
+    for (LinkStateDatabase db : areas.all()) {
+      db.setAging(maxAgeSeconds, refreshSeconds, flushHoldMillis);
+    }
+    if (config.hasPath("socs.network.router.spf.initialDelayMs")) {
+      spfInitialDelayMillis = config.getInt("socs.network.router.spf.initialDelayMs");
+    }
+    if (config.hasPath("socs.network.router.spf.holdMs")) {
+      spfHoldMillis = config.getInt("socs.network.router.spf.holdMs");
+    }
+    if (config.hasPath("socs.network.router.spf.maxWaitMs")) {
+      spfMaxWaitMillis = config.getInt("socs.network.router.spf.maxWaitMs");
+    }
+    for (LinkStateDatabase db : areas.all()) {
+      db.spfThrottle = new SpfThrottle(spfInitialDelayMillis, spfHoldMillis, spfMaxWaitMillis);
+      db.timers = timers;
+      db.afterHeldSync = this::scheduleSummaries;
+    }
+    if (config.hasPath("socs.network.router.minLSArrivalMs")) {
+      minLSArrivalMillis = config.getInt("socs.network.router.minLSArrivalMs");
+    }
+    if (config.hasPath("socs.network.router.minLSIntervalMs")) {
+      minLSIntervalMillis = config.getInt("socs.network.router.minLSIntervalMs");
+    }
+    if (config.hasPath("socs.network.router.snapshotIntervalMs")) {
+      snapshotIntervalMillis = config.getInt("socs.network.router.snapshotIntervalMs");
+    }
+    if (config.hasPath("socs.network.router.snapshot")) {
+      snapshotFile = new SnapshotFile(Paths.get(config.getString("socs.network.router.snapshot")));
+      loadSnapshot();
+      if (snapshotIntervalMillis > 0) {
+        scheduleSnapshot();
+      }
+    }
+    scheduleAging();
     //System.out.println("Simulated IP: " + rd.simulatedIPAddress);
     System.out.println("To attach to this router, run: attach " + rd.processIPAddress + " " + rd.processPortNumber + " " + rd.simulatedIPAddress);
     //System.out.println("Process Port Number: " + rd.processPortNumber);
@@ -97,7 +1069,113 @@ public class Router {
    * @param destinationIP the ip adderss of the destination simulated router
    */
   private void processDetect(String destinationIP) {
+    String path = areas.describePath(destinationIP);
+    if (path == null) {
+      System.out.println("DETECT ERROR: No path to " + destinationIP + ";");
+      return;
+    }
+    System.out.println(path);
+  }
 
+  /**
+   * output every shortest path to the given destination ip, one per line
+   */
+  private void processDetectAll(String destinationIP) {
+    String paths = areas.describePaths(destinationIP, MAX_DETECT_PATHS);
+    if (paths == null) {
+      System.out.println("DETECT ERROR: No path to " + destinationIP + ";");
+      return;
+    }
+    System.out.println(paths);
+  }
+
+  /**
+   * output the equal-cost next hops to the given destination ip, and the one taken by the given
+   * flow of this router if any
+   */
+  private void processRoute(String destinationIP, Integer flowID) {
+    ForwardingTable.Route route = areas.route(destinationIP);
+    if (!route.reachable()) {
+      System.out.println("ROUTE ERROR: No path to " + destinationIP + ";");
+      return;
+    }
+    StringBuilder sb = new StringBuilder(destinationIP + " cost " + route.cost);
+    if (!route.nextHops.isEmpty()) {
+      sb.append(" via ").append(String.join(", ", route.nextHops));
+    }
+    if (route.border != null) {
+      sb.append(" (inter-area through ").append(route.border).append(")");
+    }
+    if (flowID != null) {
+      int hash = ForwardingTable.flowHash(rd.simulatedIPAddress, destinationIP, flowID);
+      sb.append("; flow ").append(flowID).append(" -> ").append(route.nextHop(hash));
+    }
+    System.out.println(sb);
+  }
+
+  /**
+   * compute the routes between every pair of routers of each area we hold a database of, output a
+   * summary per area and, if a file is given, dump the tables to it (see AllPairsRoutes)
+   */
+  private void processRoutesAll(String file) {
+    FileChannel out = null;
+    try {
+      if (file != null) {
+        out = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+      }
+      for (int area : areas.ids()) {
+        AllPairsRoutes routes = areas.get(area).allPairs(ForkJoinPool.commonPool());
+        System.out.println("area " + area + ": " + routes.summary());
+        if (out != null) {
+          routes.write(out, area);
+        }
+      }
+      if (out != null) {
+        System.out.println("Written to " + file + " (" + out.size() + " bytes)");
+      }
+    } catch (IllegalArgumentException e) {
+      System.out.println("ROUTES ERROR: " + e.getMessage() + ";");
+    } catch (IOException e) {
+      System.out.println("ROUTES ERROR: Cannot write " + file + ": " + e.getMessage() + ";");
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          // nothing more to report
+        }
+      }
+    }
+  }
+
+  /**
+   * send count DATA packets with a payload of the given size to the destination, as fast as the
+   * first link takes them, then output the send and delivery rates, the round-trip time and the
+   * latency per hop measured from the echoes
+   */
+  private void processSend(String destinationIP, int count, int size) throws InterruptedException {
+    if (count <= 0 || size < 0 || size > MAX_PAYLOAD) {
+      System.out.println("SEND ERROR: count must be positive and size between 0 and " + MAX_PAYLOAD + ";");
+      return;
+    }
+    if (destinationIP.equals(rd.simulatedIPAddress) || areas.fib().lookup(destinationIP) == null) {
+      System.out.println("SEND ERROR: No route to " + destinationIP + ";");
+      return;
+    }
+    DataProbe running = new DataProbe(destinationIP, count, size);
+    probe = running;
+    int flowID = flows.incrementAndGet();
+    byte[] payload = new byte[size];
+    for (int seq = 0; seq < count; seq++) {
+      SOSPFPacket packet = dataPacket(destinationIP, seq, flowID, payload);
+      packet.timestamp = System.nanoTime();
+      running.sent(forwardData(packet, true));
+    }
+    running.done();
+    running.await(ECHO_TIMEOUT_MILLIS);
+    probe = null;
+    System.out.println(running.report());
   }
 
   /**
@@ -108,27 +1186,28 @@ public class Router {
    */
   private void processDisconnect(short portNumber) {
     // Check if the port number is valid
-    if (portNumber < 0 || portNumber >= linkServices.length) {
+    if (portNumber < 0 || portNumber >= ports.size()) {
       System.out.println("DISCONNECT ERROR: Invalid port number;");
       return;
     }
     // Check if the link service is initialized
-    if (linkServices[portNumber] == null) {
+    LinkService linkService = getLinkService(portNumber);
+    if (linkService == null) {
       System.out.println("DISCONNECT ERROR: No link service at port " + portNumber + ";");
       return;
     }
 
-    System.out.println("Disconnecting from " + linkServices[portNumber].link.targetRouter.simulatedIPAddress + ";");
+    System.out.println("Disconnecting from " + linkService.link.targetRouter.simulatedIPAddress + ";");
     
     // Send QUIT message to the target router
     SOSPFPacket quitPacket = new SOSPFPacket();
     quitPacket.sospfType = 5; // QUIT type
     quitPacket.srcIP = rd.simulatedIPAddress;
-    linkServices[portNumber].send(quitPacket);
-    // Close the connection
-    linkServices[portNumber].stopThread();
-    linkServices[portNumber].closeConnection();
-    linkServices[portNumber] = null;
+    linkService.send(quitPacket);
+    linkService.outbound.flush(QUIT_FLUSH_MILLIS);
+    // Close the connection, this also gives the port back
+    linkService.stopThread();
+    linkService.closeConnection();
   }
 
   /**
@@ -136,8 +1215,10 @@ public class Router {
    * to establish the connection via socket, you need to indentify the process IP and process Port;
    * <p/>
    * NOTE: this command should not trigger link database synchronization
+   *
+   * @param cost static cost of the link, 0 for the configured one
    */
-  private int processAttach(String processIP, short processPort, String simulatedIP) {
+  private int processAttach(String processIP, short processPort, String simulatedIP, int cost) {
     // Check if the simulated IP is the same as the current router
     if (simulatedIP.equals(rd.simulatedIPAddress)) {
       System.out.println("ATTACHMENT ERROR: Can't attach the router to itself;");
@@ -147,47 +1228,66 @@ public class Router {
     // First create packet to send to the remote router, packet type 0 is an attach request
     SOSPFPacket attachRequestPacket = new SOSPFPacket(rd.processIPAddress, rd.processPortNumber, rd.simulatedIPAddress, simulatedIP);
     
-    // Check if we have available ports 
-    int availablePort = getAvailablePort();
+    // Check that we are not attached to this router already
+    if (ports.lookup(simulatedIP) != null) {
+      System.out.println("ATTACHMENT ERROR: Already attached to " + simulatedIP + ";");
+      return -1;
+    }
+
+    // Reserve an available port, it is given back if the attach fails
+    int availablePort = ports.allocate();
     if (availablePort == -1) {
         System.out.println("ATTACHMENT ERROR: No available ports;");
         return -1;
     }
 
     try {
-      // Create a socket to connect to target router (processIP, processPort)
-      Socket socket = new Socket(processIP, processPort);
-    
-      // Create input and output streams
-      ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-      ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+      Socket socket;
+      PacketStream stream;
+      if (nioTransport != null) {
+        // Connect a channel, the handshake below is blocking until the link is registered.
+        // The stream owns the channel, so the link gets no socket of its own
+        socket = null;
+        stream = nioTransport.connect(processIP, processPort);
+      } else {
+        // Create a socket to connect to target router (processIP, processPort)
+        socket = new Socket(processIP, processPort);
+
+        // Create the packet stream in the configured wire format
+        stream = PacketStream.open(socket, wireFormat);
+      }
 
       // Send the attach request packet
-      out.writeObject(attachRequestPacket);
-      out.flush();
+      stream.send(attachRequestPacket);
 
-      // Wait for response from the remote router, readObject will block until it receives something
-      // This should be a SOSPFPacket with type 2 or 3 (ACCEPTED or REJECTED respectively)
-      SOSPFPacket msgFromServer = (SOSPFPacket) in.readObject();
+      // Wait for response from the remote router, receive will block until it receives something
+      // This should be a SOSPFPacket with type 1 or 2 (ACCEPTED or REJECTED respectively)
+      SOSPFPacket msgFromServer = stream.receive();
       if (msgFromServer.sospfType == 1) {
         // Attach request accepted
-        addLinkService(processIP, processPort, simulatedIP, availablePort, socket, in, out);
+        metrics.attachAcceptedByPeer.increment();
+        addLinkService(processIP, processPort, simulatedIP, availablePort, socket, stream);
+        if (cost > 0) {
+          ports.get(availablePort).cost.setStatic(cost);
+        }
         // Start the link service thread to handle incoming packets
-        linkServices[availablePort].startThread();
+        ports.get(availablePort).startThread();
         System.out.println("Your attach request has been ACCEPTED;");
         return availablePort;
       } 
       else if (msgFromServer.sospfType == 2) {
         // Attach request rejected
-        in.close();
-        out.close();
-        socket.close();
+        metrics.attachRejectedByPeer.increment();
+        stream.close();
+        if (socket != null) {
+          socket.close();
+        }
         System.out.println("Your attach request has been REJECTED;");
-        return -1;
       }
     } catch (Exception e) {
       e.printStackTrace();
     }
+    ports.release(availablePort, null);
     return -1;
   }
 
@@ -228,73 +1328,92 @@ public class Router {
             continue;
           }
         }
-        // Create input and output streams for the socket
-        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+        // Create the packet stream for the socket, in the format the remote router speaks
+        PacketStream stream = PacketStream.accept(socket);
         // Read the incoming packet
-        requestPacket = (SOSPFPacket) in.readObject();
-
-        System.out.println("\nReceived attach request from " + requestPacket.srcIP + ";");
-
-        int availablePort = getAvailablePort();
-        if (availablePort == -1) {
-          // Inform the user that there are no available ports
-          System.out.print("Rejecting attach request from " + requestPacket.srcIP + " due to no available ports;\n>> ");
-          // No available ports, reject the request
-          SOSPFPacket rejectPacket = new SOSPFPacket();
-          rejectPacket.sospfType = 3;
-          out.writeObject(rejectPacket);
-          out.flush();
-          // Close the streams and the socket
-          in.close();
-          out.close();
-          socket.close();
-        } 
-        else {
-          System.out.print("Do you accept this request? (Y/N)\n>> ");
-          synchronized(attachLock) {
-            attachmentInProgess = true;
-            attachLock.wait();
-          }
-          // if user answers Y, then attach the remote router
-          if (userAnswer.equals("Y")) {
-            // User accepted the request to attach
-
-            // Create a link service for the new connection
-            addLinkService(requestPacket.srcProcessIP, requestPacket.srcProcessPort, requestPacket.srcIP, availablePort, socket, in, out);
-            linkServices[availablePort].startThread();
-
-            // Start the link service thread to handle incoming packets
-            
-            
-            // send SOSPF packet with ACCEPT Attach type
-            SOSPFPacket acceptPacket = new SOSPFPacket();
-            acceptPacket.sospfType = 1; // We need to put the other fields, but this is just for testing
-            out.writeObject(acceptPacket);
-            out.flush();
-          } 
-          else {
-            // User rejected the request to attach, send REJECT type
-
-            // Send SOSPF packet with REJECT type
-            SOSPFPacket rejectPacket = new SOSPFPacket();
-            rejectPacket.sospfType = 2; 
-            out.writeObject(rejectPacket);
-            out.flush();
-            // Close the streams and the socket
-            in.close();
-            out.close();
-            socket.close();
-          } 
-        }
+        requestPacket = stream.receive();
+        handleAttachRequest(socket, stream, requestPacket);
       }
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * decide on one attach request, which arrived on the given socket and stream. Called by the
+   * request handler thread, or by the attach worker of the non-blocking transport (in which case
+   * socket is null, the stream owns the channel).
+   */
+  void handleAttachRequest(Socket socket, PacketStream stream, SOSPFPacket requestPacket) throws Exception {
+    System.out.println("\nReceived attach request from " + requestPacket.srcIP + ";");
+
+    int availablePort = ports.lookup(requestPacket.srcIP) == null ? ports.allocate() : -1;
+    if (availablePort == -1) {
+      // Inform the user that there are no available ports
+      System.out.print("Rejecting attach request from " + requestPacket.srcIP + " due to no available ports (or already attached);\n>> ");
+      // No available ports, reject the request
+      metrics.attachRejected.increment();
+      SOSPFPacket rejectPacket = new SOSPFPacket();
+      rejectPacket.sospfType = 2;
+      stream.send(rejectPacket);
+      // Close the streams and the socket
+      stream.close();
+      if (socket != null) {
+        socket.close();
+      }
+    } 
+    else {
+      System.out.print("Do you accept this request? (Y/N)\n>> ");
+      synchronized(attachLock) {
+        attachmentInProgess = true;
+        attachLock.wait();
+      }
+      // if user answers Y, then attach the remote router
+      if (userAnswer.equals("Y")) {
+        // User accepted the request to attach
+        metrics.attachAccepted.increment();
+
+        // Create a link service for the new connection
+        addLinkService(requestPacket.srcProcessIP, requestPacket.srcProcessPort, requestPacket.srcIP, availablePort, socket, stream);
+        // Start the link service thread to handle incoming packets
+        ports.get(availablePort).startThread();
+
+        // send SOSPF packet with ACCEPT Attach type
+        SOSPFPacket acceptPacket = new SOSPFPacket();
+        acceptPacket.sospfType = 1; // We need to put the other fields, but this is just for testing
+        stream.send(acceptPacket);
+      } 
+      else {
+        // User rejected the request to attach, send REJECT type
+        metrics.attachRejected.increment();
+        ports.release(availablePort, null);
+
+        // Send SOSPF packet with REJECT type
+        SOSPFPacket rejectPacket = new SOSPFPacket();
+        rejectPacket.sospfType = 2; 
+        stream.send(rejectPacket);
+        // Close the streams and the socket
+        stream.close();
+        if (socket != null) {
+          socket.close();
+        }
+      } 
+    }
+  }
+
   // TODO : function name is misleading, should be startRequestHandler. Also, is there another way to start the thread?
   public void start() {
+    if (transport.equals("nio")) {
+      // The selector thread accepts connections and serves every link
+      try {
+        nioTransport = new NioTransport(this);
+        nioTransport.start(rd.processPortNumber);
+      } catch (IOException e) {
+        System.out.println("Failed to start the non-blocking transport;");
+        e.printStackTrace();
+      }
+      return;
+    }
     // Start the request handler thread
     requestHandlerThread = new Thread(new Runnable() {
       public void run() {
@@ -310,26 +1429,16 @@ public class Router {
    */
   private void processStart() {
     // Send HELLO message through all initialized link services
-    for (int i = 0; i < linkServices.length; i++) {
-      if (linkServices[i] == null) {
-        // Link service at this port is not initialized
+    for (int i : ports.usedPorts()) {
+      LinkService linkService = getLinkService(i);
+      if (linkService == null) {
+        // Link at this port was severed meanwhile
         continue;
       }
       // Maybe we do some checks here to see if the link service is alive and link
 
-      // Create a new HELLO packet
-      SOSPFPacket helloPacket = new SOSPFPacket(rd.processIPAddress, rd.processPortNumber, rd.simulatedIPAddress, linkServices[i].link.targetRouter.simulatedIPAddress);
-      helloPacket.sospfType = 3; // HELLO type
-
-      // If the link is already set to TWO_WAY, then don't change the status to INIT
-      if (linkServices[i].link.targetRouter.status != RouterStatus.TWO_WAY) {
-        // Set to INIT so we expect a hello back and set to TWO_WAY
-        linkServices[i].link.targetRouter.status = RouterStatus.INIT;
-      }
-      // Send the HELLO packet, first is to confirm two way communication from this router
-      linkServices[i].send(helloPacket);
+      sayHello(linkService);
     }
-    // TODO : link database synchronization
   }
 
   /**
@@ -337,8 +1446,10 @@ public class Router {
    * to establish the connection via socket, you need to indentify the process IP and process Port;
    * <p/>
    * This command does trigger the link database synchronization
+   *
+   * @param cost static cost of the link, 0 for the configured one
    */
-  private void processConnect(String processIP, short processPort, String simulatedIP) {
+  private void processConnect(String processIP, short processPort, String simulatedIP, int cost) {
     // check if we are trying to connect to ourselves
     if (simulatedIP.equals(rd.simulatedIPAddress)) {
       System.out.println("Connection failed: Can't connect to itself;");
@@ -346,32 +1457,67 @@ public class Router {
     }
 
     // check if we have available ports
-    int availablePort = getAvailablePort();
-    if (availablePort == -1) {
+    if (ports.freePorts() == 0) {
       System.out.println("Connection failed: No available ports;");
       return;
     }
 
     // First attach the router
     System.out.println("Attaching to " + simulatedIP + ". Waiting for response...");
-    int portUsed = processAttach(processIP, processPort, simulatedIP);
+    int portUsed = processAttach(processIP, processPort, simulatedIP, cost);
     if (portUsed == -1) {
       System.out.println("Connection failed: No available ports;");
       return;
     }
     // Then start the router
     System.out.println("Starting link connection...");
+    LinkService linkService = getLinkService(portUsed);
+    if (linkService == null) {
+      System.out.println("Connection failed: Link severed;");
+      return;
+    }
+    sayHello(linkService);
+  }
+
+  // first HELLO on a link, the neighbour answers and the link goes INIT then TWO_WAY
+  private void sayHello(LinkService linkService) {
     // Create a new HELLO packet
-    SOSPFPacket helloPacket = new SOSPFPacket(rd.processIPAddress, rd.processPortNumber, rd.simulatedIPAddress, linkServices[portUsed].link.targetRouter.simulatedIPAddress);
+    SOSPFPacket helloPacket = new SOSPFPacket(rd.processIPAddress, rd.processPortNumber, rd.simulatedIPAddress, linkService.link.targetRouter.simulatedIPAddress);
     helloPacket.sospfType = 3; // HELLO type
 
     // If the link is already set to TWO_WAY, then don't change the status to INIT
-    if (linkServices[portUsed].link.targetRouter.status != RouterStatus.TWO_WAY) {
+    if (!RouterStatus.adjacent(linkService.link.targetRouter.status)) {
       // Set to INIT so we expect a hello back and set to TWO_WAY
-      linkServices[portUsed].link.targetRouter.status = RouterStatus.INIT;
+      linkService.link.targetRouter.status = RouterStatus.INIT;
     }
     // Send the HELLO packet, first is to confirm two way communication from this router
-    linkServices[portUsed].send(helloPacket);
+    linkService.send(helloPacket);
+  }
+
+  /**
+   * attach a neighbour over an already connected stream, skipping the attach handshake
+   * (used by the in-process Simulation)
+   *
+   * @return the port used, or -1 if no port is free
+   */
+  int attachStream(RouterDescription remote, PacketStream stream) {
+    int port = ports.allocate();
+    if (port == -1) {
+      return -1;
+    }
+    addLinkService(remote.processIPAddress, remote.processPortNumber, remote.simulatedIPAddress, port, null, stream);
+    ports.get(port).startThread();
+    return port;
+  }
+
+  /**
+   * say HELLO on the link at the given port, as connect does once attached
+   */
+  void startLink(int port) {
+    LinkService linkService = getLinkService(port);
+    if (linkService != null) {
+      sayHello(linkService);
+    }
   }
 
   /**
@@ -379,10 +1525,9 @@ public class Router {
    */
   private void processNeighbors() {
     // Output the list of all the neighbors (set to TWO_WAY)
-    for (int i = 0; i < linkServices.length; i++) {
+    for (int i : ports.usedPorts()) {
       LinkService cur_linkserv = getLinkService(i);
       if (cur_linkserv == null) {
-        System.out.println("Port " + i + " : (Free)");
         continue;
       }
       // if link status is NULL, it means it's attach but not yet initialized
@@ -390,30 +1535,113 @@ public class Router {
         System.out.println("Port " + i + " : " + cur_linkserv.link.targetRouter.simulatedIPAddress + " (Attached, but not initialized)");
         continue;
       } else {
-        System.out.println("Port " + i + " : " + cur_linkserv.link.targetRouter.simulatedIPAddress + " (" + cur_linkserv.link.targetRouter.status + ")");
+        System.out.println("Port " + i + " : " + cur_linkserv.link.targetRouter.simulatedIPAddress + " (" + cur_linkserv.link.targetRouter.status + ") area " + cur_linkserv.area + ", " + cur_linkserv.cost);
+      }
+    }
+    System.out.println("Free ports: " + ports.freePorts() + " of " + ports.size());
+    System.out.println("Areas: " + areas + (adjacentAreas().size() > 1 ? ", area border router" : ""));
+  }
+
+  /**
+   * output the flood queue statistics of every link
+   */
+  private void processFlood() {
+    for (int i : ports.usedPorts()) {
+      LinkService linkService = getLinkService(i);
+      if (linkService != null) {
+        System.out.println("Port " + i + " : " + linkService.link.targetRouter.simulatedIPAddress + " " + linkService.floodQueue
+            + "; " + linkService.retransmit);
+      }
+    }
+  }
+
+  /**
+   * output the outbound queue of every link
+   */
+  private void processQueues() {
+    for (int i : ports.usedPorts()) {
+      LinkService linkService = getLinkService(i);
+      if (linkService != null) {
+        System.out.println("Port " + i + " : " + linkService.link.targetRouter.simulatedIPAddress + " " + linkService.outbound);
+      }
+    }
+  }
+
+  /**
+   * output the dead neighbour detections and the timing wheel statistics
+   */
+  private void processTimers() {
+    synchronized (this) {
+      System.out.println("Hello every " + helloIntervalMillis + " ms, dead after " + deadIntervalMillis + " ms");
+      System.out.println("Dead neighbours: " + deadNeighbours + ", detected after avg "
+          + (deadNeighbours == 0 ? 0 : totalSilenceMillis / deadNeighbours) + " ms, max " + maxSilenceMillis + " ms of silence");
+    }
+    long now = System.nanoTime();
+    for (int i : ports.usedPorts()) {
+      LinkService linkService = getLinkService(i);
+      if (linkService != null) {
+        System.out.println("Port " + i + " : " + linkService.link.targetRouter.simulatedIPAddress + " last heard "
+            + TimeUnit.NANOSECONDS.toMillis(now - linkService.lastHeard) + " ms ago");
       }
     }
+    System.out.println("Timing wheel: " + timers);
+  }
+
+  /**
+   * output when the LSA of the given router arrived and was routed on, or the distributions over
+   * every LSA received when no router is given
+   */
+  private void processTrace(String linkStateID) {
+    if (linkStateID == null) {
+      System.out.println(lsd.trace);
+    } else {
+      int area = areas.areaOf(linkStateID);
+      System.out.println((area == -1 ? lsd : areas.get(area)).trace.describe(linkStateID));
+    }
   }
 
   /**
    * disconnect with all neighbors and quit the program
    */
   private void processQuit() {
-    // TODO : Send Link State Update to all neighbors informing them that this router is going down
+    // flush our LSAs from every area instead of leaving them to age out, the disconnects that
+    // follow originate nothing more
+    quitting = true;
+    for (LinkStateDatabase db : areas.all()) {
+      for (String linkStateID : new String[]{rd.simulatedIPAddress, LSA.summaryID(rd.simulatedIPAddress)}) {
+        LSA own = db.getLSA(linkStateID);
+        if (own != null && !db.flushed(own)) {
+          flush(db, own);
+        }
+      }
+    }
+    for (int i : ports.usedPorts()) {
+      LinkService linkService = getLinkService(i);
+      if (linkService != null) {
+        linkService.floodQueue.flush(true);
+        linkService.outbound.flush(QUIT_FLUSH_MILLIS);
+      }
+    }
 
-    // First make sure that that servered connections are closed
-    closeSeveredConnections();
     // Close all connections using the processDisconnect method for each port with a link service
-    for (int i = 0; i < linkServices.length; i++) {
-      if (linkServices[i] != null) {
+    for (int i : ports.usedPorts()) {
+      if (getLinkService(i) != null) {
         processDisconnect((short) i);
       }
     }
 
-    // Close the request handler thread
+    if (snapshotFile != null) {
+      saveSnapshot();
+    }
+
+    // Close the request handler thread, or the selector thread
     try{
-      requestHandlerThread.interrupt();
-      requestHandlerThread.join();
+      if (nioTransport != null) {
+        nioTransport.stop();
+      } else {
+        requestHandlerThread.interrupt();
+        requestHandlerThread.join();
+      }
     } catch (InterruptedException e) {
         return;
     }
@@ -451,26 +1679,92 @@ public class Router {
         }
         if (command.startsWith("detect ")) {
           String[] cmdLine = command.split(" ");
-          processDetect(cmdLine[1]);
+          if (cmdLine.length > 2 && cmdLine[2].equals("all")) {
+            processDetectAll(cmdLine[1]);
+          } else {
+            processDetect(cmdLine[1]);
+          }
+        } else if (command.startsWith("route ")) {
+          String[] cmdLine = command.split(" ");
+          try {
+            processRoute(cmdLine[1], cmdLine.length > 2 ? Integer.valueOf(cmdLine[2]) : null);
+          } catch (NumberFormatException e) {
+            System.out.println("ROUTE ERROR: usage: route <dstIP> [flowID];");
+          }
+        } else if (command.equals("routes-all") || command.startsWith("routes-all ")) {
+          String[] cmdLine = command.split(" ");
+          processRoutesAll(cmdLine.length > 1 ? cmdLine[1] : null);
+        } else if (command.startsWith("send ")) {
+          String[] cmdLine = command.split(" ");
+          String usage = "SEND ERROR: usage: send <dstIP> <count> <size>;";
+          if (cmdLine.length < 4) {
+            System.out.println(usage);
+          } else {
+            try {
+              processSend(cmdLine[1], Integer.parseInt(cmdLine[2]), Integer.parseInt(cmdLine[3]));
+            } catch (NumberFormatException e) {
+              System.out.println(usage);
+            }
+          }
         } else if (command.startsWith("disconnect ")) {
           String[] cmdLine = command.split(" ");
-          processDisconnect(Short.parseShort(cmdLine[1]));
+          try {
+            processDisconnect(Short.parseShort(cmdLine[1]));
+          } catch (NumberFormatException e) {
+            System.out.println("DISCONNECT ERROR: usage: disconnect <port>;");
+          }
         } else if (command.startsWith("quit")) {
           processQuit();
           break;
         } else if (command.startsWith("attach ")) {
           String[] cmdLine = command.split(" ");
-          processAttach(cmdLine[1], Short.parseShort(cmdLine[2]),
-                  cmdLine[3] );
+          String usage = "ATTACH ERROR: usage: attach <processIP> <processPort> <simulatedIP> [cost];";
+          if (cmdLine.length < 4) {
+            System.out.println(usage);
+          } else {
+            try {
+              processAttach(cmdLine[1], Short.parseShort(cmdLine[2]),
+                      cmdLine[3], cmdLine.length > 4 ? Integer.parseInt(cmdLine[4]) : 0);
+            } catch (NumberFormatException e) {
+              System.out.println(usage);
+            }
+          }
         } else if (command.equals("start")) {
           processStart();
         } else if (command.startsWith("connect ")) {
           String[] cmdLine = command.split(" ");
-          processConnect(cmdLine[1], Short.parseShort(cmdLine[2]),
-                  cmdLine[3]);
+          String usage = "CONNECT ERROR: usage: connect <processIP> <processPort> <simulatedIP> [cost];";
+          if (cmdLine.length < 4) {
+            System.out.println(usage);
+          } else {
+            try {
+              processConnect(cmdLine[1], Short.parseShort(cmdLine[2]),
+                      cmdLine[3], cmdLine.length > 4 ? Integer.parseInt(cmdLine[4]) : 0);
+            } catch (NumberFormatException e) {
+              System.out.println(usage);
+            }
+          }
         } else if (command.equals("neighbors")) {
           //output neighbors
           processNeighbors();
+        } else if (command.equals("flood")) {
+          //output flooding statistics
+          processFlood();
+        } else if (command.equals("stats")) {
+          //output the router metrics
+          System.out.println(metrics.report());
+        } else if (command.equals("queues")) {
+          //output outbound queue statistics
+          processQueues();
+        } else if (command.equals("timers")) {
+          //output keep-alive and timer statistics
+          processTimers();
+        } else if (command.equals("trace")) {
+          //output convergence statistics
+          processTrace(null);
+        } else if (command.startsWith("trace ")) {
+          String[] cmdLine = command.split(" ");
+          processTrace(cmdLine[1]);
         }
         else {
           System.out.println("Invalid argument");
@@ -0,0 +1,44 @@
+package socs.network.node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * interns simulated IP addresses (linkStateIDs) to dense integers, so route computation can
+ * work on int arrays instead of hashing strings. ids are never reused or reassigned.
+ */
+public class RouterIds {
+
+  private HashMap<String, Integer> index = new HashMap<String, Integer>();
+  private ArrayList<String> names = new ArrayList<String>();
+
+  /**
+   * id of the given router, assigning the next free one if it was never seen
+   */
+  public synchronized int intern(String simulatedIP) {
+    Integer i = index.get(simulatedIP);
+    if (i != null) {
+      return i;
+    }
+    int id = names.size();
+    names.add(simulatedIP);
+    index.put(simulatedIP, id);
+    return id;
+  }
+
+  /**
+   * id of the given router, or -1 if it was never seen
+   */
+  public synchronized int lookup(String simulatedIP) {
+    Integer i = index.get(simulatedIP);
+    return i == null ? -1 : i;
+  }
+
+  public synchronized String name(int id) {
+    return names.get(id);
+  }
+
+  public synchronized int size() {
+    return names.size();
+  }
+}
@@ -0,0 +1,252 @@
+package socs.network.node;
+
+import socs.network.message.SOSPFPacket;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * counters of a router: packets and bytes per sospfType and per port, attach decisions, plus
+ * gauges read from the database and the queues when asked for.
+ * <p/>
+ * The counters are LongAdders, an update is an uncontended add on a per-thread cell, so the
+ * receive and send paths of every link can count without slowing each other down.
+ */
+public class RouterMetrics implements RouterMetricsMBean {
+
+  static final String[] TYPE_NAMES = {"ATTACH_REQUEST", "ACCEPT_ATTACH", "REJECT_ATTACH", "HELLO",
+      "ACCEPT_HELLO", "QUIT", "LSAUPDATE", "LSREQUEST", "DBDESCRIPTION", "LSACK", "DATA"};
+
+  private static final int IN = 0;
+  private static final int OUT = 1;
+
+  private Router router;
+
+  // [IN/OUT][sospfType]
+  private LongAdder[][] packetsByType = new LongAdder[2][SOSPFPacket.MAX_TYPE + 1];
+  private LongAdder[][] bytesByType = new LongAdder[2][SOSPFPacket.MAX_TYPE + 1];
+  // [IN/OUT][port]
+  private LongAdder[][] packetsByPort;
+  private LongAdder[][] bytesByPort;
+
+  // LSAs held back for arriving within minLSArrival of the previous instance, and originations of
+  // our own LSA held back by minLSInterval
+  final LongAdder lsasTooSoon = new LongAdder();
+  final LongAdder originationsDeferred = new LongAdder();
+  // DATA packets queued to a next hop (ours and forwarded), delivered to us, and dropped for lack
+  // of a route, an expired ttl or a full queue
+  final LongAdder dataForwarded = new LongAdder();
+  final LongAdder dataDelivered = new LongAdder();
+  final LongAdder dataDropped = new LongAdder();
+  // attach requests of neighbours we accepted or rejected
+  final LongAdder attachAccepted = new LongAdder();
+  final LongAdder attachRejected = new LongAdder();
+  // our attach requests the neighbours accepted or rejected
+  final LongAdder attachAcceptedByPeer = new LongAdder();
+  final LongAdder attachRejectedByPeer = new LongAdder();
+
+  RouterMetrics(Router router, int portCount) {
+    this.router = router;
+    packetsByPort = new LongAdder[2][portCount];
+    bytesByPort = new LongAdder[2][portCount];
+    for (int dir = IN; dir <= OUT; dir++) {
+      for (int t = 0; t <= SOSPFPacket.MAX_TYPE; t++) {
+        packetsByType[dir][t] = new LongAdder();
+        bytesByType[dir][t] = new LongAdder();
+      }
+      for (int p = 0; p < portCount; p++) {
+        packetsByPort[dir][p] = new LongAdder();
+        bytesByPort[dir][p] = new LongAdder();
+      }
+    }
+  }
+
+  void received(int port, SOSPFPacket packet, int bytes) {
+    count(IN, port, packet.sospfType, 1, bytes);
+  }
+
+  void sent(int port, SOSPFPacket packet, int bytes) {
+    count(OUT, port, packet.sospfType, 1, bytes);
+  }
+
+  /**
+   * bytes of a packet already counted by sent(), for transports that only learn the size later
+   */
+  void sentBytes(int port, short sospfType, int bytes) {
+    count(OUT, port, sospfType, 0, bytes);
+  }
+
+  private void count(int dir, int port, short type, int packets, int bytes) {
+    if (type >= 0 && type <= SOSPFPacket.MAX_TYPE) {
+      packetsByType[dir][type].add(packets);
+      bytesByType[dir][type].add(bytes);
+    }
+    if (port >= 0 && port < packetsByPort[dir].length) {
+      packetsByPort[dir][port].add(packets);
+      bytesByPort[dir][port].add(bytes);
+    }
+  }
+
+  /**
+   * register the MBean, failures are reported but do not stop the router
+   */
+  void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("socs.network:type=Router,name=" + router.rd.simulatedIPAddress));
+    } catch (Exception e) {
+      System.out.println("STATS ERROR: could not register the router MBean;");
+      e.printStackTrace();
+    }
+  }
+
+  private static long total(LongAdder[] adders) {
+    long sum = 0;
+    for (LongAdder a : adders) {
+      sum += a.sum();
+    }
+    return sum;
+  }
+
+  public long getPacketsIn() {
+    return total(packetsByType[IN]);
+  }
+
+  public long getPacketsOut() {
+    return total(packetsByType[OUT]);
+  }
+
+  public long getBytesIn() {
+    return total(bytesByType[IN]);
+  }
+
+  public long getBytesOut() {
+    return total(bytesByType[OUT]);
+  }
+
+  public long getSpfSyncs() {
+    return router.lsd.syncTimes.count();
+  }
+
+  public long getSpfIncrementalRuns() {
+    return router.lsd.spt.incrementalRuns;
+  }
+
+  public long getSpfFullRuns() {
+    return router.lsd.spt.fullRuns;
+  }
+
+  public double getSpfMeanMicros() {
+    return router.lsd.syncTimes.mean() / 1000;
+  }
+
+  public long getSpfMaxMicros() {
+    return router.lsd.syncTimes.max() / 1000;
+  }
+
+  public long getSpfSuppressed() {
+    long suppressed = 0;
+    for (LinkStateDatabase db : router.areas.all()) {
+      suppressed += db.spfThrottle.suppressed;
+    }
+    return suppressed;
+  }
+
+  public long getLsasTooSoon() {
+    return lsasTooSoon.sum();
+  }
+
+  public long getOriginationsDeferred() {
+    return originationsDeferred.sum();
+  }
+
+  public long getDataForwarded() {
+    return dataForwarded.sum();
+  }
+
+  public long getDataDelivered() {
+    return dataDelivered.sum();
+  }
+
+  public long getDataDropped() {
+    return dataDropped.sum();
+  }
+
+  public int getLsdSize() {
+    return router.lsd.snapshot().lsas.size();
+  }
+
+  public int getFloodQueueDepth() {
+    int depth = 0;
+    for (int i : router.ports.usedPorts()) {
+      LinkService ls = router.ports.get(i);
+      if (ls != null) {
+        depth += ls.floodQueue.depth();
+      }
+    }
+    return depth;
+  }
+
+  public int getOutboundQueueDepth() {
+    int depth = 0;
+    for (int i : router.ports.usedPorts()) {
+      LinkService ls = router.ports.get(i);
+      if (ls != null) {
+        depth += ls.outbound.depth();
+      }
+    }
+    return depth;
+  }
+
+  public long getAttachAccepted() {
+    return attachAccepted.sum();
+  }
+
+  public long getAttachRejected() {
+    return attachRejected.sum();
+  }
+
+  public String report() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Packets in ").append(getPacketsIn()).append(" (").append(getBytesIn()).append(" bytes), out ")
+        .append(getPacketsOut()).append(" (").append(getBytesOut()).append(" bytes)\n");
+    for (int t = 0; t <= SOSPFPacket.MAX_TYPE; t++) {
+      long in = packetsByType[IN][t].sum();
+      long out = packetsByType[OUT][t].sum();
+      if (in + out > 0) {
+        sb.append("  ").append(t < TYPE_NAMES.length ? TYPE_NAMES[t] : "type " + t)
+            .append(": in ").append(in).append(" (").append(bytesByType[IN][t].sum()).append(" bytes), out ")
+            .append(out).append(" (").append(bytesByType[OUT][t].sum()).append(" bytes)\n");
+      }
+    }
+    for (int p = 0; p < packetsByPort[IN].length; p++) {
+      long in = packetsByPort[IN][p].sum();
+      long out = packetsByPort[OUT][p].sum();
+      if (in + out > 0) {
+        sb.append("  Port ").append(p).append(": in ").append(in).append(" (").append(bytesByPort[IN][p].sum())
+            .append(" bytes), out ").append(out).append(" (").append(bytesByPort[OUT][p].sum()).append(" bytes)\n");
+      }
+    }
+    sb.append("SPF: ").append(getSpfIncrementalRuns()).append(" incremental, ").append(getSpfFullRuns())
+        .append(" full; route syncs ").append(router.lsd.syncTimes.summary(1000, "us")).append("\n");
+    sb.append("SPF throttle: ").append(router.lsd.spfThrottle).append("; ").append(getSpfSuppressed())
+        .append(" held back in all areas\n");
+    sb.append("LSAs held back by min arrival: ").append(getLsasTooSoon()).append(", originations held back by min interval: ")
+        .append(getOriginationsDeferred()).append("\n");
+    sb.append("LSD size: ").append(getLsdSize()).append("\n");
+    int indexed = 0;
+    for (LinkStateDatabase db : router.areas.all()) {
+      indexed += db.expiry.size();
+    }
+    sb.append("LSA aging: ").append(router.lsasRefreshed).append(" refreshed, ").append(router.lsasFlushed)
+        .append(" flushed at MaxAge, ").append(router.lsasRemoved).append(" removed; ").append(indexed).append(" in the expiry index\n");
+    sb.append("Flood queue depth: ").append(getFloodQueueDepth()).append(", outbound queue depth: ")
+        .append(getOutboundQueueDepth()).append("\n");
+    sb.append("Data packets: forwarded ").append(getDataForwarded()).append(", delivered ").append(getDataDelivered())
+        .append(", dropped ").append(getDataDropped()).append("; FIB ").append(router.areas.fib()).append("\n");
+    sb.append("Attach requests: accepted ").append(attachAccepted.sum()).append(", rejected ").append(attachRejected.sum())
+        .append("; ours accepted ").append(attachAcceptedByPeer.sum()).append(", rejected ").append(attachRejectedByPeer.sum());
+    return sb.toString();
+  }
+}
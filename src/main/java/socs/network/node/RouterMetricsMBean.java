@@ -0,0 +1,52 @@
+package socs.network.node;
+
+/**
+ * JMX view of the RouterMetrics, registered as socs.network:type=Router,name=<simulated ip>
+ */
+public interface RouterMetricsMBean {
+
+  long getPacketsIn();
+
+  long getPacketsOut();
+
+  long getBytesIn();
+
+  long getBytesOut();
+
+  long getSpfSyncs();
+
+  long getSpfIncrementalRuns();
+
+  long getSpfFullRuns();
+
+  double getSpfMeanMicros();
+
+  long getSpfMaxMicros();
+
+  long getSpfSuppressed();
+
+  long getLsasTooSoon();
+
+  long getOriginationsDeferred();
+
+  long getDataForwarded();
+
+  long getDataDelivered();
+
+  long getDataDropped();
+
+  int getLsdSize();
+
+  int getFloodQueueDepth();
+
+  int getOutboundQueueDepth();
+
+  long getAttachAccepted();
+
+  long getAttachRejected();
+
+  /**
+   * everything the stats command prints
+   */
+  String report();
+}
@@ -4,8 +4,21 @@ package socs.network.node;
  * status of the router, in this simplified version of routing protocol, we only define INIT and
  * TWO_WAY for database synchronization, you can choose to keep other status by adding more fields
  * in router class or you can add more options here
+ * <p/>
+ * Once TWO_WAY the neighbours synchronize their databases: EXCHANGE while the database descriptions
+ * are swapped, LOADING while the LSAs we asked for are outstanding, FULL when both are in sync.
  */
 public enum RouterStatus {
   INIT,
   TWO_WAY,
+  EXCHANGE,
+  LOADING,
+  FULL;
+
+  /**
+   * true for a neighbour that reached TWO_WAY, whatever the progress of the database sync
+   */
+  public static boolean adjacent(RouterStatus status) {
+    return status != null && status.compareTo(TWO_WAY) >= 0;
+  }
 }
@@ -0,0 +1,688 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.function.Supplier;
+
+/**
+ * shortest path tree rooted at the local router, built over the LSAs of the link state database.
+ * <p/>
+ * When a single LSA changes only the edges of its originator change, so instead of running Dijkstra
+ * from scratch we invalidate the subtree hanging below the edges that got worse and re-run Dijkstra
+ * over the affected nodes only (plus whatever the edges that got better can now improve).
+ * A full recompute over the compact TopologyGraph of the database is kept as a fallback and as
+ * the reference for verify(). The tree, the stack and the indexed heap of the incremental run
+ * live in int arrays that only grow, so an update does not allocate beyond the new adjacency.
+ * <p/>
+ * The tree keeps one parent per node, but the distances are exact, so every equal-cost path is
+ * recovered at query time: an edge x -> v lies on a shortest path iff dist[x] + cost == dist[v].
+ */
+public class ShortestPathTree {
+
+  static final int INFINITY = Integer.MAX_VALUE;
+
+  // when more than 1/FULL_RECOMPUTE_RATIO of the nodes are affected, a full run is cheaper
+  private static final int FULL_RECOMPUTE_RATIO = 2;
+
+  private static final int[] NONE = new int[0];
+
+  private RouterIds ids;
+  private Supplier<TopologyGraph> topology;
+  private SpfCalculator calculator = new SpfCalculator();
+
+  // number of nodes, the arrays below may be longer
+  private int size = 0;
+
+  // adjacency as declared by the LSA of each node (self links are skipped)
+  private int[][] nbrs = new int[0][];
+  private int[][] costs = new int[0][];
+
+  private int[] dist = new int[0];
+  private int[] parent = new int[0];
+  // children of a node as a doubly linked list: firstChild[p], then nextSibling, -1 ends it
+  private int[] firstChild = new int[0];
+  private int[] nextSibling = new int[0];
+  private int[] prevSibling = new int[0];
+
+  private int root;
+
+  // scratch space of the incremental run, marked is all false between runs
+  private boolean[] marked = new boolean[0];
+  private int[] affected = new int[0];
+  private int[] stack = new int[16];
+  private int stackSize;
+  // binary min-heap of node ids keyed by dist, heapPos[v] is the slot of v or -1
+  private int[] heap = new int[0];
+  private int[] heapPos = new int[0];
+  private int heapSize;
+  // edges changed by the last LSA: from, to, old cost, new cost
+  private int[] changes = new int[32];
+  private int changeCount;
+
+  // nodes whose distance or equal-cost paths changed during the last update, for cache invalidation
+  int[] changed = new int[16];
+  int changedCount = 0;
+  boolean allChanged = false;
+
+  // statistics
+  long incrementalRuns = 0;
+  long fullRuns = 0;
+  long lastTouched = 0;
+
+  /**
+   * @param ids interning shared with the database, so the tree and the topology agree on node ids
+   * @param rootID simulated IP of the local router
+   * @param topology supplies the current topology for full recomputes
+   */
+  public ShortestPathTree(RouterIds ids, String rootID, Supplier<TopologyGraph> topology) {
+    this.ids = ids;
+    this.topology = topology;
+    root = intern(rootID);
+    dist[root] = 0;
+  }
+
+  // Graph maintenance ---------------------------------------------------------
+
+  private int intern(String id) {
+    int n = ids.intern(id);
+    ensureCapacity(ids.size());
+    return n;
+  }
+
+  private void ensureCapacity(int n) {
+    if (n > dist.length) {
+      int cap = Math.max(Math.max(8, n), dist.length * 2);
+      nbrs = Arrays.copyOf(nbrs, cap);
+      costs = Arrays.copyOf(costs, cap);
+      dist = Arrays.copyOf(dist, cap);
+      parent = Arrays.copyOf(parent, cap);
+      firstChild = Arrays.copyOf(firstChild, cap);
+      nextSibling = Arrays.copyOf(nextSibling, cap);
+      prevSibling = Arrays.copyOf(prevSibling, cap);
+      marked = Arrays.copyOf(marked, cap);
+      affected = Arrays.copyOf(affected, cap);
+      heap = Arrays.copyOf(heap, cap);
+      heapPos = Arrays.copyOf(heapPos, cap);
+    }
+    for (int i = size; i < n; i++) {
+      nbrs[i] = NONE;
+      costs[i] = NONE;
+      dist[i] = INFINITY;
+      parent[i] = -1;
+      firstChild[i] = -1;
+      nextSibling[i] = -1;
+      prevSibling[i] = -1;
+      heapPos[i] = -1;
+    }
+    size = Math.max(size, n);
+  }
+
+  // cost of a link as declared in an LSA, at least 1 so no cycle is free and at most
+  // LinkCost.MAX_COST so a neighbour advertising a huge cost cannot overflow the path sums
+  static int weightOf(LinkDescription ld) {
+    return Math.max(1, Math.min(LinkCost.MAX_COST, ld.cost));
+  }
+
+  // cost declared by u towards v, or INFINITY when u does not list v
+  private int declared(int u, int v) {
+    return find(nbrs[u], costs[u], v);
+  }
+
+  // an edge is only usable when both ends list each other (two-way check)
+  private int edge(int u, int v) {
+    if (declared(v, u) == INFINITY) {
+      return INFINITY;
+    }
+    return declared(u, v);
+  }
+
+  /**
+   * install (or replace) the LSA of a router and update the tree incrementally
+   */
+  public void update(LSA lsa) {
+    int u = intern(lsa.linkStateID);
+    int count = 0;
+    for (LinkDescription ld : lsa.links) {
+      if (!ld.linkID.equals(lsa.linkStateID)) {
+        count++;
+      }
+    }
+    int[] newNbrs = new int[count];
+    int[] newCosts = new int[count];
+    int k = 0;
+    for (LinkDescription ld : lsa.links) {
+      if (!ld.linkID.equals(lsa.linkStateID)) {
+        newNbrs[k] = intern(ld.linkID);
+        newCosts[k] = weightOf(ld);
+        k++;
+      }
+    }
+    replace(u, newNbrs, newCosts);
+  }
+
+  /**
+   * forget the LSA of a router, its edges are removed from the tree
+   */
+  public void remove(String linkStateID) {
+    int u = ids.lookup(linkStateID);
+    // ids are also interned by the topology graph, a node beyond the arrays has no edges here
+    if (u != -1 && u < size) {
+      replace(u, NONE, NONE);
+    }
+  }
+
+  private void replace(int u, int[] newNbrs, int[] newCosts) {
+    int[] oldNbrs = nbrs[u];
+    int[] oldCosts = costs[u];
+    changedCount = 0;
+    allChanged = false;
+
+    // every edge touching u may have changed, in both directions
+    changeCount = 0;
+    for (int pass = 0; pass < 2; pass++) {
+      for (int v : pass == 0 ? oldNbrs : newNbrs) {
+        if (v == u || hasChange(u, v)) {
+          continue;
+        }
+        int back = declared(v, u);
+        int oldOut = find(oldNbrs, oldCosts, v);
+        int newOut = find(newNbrs, newCosts, v);
+        int oldUV = back == INFINITY ? INFINITY : oldOut;
+        int newUV = back == INFINITY ? INFINITY : newOut;
+        int oldVU = oldOut == INFINITY ? INFINITY : back;
+        int newVU = newOut == INFINITY ? INFINITY : back;
+        if (oldUV != newUV) {
+          addChange(u, v, oldUV, newUV);
+        }
+        if (oldVU != newVU) {
+          addChange(v, u, oldVU, newVU);
+        }
+      }
+    }
+
+    nbrs[u] = newNbrs;
+    costs[u] = newCosts;
+    if (changeCount > 0) {
+      applyIncremental();
+    }
+  }
+
+  private boolean hasChange(int u, int v) {
+    for (int c = 0; c < 4 * changeCount; c += 4) {
+      if ((changes[c] == u && changes[c + 1] == v) || (changes[c] == v && changes[c + 1] == u)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void addChange(int from, int to, int oldCost, int newCost) {
+    if (4 * changeCount == changes.length) {
+      changes = Arrays.copyOf(changes, 2 * changes.length);
+    }
+    int c = 4 * changeCount++;
+    changes[c] = from;
+    changes[c + 1] = to;
+    changes[c + 2] = oldCost;
+    changes[c + 3] = newCost;
+  }
+
+  // cheapest of the links to v, as in the topology graph an LSA listing v twice uses the cheaper
+  private static int find(int[] n, int[] c, int v) {
+    int w = INFINITY;
+    for (int i = 0; i < n.length; i++) {
+      if (n[i] == v) {
+        w = Math.min(w, c[i]);
+      }
+    }
+    return w;
+  }
+
+  // Route computation ---------------------------------------------------------
+
+  private void applyIncremental() {
+    // 1. edges that got worse and carried a tree branch invalidate the subtree below them
+    int affectedCount = 0;
+    for (int c = 0; c < 4 * changeCount; c += 4) {
+      int v = changes[c + 1];
+      if (changes[c + 3] > changes[c + 2] && parent[v] == changes[c] && !marked[v]) {
+        affectedCount = collectSubtree(v, affectedCount);
+      }
+    }
+    if (affectedCount * FULL_RECOMPUTE_RATIO > size) {
+      unmark(affected, affectedCount);
+      recomputeAll();
+      return;
+    }
+    incrementalRuns++;
+    for (int i = 0; i < affectedCount; i++) {
+      int v = affected[i];
+      detach(v);
+      dist[v] = INFINITY;
+      addChanged(v);
+    }
+
+    // 2. re-seed the affected nodes from their unaffected neighbours
+    for (int i = 0; i < affectedCount; i++) {
+      int v = affected[i];
+      int best = INFINITY;
+      int via = -1;
+      for (int x : nbrs[v]) {
+        if (marked[x] || dist[x] == INFINITY) {
+          continue;
+        }
+        int w = edge(x, v);
+        if (w != INFINITY && dist[x] + w < best) {
+          best = dist[x] + w;
+          via = x;
+        }
+      }
+      if (via != -1) {
+        setParent(v, via);
+        dist[v] = best;
+        push(v);
+      }
+    }
+    unmark(affected, affectedCount);
+
+    // 3. edges that got better may shorten paths anywhere in the tree
+    for (int c = 0; c < 4 * changeCount; c += 4) {
+      int a = changes[c];
+      int b = changes[c + 1];
+      int cost = changes[c + 3];
+      if (cost < changes[c + 2] && dist[a] != INFINITY && dist[a] + cost < dist[b]) {
+        setParent(b, a);
+        dist[b] = dist[a] + cost;
+        decreased(b);
+      }
+    }
+
+    lastTouched = affectedCount + dijkstra();
+    addDescendants();
+  }
+
+  private void unmark(int[] nodes, int count) {
+    for (int i = 0; i < count; i++) {
+      marked[nodes[i]] = false;
+    }
+  }
+
+  // the equal-cost paths to a node move when an edge into it changes tightness, which takes a
+  // changed cost or distance at one of its ends, and so do the paths to everything below it
+  private void addDescendants() {
+    stackSize = 0;
+    for (int c = 0; c < 4 * changeCount; c += 4) {
+      pushStack(changes[c + 1]);
+    }
+    for (int i = 0; i < changedCount; i++) {
+      int v = changed[i];
+      pushStack(v);
+      for (int y : nbrs[v]) {
+        pushStack(y);
+      }
+    }
+    changedCount = 0;
+    while (stackSize > 0) {
+      int x = stack[--stackSize];
+      if (marked[x]) {
+        continue;
+      }
+      marked[x] = true;
+      addChanged(x);
+      if (dist[x] == INFINITY) {
+        continue;
+      }
+      for (int i = 0; i < nbrs[x].length; i++) {
+        int y = nbrs[x][i];
+        if (!marked[y] && declared(y, x) != INFINITY && dist[x] + costs[x][i] == dist[y]) {
+          pushStack(y);
+        }
+      }
+    }
+    // every node marked above was added to changed exactly once
+    unmark(changed, changedCount);
+  }
+
+  // returns the number of nodes settled
+  private int dijkstra() {
+    int settled = 0;
+    while (heapSize > 0) {
+      int x = pop();
+      settled++;
+      for (int i = 0; i < nbrs[x].length; i++) {
+        int y = nbrs[x][i];
+        if (declared(y, x) == INFINITY) {
+          continue;
+        }
+        int d = dist[x] + costs[x][i];
+        if (d < dist[y]) {
+          setParent(y, x);
+          dist[y] = d;
+          decreased(y);
+        }
+      }
+    }
+    return settled;
+  }
+
+  // marks the subtree below v and appends it to affected, returns the new count
+  private int collectSubtree(int v, int count) {
+    stackSize = 0;
+    pushStack(v);
+    while (stackSize > 0) {
+      int x = stack[--stackSize];
+      if (marked[x]) {
+        continue;
+      }
+      marked[x] = true;
+      affected[count++] = x;
+      for (int c = firstChild[x]; c != -1; c = nextSibling[c]) {
+        pushStack(c);
+      }
+    }
+    return count;
+  }
+
+  private void pushStack(int v) {
+    if (stackSize == stack.length) {
+      stack = Arrays.copyOf(stack, 2 * stack.length);
+    }
+    stack[stackSize++] = v;
+  }
+
+  private void addChanged(int v) {
+    if (changedCount == changed.length) {
+      changed = Arrays.copyOf(changed, 2 * changed.length);
+    }
+    changed[changedCount++] = v;
+  }
+
+  private void detach(int v) {
+    int p = parent[v];
+    if (p != -1) {
+      if (prevSibling[v] == -1) {
+        firstChild[p] = nextSibling[v];
+      } else {
+        nextSibling[prevSibling[v]] = nextSibling[v];
+      }
+      if (nextSibling[v] != -1) {
+        prevSibling[nextSibling[v]] = prevSibling[v];
+      }
+      nextSibling[v] = -1;
+      prevSibling[v] = -1;
+      parent[v] = -1;
+    }
+  }
+
+  private void attach(int v, int p) {
+    parent[v] = p;
+    nextSibling[v] = firstChild[p];
+    if (firstChild[p] != -1) {
+      prevSibling[firstChild[p]] = v;
+    }
+    firstChild[p] = v;
+  }
+
+  private void setParent(int v, int p) {
+    detach(v);
+    attach(v, p);
+    addChanged(v);
+  }
+
+  // dist[v] went down: queue v, or move it up if it is queued already
+  private void decreased(int v) {
+    if (heapPos[v] == -1) {
+      push(v);
+    } else {
+      siftUp(heapPos[v]);
+    }
+  }
+
+  private void push(int v) {
+    heap[heapSize] = v;
+    heapPos[v] = heapSize;
+    siftUp(heapSize++);
+  }
+
+  private int pop() {
+    int top = heap[0];
+    heapPos[top] = -1;
+    heapSize--;
+    if (heapSize > 0) {
+      heap[0] = heap[heapSize];
+      heapPos[heap[0]] = 0;
+      siftDown(0);
+    }
+    return top;
+  }
+
+  private void siftUp(int i) {
+    int v = heap[i];
+    while (i > 0) {
+      int p = (i - 1) >>> 1;
+      if (dist[heap[p]] <= dist[v]) {
+        break;
+      }
+      heap[i] = heap[p];
+      heapPos[heap[i]] = i;
+      i = p;
+    }
+    heap[i] = v;
+    heapPos[v] = i;
+  }
+
+  private void siftDown(int i) {
+    int v = heap[i];
+    while (true) {
+      int c = 2 * i + 1;
+      if (c >= heapSize) {
+        break;
+      }
+      if (c + 1 < heapSize && dist[heap[c + 1]] < dist[heap[c]]) {
+        c++;
+      }
+      if (dist[heap[c]] >= dist[v]) {
+        break;
+      }
+      heap[i] = heap[c];
+      heapPos[heap[i]] = i;
+      i = c;
+    }
+    heap[i] = v;
+    heapPos[v] = i;
+  }
+
+  /**
+   * full recompute fallback: Dijkstra from scratch over the topology graph of the database
+   */
+  public void recomputeAll() {
+    fullRuns++;
+    allChanged = true;
+    TopologyGraph g = topology.get();
+    ensureCapacity(g.nodeCount);
+    lastTouched = calculator.run(g, root);
+    for (int i = 0; i < size; i++) {
+      firstChild[i] = -1;
+      nextSibling[i] = -1;
+      prevSibling[i] = -1;
+    }
+    for (int i = 0; i < size; i++) {
+      dist[i] = i < g.nodeCount ? calculator.dist[i] : INFINITY;
+      parent[i] = -1;
+      if (i < g.nodeCount && calculator.parent[i] != -1) {
+        attach(i, calculator.parent[i]);
+      }
+    }
+  }
+
+  /**
+   * correctness check: compares the incrementally maintained tree with a full recompute.
+   * Ties may be broken differently, so distances are compared and every parent link is checked
+   * to be a tight edge of the graph.
+   */
+  public boolean verify() {
+    int n = size;
+    int[] incDist = Arrays.copyOf(dist, n);
+    int[] incParent = Arrays.copyOf(parent, n);
+    boolean ok = true;
+    for (int v = 0; v < n; v++) {
+      int p = incParent[v];
+      if (v == root || incDist[v] == INFINITY) {
+        ok &= p == -1;
+      } else {
+        ok &= p != -1 && edge(p, v) != INFINITY && incDist[p] + edge(p, v) == incDist[v];
+      }
+    }
+    long inc = incrementalRuns;
+    recomputeAll();
+    fullRuns--;
+    incrementalRuns = inc;
+    for (int v = 0; v < n; v++) {
+      ok &= incDist[v] == dist[v];
+    }
+    return ok;
+  }
+
+  // Queries -------------------------------------------------------------------
+
+  /**
+   * distance to the destination, or INFINITY if it is unknown or unreachable
+   */
+  public int distanceTo(String destinationIP) {
+    int v = ids.lookup(destinationIP);
+    return v == -1 || v >= size ? INFINITY : dist[v];
+  }
+
+  /**
+   * path from the root to the destination, or null if it is unknown or unreachable
+   */
+  public ArrayList<String> pathTo(String destinationIP) {
+    int v = ids.lookup(destinationIP);
+    if (v == -1 || v >= size || dist[v] == INFINITY) {
+      return null;
+    }
+    ArrayList<String> path = new ArrayList<String>();
+    for (int x = v; x != -1; x = parent[x]) {
+      path.add(0, ids.name(x));
+    }
+    return path;
+  }
+
+  // nodes preceding v on some shortest path
+  private ArrayList<Integer> predecessors(int v) {
+    ArrayList<Integer> preds = new ArrayList<Integer>();
+    if (dist[v] == INFINITY) {
+      return preds;
+    }
+    for (int x : nbrs[v]) {
+      int w = declared(x, v);
+      if (w != INFINITY && dist[x] != INFINITY && dist[x] + w == dist[v]) {
+        preds.add(x);
+      }
+    }
+    return preds;
+  }
+
+  // v and every node on a shortest path to it, closer to the root first
+  private ArrayList<Integer> ancestors(int v) {
+    HashSet<Integer> seen = new HashSet<Integer>();
+    ArrayList<Integer> out = new ArrayList<Integer>();
+    seen.add(v);
+    out.add(v);
+    for (int i = 0; i < out.size(); i++) {
+      for (int p : predecessors(out.get(i))) {
+        if (seen.add(p)) {
+          out.add(p);
+        }
+      }
+    }
+    out.sort((a, b) -> Integer.compare(dist[a], dist[b]));
+    return out;
+  }
+
+  private int reachable(String destinationIP) {
+    int v = ids.lookup(destinationIP);
+    return v == -1 || v >= size || dist[v] == INFINITY ? -1 : v;
+  }
+
+  /**
+   * first hops of every shortest path to the destination, sorted; empty if it is unreachable or
+   * the root itself
+   */
+  public ArrayList<String> nextHopsTo(String destinationIP) {
+    ArrayList<String> hops = new ArrayList<String>();
+    int v = reachable(destinationIP);
+    if (v == -1 || v == root) {
+      return hops;
+    }
+    // a node is a first hop iff it is one edge from the root on a path to v
+    for (int x : ancestors(v)) {
+      if (x != root && predecessors(x).contains(root)) {
+        hops.add(ids.name(x));
+      }
+    }
+    hops.sort(null);
+    return hops;
+  }
+
+  /**
+   * number of distinct shortest paths to the destination (saturates at Long.MAX_VALUE)
+   */
+  public long pathCount(String destinationIP) {
+    int v = reachable(destinationIP);
+    if (v == -1) {
+      return 0;
+    }
+    HashMap<Integer, Long> count = new HashMap<Integer, Long>();
+    for (int x : ancestors(v)) {
+      long c = x == root ? 1 : 0;
+      for (int p : predecessors(x)) {
+        c += count.get(p);
+        if (c < 0) {
+          c = Long.MAX_VALUE;
+        }
+      }
+      count.put(x, c);
+    }
+    return count.get(v);
+  }
+
+  /**
+   * up to max shortest paths from the root to the destination, empty if it is unreachable
+   */
+  public ArrayList<ArrayList<String>> pathsTo(String destinationIP, int max) {
+    ArrayList<ArrayList<String>> paths = new ArrayList<ArrayList<String>>();
+    int v = reachable(destinationIP);
+    if (v != -1) {
+      ArrayList<String> suffix = new ArrayList<String>();
+      collectPaths(v, suffix, paths, max);
+    }
+    return paths;
+  }
+
+  // depth first from the destination back to the root, suffix holds the path below x reversed
+  private void collectPaths(int x, ArrayList<String> suffix, ArrayList<ArrayList<String>> out, int max) {
+    suffix.add(ids.name(x));
+    if (x == root) {
+      ArrayList<String> path = new ArrayList<String>(suffix);
+      Collections.reverse(path);
+      out.add(path);
+    } else {
+      ArrayList<Integer> preds = predecessors(x);
+      preds.sort((a, b) -> ids.name(a).compareTo(ids.name(b)));
+      for (int p : preds) {
+        if (out.size() >= max) {
+          break;
+        }
+        collectPaths(p, suffix, out, max);
+      }
+    }
+    suffix.remove(suffix.size() - 1);
+  }
+}
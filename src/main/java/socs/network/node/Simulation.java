@@ -0,0 +1,338 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.util.Configuration;
+import socs.network.util.Histogram;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * runs a whole network of routers in one JVM over the MemoryTransport and reports how long the
+ * link state databases take to converge and how many packets that costs.
+ * <p/>
+ * usage: Simulation TOPOLOGY [option=value ...]
+ * <p/>
+ * TOPOLOGY is a TopologyGenerator spec (ring:1000, grid:1024, random:1000:4, fattree:16,
+ * file:links.txt). Options: threads (transport pool, default the number of cpus), seed, copy
+ * (decode every packet instead of sharing objects, default false), timeoutSec (default 300),
+ * verify (number of random routes whose cost and equal-cost next hops are checked against the
+ * topology, default 100), trace (router whose last LSA is traced to every other router, default
+ * 0), verifyAll (check the route of every router to every other against the all-pairs routes of
+ * the first router's database, default false), loss (fraction of the LSAUPDATE and LSACK packets lost, default 0), verbose (keep the output
+ * of the routers, default false). Options starting with socs.network.router. are given to every
+ * router, keep-alives and JMX are off and LSAs are retransmitted after 30s unless set.
+ */
+public class Simulation {
+
+  // how often convergence is checked
+  private static final long POLL_MILLIS = 5;
+
+  private TopologyGenerator topology;
+  private Router[] routers;
+  private String[] ips;
+  private MemoryTransport transport;
+  private TimingWheel timers = new TimingWheel("simulation-timers", 10, 512);
+  // component of every router, a router converges once it holds the LSA of its whole component
+  private int[] component;
+  private int[] componentSize;
+
+  public Simulation(TopologyGenerator topology, Map<String, String> routerOptions, int threads, boolean copy) {
+    this.topology = topology;
+    int n = topology.nodes;
+    transport = new MemoryTransport(threads, copy);
+    routers = new Router[n];
+    ips = new String[n];
+    for (int i = 0; i < n; i++) {
+      ips[i] = "10." + ((i >> 16) & 255) + "." + ((i >> 8) & 255) + "." + (i & 255);
+      Configuration config = new Configuration();
+      config.addEntry("socs.network.router.ip", ips[i]);
+      config.addEntry("socs.network.router.processIP", "127.0.0.1");
+      config.addEntry("socs.network.router.processPort", "0");
+      config.addEntry("socs.network.router.maxPorts", String.valueOf(Math.max(1, topology.maxDegree())));
+      config.addEntry("socs.network.router.helloIntervalMs", "0");
+      config.addEntry("socs.network.router.jmx", "false");
+      // in-memory links lose nothing, while a pool saturated by a large network acks late
+      config.addEntry("socs.network.router.retransmitIntervalMs", "30000");
+      for (Map.Entry<String, String> option : routerOptions.entrySet()) {
+        config.addEntry(option.getKey(), option.getValue());
+      }
+      routers[i] = new Router(config, timers);
+    }
+    labelComponents();
+  }
+
+  private void labelComponents() {
+    int n = topology.nodes;
+    int[] parent = new int[n];
+    for (int i = 0; i < n; i++) {
+      parent[i] = i;
+    }
+    for (int[] l : topology.links) {
+      parent[find(parent, l[0])] = find(parent, l[1]);
+    }
+    component = new int[n];
+    componentSize = new int[n];
+    for (int i = 0; i < n; i++) {
+      component[i] = find(parent, i);
+      componentSize[component[i]]++;
+    }
+  }
+
+  private static int find(int[] parent, int x) {
+    while (parent[x] != x) {
+      parent[x] = parent[parent[x]];
+      x = parent[x];
+    }
+    return x;
+  }
+
+  /**
+   * connect every link, say HELLO on all of them at once and wait for the databases to converge
+   *
+   * @return the convergence time in nanoseconds, or -1 on timeout
+   */
+  public long run(long timeoutMillis) throws InterruptedException {
+    int[] ports = new int[topology.links.size()];
+    for (int k = 0; k < topology.links.size(); k++) {
+      int[] l = topology.links.get(k);
+      MemoryTransport.MemoryPacketStream[] ends = transport.pair();
+      ports[k] = routers[l[0]].attachStream(routers[l[1]].rd, ends[0]);
+      if (ports[k] == -1 || routers[l[1]].attachStream(routers[l[0]].rd, ends[1]) == -1) {
+        throw new IllegalStateException("No free port to link " + ips[l[0]] + " and " + ips[l[1]]);
+      }
+    }
+    long start = System.nanoTime();
+    for (int k = 0; k < topology.links.size(); k++) {
+      routers[topology.links.get(k)[0]].startLink(ports[k]);
+    }
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (System.currentTimeMillis() < deadline) {
+      if (quiet() && converged()) {
+        return System.nanoTime() - start;
+      }
+      Thread.sleep(POLL_MILLIS);
+    }
+    return -1;
+  }
+
+  // nothing in flight and nothing waiting in a flood queue
+  private boolean quiet() {
+    if (!transport.idle()) {
+      return false;
+    }
+    for (Router r : routers) {
+      for (int p : r.ports.usedPorts()) {
+        LinkService ls = r.ports.get(p);
+        if (ls != null && (ls.floodQueue.depth() > 0 || ls.outbound.depth() > 0)) {
+          return false;
+        }
+      }
+    }
+    return transport.idle();
+  }
+
+  // every router holds the current LSA of every router of its component
+  private boolean converged() {
+    int n = routers.length;
+    int[] own = new int[n];
+    for (int i = 0; i < n; i++) {
+      own[i] = routers[i].lsd.getLSA(ips[i]).lsaSeqNumber;
+    }
+    for (int i = 0; i < n; i++) {
+      LinkStateDatabase.Snapshot s = routers[i].lsd.snapshot();
+      if (s.lsas.size() != componentSize[component[i]]) {
+        return false;
+      }
+      for (int j = 0; j < n; j++) {
+        if (component[j] != component[i]) {
+          continue;
+        }
+        LSA lsa = s.lsas.get(ips[j]);
+        if (lsa == null || lsa.lsaSeqNumber != own[j]) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * how the current LSA of the given router reached the rest of its component: arrival latencies
+   * and hop counts over every router holding it. Routes are only computed on lookup, so route
+   * update times are not meaningful here
+   */
+  public String trace(int origin) {
+    LSA lsa = routers[origin].lsd.getLSA(ips[origin]);
+    Histogram arrival = new Histogram();
+    Histogram hops = new Histogram();
+    int others = 0;
+    for (int i = 0; i < routers.length; i++) {
+      if (i == origin || component[i] != component[origin]) {
+        continue;
+      }
+      others++;
+      ConvergenceTrace.Arrival a = routers[i].lsd.trace.get(ips[origin]);
+      if (a == null || a.lsaSeqNumber != lsa.lsaSeqNumber) {
+        continue;
+      }
+      arrival.record(a.arrivalMillis());
+      hops.record(a.hops);
+    }
+    return "Trace of " + ips[origin] + " seq " + lsa.lsaSeqNumber + ": reached " + arrival.count() + " of " + others + " routers"
+        + "\n  arrival " + arrival.summary(1, "ms") + "\n  hops " + hops.summary(1, "hops");
+  }
+
+  /**
+   * compare the cost and the equal-cost next hops of random routes with the topology
+   *
+   * @return the number of wrong routes
+   */
+  public int verify(int samples, Random random) {
+    int wrong = 0;
+    for (int k = 0; k < samples; k++) {
+      int src = random.nextInt(routers.length);
+      int dst = random.nextInt(routers.length);
+      int[] toDst = topology.hops(dst);
+      int expected = toDst[src];
+      ArrayList<String> hops = new ArrayList<String>();
+      for (int[] l : topology.links) {
+        int other = l[0] == src ? l[1] : l[1] == src ? l[0] : -1;
+        if (other != -1 && expected > 0 && toDst[other] == expected - 1) {
+          hops.add(ips[other]);
+        }
+      }
+      hops.sort(null);
+      ForwardingTable.Route route = routers[src].lsd.route(ips[dst]);
+      int cost = route.reachable() ? route.cost : -1;
+      if (cost != expected || !route.nextHops.equals(hops)) {
+        wrong++;
+      }
+    }
+    return wrong;
+  }
+
+  /**
+   * compare the route of every router to every other with the all-pairs routes computed over the
+   * database of the first router
+   *
+   * @return the all-pairs routes, and in wrong[0] the number of routes that differ
+   */
+  public AllPairsRoutes verifyAll(int[] wrong) {
+    AllPairsRoutes all = routers[0].lsd.allPairs(ForkJoinPool.commonPool());
+    RouterIds ids = all.graph.ids;
+    for (int src = 0; src < routers.length; src++) {
+      int s = ids.lookup(ips[src]);
+      for (int dst = 0; dst < routers.length; dst++) {
+        int d = ids.lookup(ips[dst]);
+        if (src == dst) {
+          continue;
+        }
+        ForwardingTable.Route route = routers[src].lsd.route(ips[dst]);
+        int expected = s == -1 || d == -1 || s >= all.nodeCount || d >= all.nodeCount ? ShortestPathTree.INFINITY : all.cost(s, d);
+        int cost = route.reachable() ? route.cost : ShortestPathTree.INFINITY;
+        if (cost != expected || (route.reachable() && !route.nextHops.equals(all.nextHops(s, d)))) {
+          wrong[0]++;
+        }
+      }
+    }
+    return all;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.out.println("usage: Simulation TOPOLOGY [option=value ...]");
+      System.exit(1);
+    }
+    HashMap<String, String> options = new HashMap<String, String>();
+    HashMap<String, String> routerOptions = new HashMap<String, String>();
+    for (int i = 1; i < args.length; i++) {
+      int eq = args[i].indexOf('=');
+      String key = args[i].substring(0, eq);
+      String value = args[i].substring(eq + 1);
+      (key.startsWith("socs.network.router.") ? routerOptions : options).put(key, value);
+    }
+    long seed = Long.parseLong(option(options, "seed", "1"));
+    int threads = Integer.parseInt(option(options, "threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+    boolean copy = Boolean.parseBoolean(option(options, "copy", "false"));
+    long timeoutMillis = 1000 * Long.parseLong(option(options, "timeoutSec", "300"));
+    int samples = Integer.parseInt(option(options, "verify", "100"));
+    int traced = Integer.parseInt(option(options, "trace", "0"));
+    boolean verifyAll = Boolean.parseBoolean(option(options, "verifyAll", "false"));
+
+    PrintStream out = System.out;
+    TopologyGenerator topology = TopologyGenerator.parse(args[0], seed);
+    out.println("Topology " + args[0] + ": " + topology.nodes + " routers, " + topology.links.size() + " links, max degree " + topology.maxDegree());
+    if (!Boolean.parseBoolean(option(options, "verbose", "false"))) {
+      // the routers report every HELLO on the terminal
+      System.setOut(new PrintStream(new OutputStream() {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+      }));
+    }
+    Simulation sim = new Simulation(topology, routerOptions, threads, copy);
+    sim.transport.setLoss(Double.parseDouble(option(options, "loss", "0")));
+    long elapsed = sim.run(timeoutMillis);
+    int wrong = elapsed == -1 ? 0 : sim.verify(samples, new Random(seed));
+    int[] wrongAll = {0};
+    AllPairsRoutes all = elapsed == -1 || !verifyAll ? null : sim.verifyAll(wrongAll);
+    System.setOut(out);
+
+    MemoryTransport t = sim.transport;
+    if (elapsed == -1) {
+      out.println("NOT CONVERGED after " + timeoutMillis + " ms");
+    } else {
+      out.println("Converged in " + String.format("%.1f", elapsed / 1e6) + " ms");
+    }
+    out.println("Packets: " + t.packets.get() + " (" + String.format("%.1f", (double) t.packets.get() / topology.nodes) + " per router), "
+        + t.bytes.get() + " bytes" + (t.lost.get() > 0 ? ", " + t.lost.get() + " lost" : ""));
+    for (int type = 0; type < t.packetsByType.length(); type++) {
+      if (t.packetsByType.get(type) > 0) {
+        out.println("  " + (type < RouterMetrics.TYPE_NAMES.length ? RouterMetrics.TYPE_NAMES[type] : "type " + type) + ": " + t.packetsByType.get(type));
+      }
+    }
+    long lsasSent = 0;
+    long deltas = 0;
+    long retransmitted = 0;
+    long tooSoon = 0;
+    for (Router r : sim.routers) {
+      tooSoon += r.metrics.lsasTooSoon.sum();
+      for (int p : r.ports.usedPorts()) {
+        LinkService ls = r.ports.get(p);
+        if (ls != null) {
+          lsasSent += ls.floodQueue.lsasSent;
+          deltas += ls.floodQueue.deltasSent;
+          retransmitted += ls.retransmit.retransmitted;
+        }
+      }
+    }
+    out.println("LSAs flooded: " + lsasSent + " (" + deltas + " as deltas, " + retransmitted + " retransmitted, "
+        + tooSoon + " held back by min arrival)");
+    out.println("Timers: " + sim.timers);
+    if (traced >= 0 && traced < topology.nodes) {
+      out.println(sim.trace(traced));
+    }
+    if (elapsed != -1) {
+      out.println("Routes checked: " + samples + ", wrong: " + wrong);
+    }
+    if (all != null) {
+      out.println("All pairs: " + all.summary());
+      out.println("All routes checked: " + (long) topology.nodes * (topology.nodes - 1) + ", wrong: " + wrongAll[0]);
+    }
+    sim.transport.shutdown();
+    System.exit(elapsed == -1 || wrong > 0 || wrongAll[0] > 0 ? 1 : 0);
+  }
+
+  private static String option(Map<String, String> options, String key, String defaultValue) {
+    String value = options.get(key);
+    return value == null ? defaultValue : value;
+  }
+}
@@ -0,0 +1,151 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.message.PacketCodec;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * the link state databases on disk, one per area, so a restarted router starts from the topology
+ * it knew instead of only its own LSA.
+ * <p/>
+ * Layout: magic:4 codecVersion:1 savedAt:8 length:4 crc32:4 then areaCount:4 and for every area
+ * area:4 length:4 and its LSAs as encoded by PacketCodec.encodeLSAs. The file is written next to
+ * its final name and renamed over it, so a crash while saving leaves the previous snapshot. It is
+ * memory-mapped to be read back, the checksum and the LSAs are read straight from the mapping.
+ */
+public class SnapshotFile {
+
+  private static final int MAGIC = 0x4c534441; // "LSDA"
+  private static final int HEADER = 4 + 1 + 8 + 4 + 4;
+
+  private Path path;
+
+  // written by the last load()
+  long savedAt = 0;
+
+  public SnapshotFile(Path path) {
+    this.path = path;
+  }
+
+  public Path path() {
+    return path;
+  }
+
+  /**
+   * replace the snapshot with the given LSAs of every area
+   */
+  public void save(Map<Integer, Collection<LSA>> areas) throws IOException {
+    byte[][] encoded = new byte[areas.size()][];
+    int length = 4;
+    int i = 0;
+    for (Collection<LSA> lsas : areas.values()) {
+      encoded[i] = PacketCodec.encodeLSAs(lsas);
+      length += 8 + encoded[i++].length;
+    }
+    ByteBuffer bodyBuffer = ByteBuffer.allocate(length).putInt(areas.size());
+    i = 0;
+    for (int area : areas.keySet()) {
+      bodyBuffer.putInt(area).putInt(encoded[i].length).put(encoded[i++]);
+    }
+    byte[] body = bodyBuffer.array();
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    ByteBuffer header = ByteBuffer.allocate(HEADER);
+    header.putInt(MAGIC).put(PacketCodec.VERSION).putLong(System.currentTimeMillis())
+        .putInt(body.length).putInt((int) crc.getValue()).flip();
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      ByteBuffer[] buffers = {header, ByteBuffer.wrap(body)};
+      while (buffers[1].hasRemaining()) {
+        out.write(buffers);
+      }
+      out.force(false);
+    } finally {
+      out.close();
+    }
+    try {
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * LSAs of the snapshot by area, empty if there is none
+   *
+   * @throws IOException if the file is unreadable, corrupted or from another wire version
+   */
+  public Map<Integer, List<LSA>> load() throws IOException {
+    FileChannel in;
+    try {
+      in = FileChannel.open(path, StandardOpenOption.READ);
+    } catch (NoSuchFileException e) {
+      return new TreeMap<Integer, List<LSA>>();
+    }
+    try {
+      long size = in.size();
+      if (size < HEADER) {
+        throw new IOException("Snapshot " + path + " is truncated");
+      }
+      MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      if (map.getInt() != MAGIC) {
+        throw new IOException(path + " is not an LSD snapshot");
+      }
+      byte version = map.get();
+      if (version != PacketCodec.VERSION) {
+        throw new IOException("Snapshot " + path + " has wire version " + version);
+      }
+      long saved = map.getLong();
+      int length = map.getInt();
+      int checksum = map.getInt();
+      if (length < 0 || length != size - HEADER) {
+        throw new IOException("Snapshot " + path + " is truncated");
+      }
+      ByteBuffer body = map.slice();
+      CRC32 crc = new CRC32();
+      crc.update(body.duplicate());
+      if ((int) crc.getValue() != checksum) {
+        throw new IOException("Snapshot " + path + " is corrupted");
+      }
+      TreeMap<Integer, List<LSA>> areas = new TreeMap<Integer, List<LSA>>();
+      try {
+        int count = body.getInt();
+        for (int i = 0; i < count; i++) {
+          int area = body.getInt();
+          int areaLength = body.getInt();
+          if (areaLength < 0 || areaLength > body.remaining()) {
+            throw new IOException("Snapshot " + path + " is corrupted");
+          }
+          ByteBuffer lsas = body.slice();
+          lsas.limit(areaLength);
+          body.position(body.position() + areaLength);
+          areas.put(area, PacketCodec.decodeLSAs(lsas));
+        }
+      } catch (BufferUnderflowException e) {
+        throw new IOException("Snapshot " + path + " is corrupted");
+      }
+      savedAt = saved;
+      return areas;
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package socs.network.node;
+
+/**
+ * Dijkstra over a TopologyGraph. The distance, parent and heap arrays are kept between runs and
+ * only grow, so repeated runs on graphs of the same size do not allocate.
+ * <p/>
+ * Not thread safe, use one calculator per thread.
+ */
+public class SpfCalculator {
+
+  public int[] dist = new int[0];
+  public int[] parent = new int[0];
+  // nodes in the order they were settled, the first run() results of them are valid
+  public int[] order = new int[0];
+
+  // binary min-heap of node ids keyed by dist, heapPos[v] is the slot of v or -1
+  private int[] heap = new int[0];
+  private int[] heapPos = new int[0];
+  private int heapSize;
+
+  private void ensureCapacity(int n) {
+    if (dist.length < n) {
+      dist = new int[n];
+      parent = new int[n];
+      order = new int[n];
+      heap = new int[n];
+      heapPos = new int[n];
+    }
+  }
+
+  /**
+   * compute the shortest path tree rooted at source, results are in dist and parent
+   * (ShortestPathTree.INFINITY and -1 for unreachable nodes) and order
+   *
+   * @return the number of nodes settled
+   */
+  public int run(TopologyGraph g, int source) {
+    int n = g.nodeCount;
+    ensureCapacity(n);
+    for (int i = 0; i < n; i++) {
+      dist[i] = ShortestPathTree.INFINITY;
+      parent[i] = -1;
+      heapPos[i] = -1;
+    }
+    heapSize = 0;
+    if (source < 0 || source >= n) {
+      return 0;
+    }
+    dist[source] = 0;
+    push(source);
+    int settled = 0;
+    int[] offsets = g.offsets;
+    int[] neighbours = g.neighbours;
+    int[] weights = g.weights;
+    while (heapSize > 0) {
+      int x = pop();
+      order[settled++] = x;
+      int dx = dist[x];
+      for (int e = offsets[x]; e < offsets[x + 1]; e++) {
+        int y = neighbours[e];
+        int d = dx + weights[e];
+        if (d < dist[y]) {
+          dist[y] = d;
+          parent[y] = x;
+          if (heapPos[y] == -1) {
+            push(y);
+          } else {
+            siftUp(heapPos[y]);
+          }
+        }
+      }
+    }
+    return settled;
+  }
+
+  private void push(int v) {
+    heap[heapSize] = v;
+    heapPos[v] = heapSize;
+    siftUp(heapSize++);
+  }
+
+  private int pop() {
+    int top = heap[0];
+    heapPos[top] = -1;
+    heapSize--;
+    if (heapSize > 0) {
+      heap[0] = heap[heapSize];
+      heapPos[heap[0]] = 0;
+      siftDown(0);
+    }
+    return top;
+  }
+
+  private void siftUp(int i) {
+    int v = heap[i];
+    while (i > 0) {
+      int p = (i - 1) >>> 1;
+      if (dist[heap[p]] <= dist[v]) {
+        break;
+      }
+      heap[i] = heap[p];
+      heapPos[heap[i]] = i;
+      i = p;
+    }
+    heap[i] = v;
+    heapPos[v] = i;
+  }
+
+  private void siftDown(int i) {
+    int v = heap[i];
+    while (true) {
+      int c = 2 * i + 1;
+      if (c >= heapSize) {
+        break;
+      }
+      if (c + 1 < heapSize && dist[heap[c + 1]] < dist[heap[c]]) {
+        c++;
+      }
+      if (dist[heap[c]] >= dist[v]) {
+        break;
+      }
+      heap[i] = heap[c];
+      heapPos[heap[i]] = i;
+      i = c;
+    }
+    heap[i] = v;
+    heapPos[v] = i;
+  }
+}
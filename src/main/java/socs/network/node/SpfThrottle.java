@@ -0,0 +1,94 @@
+package socs.network.node;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * when the shortest path tree of a database may be brought up to date again.
+ * <p/>
+ * The first change after a quiet period is routed after the initial delay. While changes keep
+ * coming, runs are at least the hold time apart and the hold doubles after every run, up to the
+ * max wait; once nothing changed for twice the max wait, the hold is back to its initial value. So
+ * a flapping link costs a few runs per max wait instead of one per flap. All zero (the default of
+ * a bare database) never holds a run back.
+ */
+public class SpfThrottle {
+
+  private long initialDelayNanos;
+  private long holdNanos;
+  private long maxWaitNanos;
+
+  // System.nanoTime() of the first change not routed yet, 0 if none
+  private long pendingSince = 0;
+  private long lastRunAt = 0;
+  private boolean ran = false;
+  private long currentHoldNanos;
+  private boolean heldBack = false;
+
+  // statistics
+  long runs = 0;
+  long suppressed = 0;
+  long maxHoldMillis = 0;
+
+  public SpfThrottle(long initialDelayMillis, long holdMillis, long maxWaitMillis) {
+    this.initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(initialDelayMillis);
+    this.holdNanos = TimeUnit.MILLISECONDS.toNanos(holdMillis);
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(maxWaitMillis, holdMillis));
+    this.currentHoldNanos = holdNanos;
+  }
+
+  /**
+   * a throttle with the same settings and a fresh state
+   */
+  public SpfThrottle copy() {
+    return new SpfThrottle(TimeUnit.NANOSECONDS.toMillis(initialDelayNanos), TimeUnit.NANOSECONDS.toMillis(holdNanos),
+        TimeUnit.NANOSECONDS.toMillis(maxWaitNanos));
+  }
+
+  /**
+   * the database changed at the given System.nanoTime()
+   */
+  public synchronized void changed(long now) {
+    if (pendingSince == 0) {
+      pendingSince = now | 1;
+    }
+  }
+
+  /**
+   * how long a run must still wait at the given System.nanoTime(), 0 if it may run now. A run held
+   * back is counted once as suppressed, however often it is asked for
+   */
+  public synchronized long waitMillis(long now) {
+    long at = (pendingSince == 0 ? now : pendingSince) + initialDelayNanos;
+    if (ran) {
+      at = Math.max(at, lastRunAt + currentHoldNanos);
+    }
+    if (at - now <= 0) {
+      return 0;
+    }
+    if (!heldBack) {
+      heldBack = true;
+      suppressed++;
+    }
+    // rounded up, so the run scheduled for then is not held back again
+    return TimeUnit.NANOSECONDS.toMillis(at - now) + 1;
+  }
+
+  /**
+   * the tree was brought up to date at the given System.nanoTime()
+   */
+  public synchronized void ran(long now) {
+    boolean quiet = !ran || pendingSince == 0 || pendingSince - lastRunAt > 2 * maxWaitNanos;
+    currentHoldNanos = quiet ? holdNanos : Math.min(maxWaitNanos, 2 * currentHoldNanos);
+    maxHoldMillis = Math.max(maxHoldMillis, TimeUnit.NANOSECONDS.toMillis(currentHoldNanos));
+    lastRunAt = now;
+    ran = true;
+    pendingSince = 0;
+    heldBack = false;
+    runs++;
+  }
+
+  public synchronized String toString() {
+    return runs + " runs, " + suppressed + " held back, hold " + TimeUnit.NANOSECONDS.toMillis(currentHoldNanos)
+        + " ms (max " + maxHoldMillis + " ms)";
+  }
+}
@@ -0,0 +1,161 @@
+package socs.network.node;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * hashed timing wheel running every timer of the router (hello, dead interval, flood pacing) on a
+ * single thread.
+ * <p/>
+ * Time is cut in ticks and a timeout lands in the slot of its deadline tick, modulo the number of
+ * slots, with the number of full turns still to wait. Scheduling and cancelling are O(1) and a tick
+ * only looks at one slot, so thousands of links cost a few objects each instead of a thread or a
+ * heap entry. Timeouts fire within about one tick after their deadline.
+ */
+public class TimingWheel implements Runnable {
+
+  /**
+   * handle of a scheduled task
+   */
+  public static class Timeout {
+    private final Runnable task;
+    private final long deadline;
+    private long rounds;
+    private volatile boolean cancelled = false;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * the task will not run, it is dropped from the wheel when its slot comes up
+     */
+    public void cancel() {
+      cancelled = true;
+    }
+  }
+
+  private final long tickNanos;
+  private final int mask;
+  private final ArrayList<ArrayList<Timeout>> slots = new ArrayList<ArrayList<Timeout>>();
+
+  // timeouts scheduled by other threads, moved into their slot at the next tick
+  private ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<Timeout>();
+
+  private final long startTime = System.nanoTime();
+  private long tick = 0;
+  private Thread thread;
+  private volatile boolean running = true;
+
+  // statistics, written by the wheel thread
+  volatile long expired = 0;
+  volatile long cancelled = 0;
+  volatile long pending = 0;
+  volatile long maxLatenessNanos = 0;
+  private long totalLatenessNanos = 0;
+
+  /**
+   * @param tickMillis resolution of the timers
+   * @param slotCount number of slots, rounded up to a power of two
+   */
+  public TimingWheel(String name, long tickMillis, int slotCount) {
+    tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+    int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+    mask = size - 1;
+    for (int i = 0; i < size; i++) {
+      slots.add(new ArrayList<Timeout>());
+    }
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * run the task once after the given delay, on the wheel thread
+   */
+  public Timeout schedule(Runnable task, long delayMillis) {
+    Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+    incoming.add(timeout);
+    return timeout;
+  }
+
+  public void stop() {
+    running = false;
+    thread.interrupt();
+  }
+
+  public void run() {
+    while (running) {
+      long deadline = startTime + (tick + 1) * tickNanos;
+      long sleep = deadline - System.nanoTime();
+      if (sleep > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleep);
+        } catch (InterruptedException e) {
+          if (!running) {
+            return;
+          }
+        }
+        continue;
+      }
+      transferIncoming();
+      expire(slots.get((int) (tick & mask)));
+      tick++;
+    }
+  }
+
+  private void transferIncoming() {
+    Timeout timeout;
+    while ((timeout = incoming.poll()) != null) {
+      if (timeout.cancelled) {
+        cancelled++;
+        continue;
+      }
+      // slot n is expired at the end of tick n, that is after every deadline falling within it
+      long due = (timeout.deadline - startTime) / tickNanos;
+      // already due: run it in the current slot
+      due = Math.max(due, tick);
+      timeout.rounds = (due - tick) / slots.size();
+      slots.get((int) (due & mask)).add(timeout);
+      pending++;
+    }
+  }
+
+  private void expire(ArrayList<Timeout> slot) {
+    int kept = 0;
+    for (int i = 0; i < slot.size(); i++) {
+      Timeout timeout = slot.get(i);
+      if (timeout.cancelled) {
+        cancelled++;
+        pending--;
+      } else if (timeout.rounds > 0) {
+        timeout.rounds--;
+        slot.set(kept++, timeout);
+      } else {
+        pending--;
+        expired++;
+        long lateness = Math.max(0, System.nanoTime() - timeout.deadline);
+        totalLatenessNanos += lateness;
+        maxLatenessNanos = Math.max(maxLatenessNanos, lateness);
+        try {
+          timeout.task.run();
+        } catch (Exception e) {
+          System.out.println("TIMER ERROR: task failed;");
+          e.printStackTrace();
+        }
+      }
+    }
+    // tasks may not be rescheduled into the slot being expired, they go through incoming
+    slot.subList(kept, slot.size()).clear();
+  }
+
+  public String toString() {
+    long done = expired;
+    return "tick " + TimeUnit.NANOSECONDS.toMillis(tickNanos) + " ms, " + slots.size() + " slots, pending " + (pending + incoming.size())
+        + ", expired " + done + ", cancelled " + cancelled
+        + ", avg late " + String.format("%.2f", done == 0 ? 0.0 : totalLatenessNanos / 1e6 / done) + " ms"
+        + ", max late " + String.format("%.2f", maxLatenessNanos / 1e6) + " ms";
+  }
+}
@@ -0,0 +1,188 @@
+package socs.network.node;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * undirected topologies for the Simulation, routers are numbered 0..nodes-1.
+ * <p/>
+ * Specs: ring:N, grid:N (the most square grid of N routers), random:N:D (connected, average degree
+ * D), fattree:K (the 5K^2/4 switches of a K-ary fat tree) and file:PATH (one "a b" link per line,
+ * # starts a comment).
+ */
+public class TopologyGenerator {
+
+  public final int nodes;
+  public final ArrayList<int[]> links = new ArrayList<int[]>();
+  private HashSet<Long> present = new HashSet<Long>();
+
+  private TopologyGenerator(int nodes) {
+    this.nodes = nodes;
+  }
+
+  private boolean link(int a, int b) {
+    if (a == b || !present.add(key(a, b))) {
+      return false;
+    }
+    links.add(new int[]{a, b});
+    return true;
+  }
+
+  private static long key(int a, int b) {
+    return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+  }
+
+  /**
+   * highest number of links of a router
+   */
+  public int maxDegree() {
+    int[] degree = new int[nodes];
+    int max = 0;
+    for (int[] l : links) {
+      max = Math.max(max, Math.max(++degree[l[0]], ++degree[l[1]]));
+    }
+    return max;
+  }
+
+  /**
+   * hop counts from the given router, -1 for unreachable routers
+   */
+  public int[] hops(int from) {
+    ArrayList<ArrayList<Integer>> adj = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < nodes; i++) {
+      adj.add(new ArrayList<Integer>());
+    }
+    for (int[] l : links) {
+      adj.get(l[0]).add(l[1]);
+      adj.get(l[1]).add(l[0]);
+    }
+    int[] dist = new int[nodes];
+    java.util.Arrays.fill(dist, -1);
+    int[] queue = new int[nodes];
+    int head = 0;
+    int tail = 0;
+    dist[from] = 0;
+    queue[tail++] = from;
+    while (head < tail) {
+      int x = queue[head++];
+      for (int y : adj.get(x)) {
+        if (dist[y] == -1) {
+          dist[y] = dist[x] + 1;
+          queue[tail++] = y;
+        }
+      }
+    }
+    return dist;
+  }
+
+  public static TopologyGenerator parse(String spec, long seed) throws IOException {
+    String[] parts = spec.split(":");
+    String kind = parts[0];
+    if (kind.equals("ring")) {
+      return ring(Integer.parseInt(parts[1]));
+    } else if (kind.equals("grid")) {
+      return grid(Integer.parseInt(parts[1]));
+    } else if (kind.equals("random")) {
+      return random(Integer.parseInt(parts[1]), parts.length > 2 ? Double.parseDouble(parts[2]) : 4, new Random(seed));
+    } else if (kind.equals("fattree")) {
+      return fatTree(Integer.parseInt(parts[1]));
+    } else if (kind.equals("file")) {
+      return file(spec.substring("file:".length()));
+    }
+    throw new IllegalArgumentException("Unknown topology " + spec);
+  }
+
+  public static TopologyGenerator ring(int n) {
+    TopologyGenerator t = new TopologyGenerator(n);
+    for (int i = 0; i < n; i++) {
+      t.link(i, (i + 1) % n);
+    }
+    return t;
+  }
+
+  public static TopologyGenerator grid(int n) {
+    TopologyGenerator t = new TopologyGenerator(n);
+    int cols = (int) Math.ceil(Math.sqrt(n));
+    for (int i = 0; i < n; i++) {
+      if ((i + 1) % cols != 0 && i + 1 < n) {
+        t.link(i, i + 1);
+      }
+      if (i + cols < n) {
+        t.link(i, i + cols);
+      }
+    }
+    return t;
+  }
+
+  /**
+   * a random spanning tree, for connectivity, plus random links up to the average degree
+   */
+  public static TopologyGenerator random(int n, double degree, Random random) {
+    TopologyGenerator t = new TopologyGenerator(n);
+    for (int i = 1; i < n; i++) {
+      t.link(i, random.nextInt(i));
+    }
+    long target = Math.min((long) (n * degree / 2), (long) n * (n - 1) / 2);
+    while (t.links.size() < target) {
+      t.link(random.nextInt(n), random.nextInt(n));
+    }
+    return t;
+  }
+
+  /**
+   * core switches first, then for each pod its aggregation and edge switches
+   */
+  public static TopologyGenerator fatTree(int k) {
+    int half = k / 2;
+    int core = half * half;
+    TopologyGenerator t = new TopologyGenerator(core + k * k);
+    for (int pod = 0; pod < k; pod++) {
+      int agg = core + pod * k;
+      int edge = agg + half;
+      for (int a = 0; a < half; a++) {
+        for (int c = 0; c < half; c++) {
+          t.link(agg + a, a * half + c);
+        }
+        for (int e = 0; e < half; e++) {
+          t.link(agg + a, edge + e);
+        }
+      }
+    }
+    return t;
+  }
+
+  public static TopologyGenerator file(String path) throws IOException {
+    ArrayList<int[]> pairs = new ArrayList<int[]>();
+    int n = 0;
+    BufferedReader in = new BufferedReader(new FileReader(path));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        int comment = line.indexOf('#');
+        if (comment != -1) {
+          line = line.substring(0, comment);
+        }
+        line = line.trim();
+        if (line.isEmpty()) {
+          continue;
+        }
+        String[] ends = line.split("\\s+");
+        int a = Integer.parseInt(ends[0]);
+        int b = Integer.parseInt(ends[1]);
+        pairs.add(new int[]{a, b});
+        n = Math.max(n, Math.max(a, b) + 1);
+      }
+    } finally {
+      in.close();
+    }
+    TopologyGenerator t = new TopologyGenerator(n);
+    for (int[] p : pairs) {
+      t.link(p[0], p[1]);
+    }
+    return t;
+  }
+}
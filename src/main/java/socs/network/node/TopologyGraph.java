@@ -0,0 +1,149 @@
+package socs.network.node;
+
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * immutable view of the topology described by the LSAs of the database, stored as compressed
+ * sparse rows: the neighbours of node u are neighbours[offsets[u] .. offsets[u + 1]), sorted by id,
+ * with the cost of each edge at the same index in weights.
+ * <p/>
+ * Only two-way links are kept, i.e. u -> v is an edge when the LSA of u lists v and the LSA of v
+ * lists u. Node ids come from the RouterIds of the database.
+ */
+public class TopologyGraph {
+
+  public final RouterIds ids;
+  public final int nodeCount;
+  public final int[] offsets;
+  public final int[] neighbours;
+  public final int[] weights;
+
+  private TopologyGraph(RouterIds ids, int nodeCount, int[] offsets, int[] neighbours, int[] weights) {
+    this.ids = ids;
+    this.nodeCount = nodeCount;
+    this.offsets = offsets;
+    this.neighbours = neighbours;
+    this.weights = weights;
+  }
+
+  /**
+   * build the graph from the given LSAs, interning any router seen for the first time
+   */
+  public static TopologyGraph build(RouterIds ids, Collection<LSA> lsas) {
+    // first pass: intern everything so the node count is known
+    int edgeCount = 0;
+    for (LSA lsa : lsas) {
+      if (lsa.summary) {
+        continue; // routes to other areas, not edges
+      }
+      ids.intern(lsa.linkStateID);
+      for (LinkDescription ld : lsa.links) {
+        ids.intern(ld.linkID);
+        edgeCount++;
+      }
+    }
+    int n = ids.size();
+
+    // second pass: declared adjacency, one sorted row per originator
+    int[] declOffsets = new int[n + 1];
+    long[] declared = new long[edgeCount]; // (neighbour << 32 | weight) grouped by originator
+    int[] degree = new int[n];
+    for (LSA lsa : lsas) {
+      if (lsa.summary) {
+        continue;
+      }
+      int u = ids.lookup(lsa.linkStateID);
+      for (LinkDescription ld : lsa.links) {
+        if (!ld.linkID.equals(lsa.linkStateID)) {
+          degree[u]++;
+        }
+      }
+    }
+    for (int u = 0; u < n; u++) {
+      declOffsets[u + 1] = declOffsets[u] + degree[u];
+    }
+    int[] fill = Arrays.copyOf(declOffsets, n);
+    for (LSA lsa : lsas) {
+      if (lsa.summary) {
+        continue;
+      }
+      int u = ids.lookup(lsa.linkStateID);
+      for (LinkDescription ld : lsa.links) {
+        if (!ld.linkID.equals(lsa.linkStateID)) {
+          declared[fill[u]++] = ((long) ids.lookup(ld.linkID) << 32) | (ShortestPathTree.weightOf(ld) & 0xffffffffL);
+        }
+      }
+    }
+    for (int u = 0; u < n; u++) {
+      Arrays.sort(declared, declOffsets[u], declOffsets[u + 1]);
+    }
+
+    // third pass: keep two-way edges only
+    int[] offsets = new int[n + 1];
+    int[] neighbours = new int[declOffsets[n]];
+    int[] weights = new int[declOffsets[n]];
+    int e = 0;
+    for (int u = 0; u < n; u++) {
+      offsets[u] = e;
+      int last = -1;
+      for (int i = declOffsets[u]; i < declOffsets[u + 1]; i++) {
+        int v = (int) (declared[i] >>> 32);
+        if (v == last) {
+          continue; // duplicate link, the cheapest one sorts first
+        }
+        last = v;
+        if (declares(declared, declOffsets, v, u)) {
+          neighbours[e] = v;
+          weights[e] = (int) declared[i];
+          e++;
+        }
+      }
+    }
+    offsets[n] = e;
+    return new TopologyGraph(ids, n, offsets, Arrays.copyOf(neighbours, e), Arrays.copyOf(weights, e));
+  }
+
+  private static boolean declares(long[] declared, int[] declOffsets, int u, int v) {
+    int lo = declOffsets[u];
+    int hi = declOffsets[u + 1] - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int x = (int) (declared[mid] >>> 32);
+      if (x < v) {
+        lo = mid + 1;
+      } else if (x > v) {
+        hi = mid - 1;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public int edgeCount() {
+    return neighbours.length;
+  }
+
+  /**
+   * cost of the edge u -> v, or ShortestPathTree.INFINITY if there is none
+   */
+  public int weight(int u, int v) {
+    int lo = offsets[u];
+    int hi = offsets[u + 1] - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (neighbours[mid] < v) {
+        lo = mid + 1;
+      } else if (neighbours[mid] > v) {
+        hi = mid - 1;
+      } else {
+        return weights[mid];
+      }
+    }
+    return ShortestPathTree.INFINITY;
+  }
+}
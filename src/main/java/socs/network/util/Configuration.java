@@ -15,6 +15,17 @@ public class Configuration {
     _config = ConfigFactory.parseFile(new File(path));
   }
 
+  /**
+   * an empty configuration, to be filled with addEntry
+   */
+  public Configuration() {
+    _config = ConfigFactory.empty();
+  }
+
+  public boolean hasPath(String key) {
+    return _config.hasPath(key);
+  }
+
   public String getString(String key) {
     return _config.getString(key);
   }
@@ -0,0 +1,76 @@
+package socs.network.util;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * histogram of non-negative values (e.g. durations in nanoseconds) in power of two buckets.
+ * Recording is a couple of LongAdder increments, so it can sit on hot paths shared by threads;
+ * percentiles are only as precise as the bucket they fall in (within a factor of two).
+ */
+public class Histogram {
+
+  private static final int BUCKETS = 64;
+
+  // bucket i counts the values v with 2^(i-1) <= v < 2^i, bucket 0 counts zeros
+  private LongAdder[] buckets = new LongAdder[BUCKETS];
+  private LongAdder count = new LongAdder();
+  private LongAdder sum = new LongAdder();
+  private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  public Histogram() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    buckets[BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  public long count() {
+    return count.sum();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public double mean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * upper bound of the bucket holding the given percentile (0-100)
+   */
+  public long percentile(double p) {
+    long n = count.sum();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(n * p / 100.0);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets[i].sum();
+      if (seen >= rank) {
+        return i == 0 ? 0 : Math.min(max.get(), (1L << Math.min(i, 62)) - 1);
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * count, mean, p50, p99 and max, values divided by the given unit (e.g. 1000 for micros)
+   */
+  public String summary(long unit, String unitName) {
+    return "count " + count() + ", mean " + String.format("%.1f", mean() / unit) + " " + unitName
+        + ", p50 " + percentile(50) / unit + ", p99 " + percentile(99) / unit + ", max " + max() / unit + " " + unitName;
+  }
+}
@@ -0,0 +1,111 @@
+package socs.network.message;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LSATest {
+
+  private static LinkDescription link(String linkID, int port) {
+    LinkDescription ld = new LinkDescription();
+    ld.linkID = linkID;
+    ld.portNum = port;
+    return ld;
+  }
+
+  private static LSA lsa(int seq, LinkDescription... links) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = "10.0.0.1";
+    lsa.lsaSeqNumber = seq;
+    lsa.links.addAll(Arrays.asList(links));
+    return lsa;
+  }
+
+  @Test
+  public void deltaCarriesOnlyTheChanges() {
+    LSA base = lsa(1, link("10.0.0.1", -1), link("10.0.0.2", 0), link("10.0.0.3", 1),
+        link("10.0.0.4", 2), link("10.0.0.5", 3));
+    LSA next = lsa(2, link("10.0.0.1", -1), link("10.0.0.2", 4), link("10.0.0.3", 1),
+        link("10.0.0.4", 2), link("10.0.0.6", 3));
+    LSA delta = LSA.delta(base, next);
+    assertNotNull(delta);
+    assertTrue(delta.delta);
+    assertEquals(1, delta.baseSeqNumber);
+    assertEquals(2, delta.lsaSeqNumber);
+    // 10.0.0.2 moved to another port, 10.0.0.6 is new, 10.0.0.5 is gone
+    assertEquals(Arrays.asList(link("10.0.0.2", 4), link("10.0.0.6", 3)), delta.links);
+    assertEquals(Arrays.asList("10.0.0.5"), delta.removedLinks);
+  }
+
+  @Test
+  public void applyToRebuildsTheNextInstance() {
+    LSA base = lsa(1, link("10.0.0.1", -1), link("10.0.0.2", 0), link("10.0.0.3", 1),
+        link("10.0.0.4", 2), link("10.0.0.5", 3));
+    LSA next = lsa(2, link("10.0.0.1", -1), link("10.0.0.2", 4), link("10.0.0.3", 1),
+        link("10.0.0.4", 2), link("10.0.0.6", 3));
+    LSA full = LSA.delta(base, next).applyTo(base);
+    assertFalse(full.delta);
+    assertEquals(next.linkStateID, full.linkStateID);
+    assertEquals(next.lsaSeqNumber, full.lsaSeqNumber);
+    // base order with replacements in place, new links at the end
+    assertEquals(next.links, full.links);
+  }
+
+  @Test
+  public void noDeltaWhenNotSmaller() {
+    LSA base = lsa(1, link("10.0.0.1", -1), link("10.0.0.2", 0));
+    LSA next = lsa(2, link("10.0.0.1", -1), link("10.0.0.3", 0));
+    assertNull(LSA.delta(base, next));
+  }
+
+  @Test
+  public void unchangedLSAGivesAnEmptyDelta() {
+    LSA base = lsa(1, link("10.0.0.1", -1), link("10.0.0.2", 0));
+    LSA delta = LSA.delta(base, lsa(2, link("10.0.0.1", -1), link("10.0.0.2", 0)));
+    assertEquals(0, delta.links.size());
+    assertEquals(0, delta.removedLinks.size());
+    assertEquals(base.links, delta.applyTo(base).links);
+  }
+
+  @Test
+  public void agesWhileHeld() {
+    LSA lsa = lsa(1, link("10.0.0.1", -1));
+    lsa.age = 10;
+    assertEquals(10, lsa.ageNow());
+    lsa.installedAt = System.nanoTime() - 3000000000L;
+    assertEquals(13, lsa.ageNow());
+    LSA aged = lsa.aged(LSA.MAX_AGE);
+    assertEquals(LSA.MAX_AGE, aged.ageNow());
+    assertEquals(13, lsa.ageNow());
+  }
+
+  @Test
+  public void nextHopIsOneHopAndOneSecondOlder() {
+    LSA lsa = lsa(1, link("10.0.0.1", -1));
+    lsa.age = 10;
+    lsa.hops = 2;
+    lsa.installedAt = System.nanoTime() - 2000000000L;
+    LSA next = lsa.nextHop();
+    assertEquals(3, next.hops);
+    assertEquals(13, next.age);
+    assertEquals("a copy, not installed anywhere", 13, next.ageNow());
+    assertEquals(2, lsa.hops);
+    assertEquals(0xffff, lsa.aged(0xffff).nextHop().age);
+  }
+
+  @Test
+  public void deltaKeepsTheAge() {
+    LSA base = lsa(1, link("10.0.0.1", -1), link("10.0.0.2", 0), link("10.0.0.3", 1));
+    LSA next = lsa(2, link("10.0.0.1", -1), link("10.0.0.2", 0), link("10.0.0.4", 1));
+    next.age = 42;
+    LSA delta = LSA.delta(base, next);
+    assertEquals(42, delta.age);
+    assertEquals(42, delta.applyTo(base).age);
+  }
+}
@@ -0,0 +1,264 @@
+package socs.network.message;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Vector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class PacketCodecTest {
+
+  private static LSA lsa(String id, int seq) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = id;
+    lsa.lsaSeqNumber = seq;
+    lsa.originTime = 1500000000000L + seq;
+    lsa.hops = 3;
+    lsa.age = 1200;
+    for (int i = 0; i < 3; i++) {
+      LinkDescription ld = new LinkDescription();
+      ld.linkID = "192.168.1." + (i + 2);
+      ld.portNum = i;
+      ld.cost = 1 << (i * 8);
+      lsa.links.add(ld);
+    }
+    return lsa;
+  }
+
+  private static SOSPFPacket packet(short type) {
+    SOSPFPacket p = new SOSPFPacket("127.0.0.1", (short) 8001, "192.168.1.1", "192.168.1.2");
+    p.sospfType = type;
+    if (type == SOSPFPacket.HELLO) {
+      p.timestamp = 987654321012L;
+      p.echoTimestamp = -5;
+      p.echoDelay = 1234567;
+      p.area = 7;
+    }
+    if (type == SOSPFPacket.DATA) {
+      p.seq = 77;
+      p.flowID = -3;
+      p.ttl = 64;
+      p.hops = 5;
+      p.reply = true;
+      p.timestamp = 987654321012L;
+      p.payload = new byte[]{1, 2, 3, (byte) 0xff};
+    }
+    if (type == SOSPFPacket.LSAUPDATE || type == SOSPFPacket.LSREQUEST) {
+      p.lsaArray = new Vector<LSA>();
+      p.lsaArray.add(lsa("192.168.1.1", 5));
+      p.lsaArray.add(lsa("not an address", Integer.MIN_VALUE));
+      LSA summary = lsa(LSA.summaryID("192.168.1.8"), 2);
+      summary.summary = true;
+      p.lsaArray.add(summary);
+      LSA delta = lsa("192.168.1.9", 8);
+      delta.delta = true;
+      delta.baseSeqNumber = 7;
+      delta.removedLinks.add("192.168.1.10");
+      delta.removedLinks.add("not an address");
+      p.lsaArray.add(delta);
+    } else if (type == SOSPFPacket.DBDESCRIPTION || type == SOSPFPacket.LSACK) {
+      // headers only
+      p.lsaArray = new Vector<LSA>();
+      for (int i = 1; i <= 3; i++) {
+        LSA header = new LSA();
+        header.linkStateID = "192.168.1." + i;
+        header.lsaSeqNumber = i * 10;
+        p.lsaArray.add(header);
+      }
+    }
+    return p;
+  }
+
+  private static SOSPFPacket roundTrip(SOSPFPacket p) throws IOException {
+    return PacketCodec.decode(PacketCodec.encode(p));
+  }
+
+  private static void assertSameLSA(LSA expected, LSA actual) {
+    assertEquals(expected.linkStateID, actual.linkStateID);
+    assertEquals(expected.lsaSeqNumber, actual.lsaSeqNumber);
+    assertEquals(expected.originTime, actual.originTime);
+    assertEquals(expected.hops, actual.hops);
+    assertEquals(expected.age, actual.age);
+    assertEquals(expected.summary, actual.summary);
+    assertEquals(expected.delta, actual.delta);
+    if (expected.delta) {
+      assertEquals(expected.baseSeqNumber, actual.baseSeqNumber);
+      assertEquals(expected.removedLinks, actual.removedLinks);
+    }
+    assertEquals(expected.links.size(), actual.links.size());
+    for (int i = 0; i < expected.links.size(); i++) {
+      assertEquals(expected.links.get(i).linkID, actual.links.get(i).linkID);
+      assertEquals(expected.links.get(i).portNum, actual.links.get(i).portNum);
+      assertEquals(expected.links.get(i).cost, actual.links.get(i).cost);
+    }
+  }
+
+  private static void assertSamePacket(SOSPFPacket p, SOSPFPacket q) {
+    assertEquals(p.sospfType, q.sospfType);
+    assertEquals(p.srcProcessIP, q.srcProcessIP);
+    assertEquals(p.srcProcessPort, q.srcProcessPort);
+    assertEquals(p.srcIP, q.srcIP);
+    assertEquals(p.dstIP, q.dstIP);
+    assertEquals(p.routerID, q.routerID);
+    assertEquals(p.neighborID, q.neighborID);
+    assertEquals(p.timestamp, q.timestamp);
+    assertEquals(p.echoTimestamp, q.echoTimestamp);
+    assertEquals(p.echoDelay, q.echoDelay);
+    assertEquals(p.area, q.area);
+    assertEquals(p.seq, q.seq);
+    assertEquals(p.flowID, q.flowID);
+    assertEquals(p.ttl, q.ttl);
+    assertEquals(p.hops, q.hops);
+    assertEquals(p.reply, q.reply);
+    assertArrayEquals(p.payload, q.payload);
+    if (p.lsaArray == null) {
+      assertNull(q.lsaArray);
+    } else {
+      assertEquals(p.lsaArray.size(), q.lsaArray.size());
+      for (int i = 0; i < p.lsaArray.size(); i++) {
+        assertSameLSA(p.lsaArray.get(i), q.lsaArray.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void roundTripOfEveryType() throws IOException {
+    for (short type = 0; type <= SOSPFPacket.MAX_TYPE; type++) {
+      SOSPFPacket p = packet(type);
+      assertSamePacket(p, roundTrip(p));
+    }
+  }
+
+  @Test
+  public void routerAndNeighborIDsWhenTheyDiffer() throws IOException {
+    SOSPFPacket p = packet(SOSPFPacket.HELLO);
+    p.routerID = "192.168.1.7";
+    p.neighborID = "not an address";
+    SOSPFPacket q = roundTrip(p);
+    assertEquals("192.168.1.7", q.routerID);
+    assertEquals("not an address", q.neighborID);
+  }
+
+  @Test
+  public void addressesThatAreNotCanonicalIPv4() throws IOException {
+    String[] addresses = {"255.255.255.255", "0.0.0.0", "010.0.0.1", "1.2.3", "1.2.3.256", "localhost", null};
+    for (String address : addresses) {
+      SOSPFPacket p = packet(SOSPFPacket.HELLO);
+      p.srcProcessIP = address;
+      assertEquals(address, roundTrip(p).srcProcessIP);
+    }
+    assertEquals(-1, PacketCodec.parseIPv4("010.0.0.1"));
+    assertEquals(0x0a000001, PacketCodec.parseIPv4("10.0.0.1"));
+  }
+
+  @Test
+  public void emptyLSAArrayIsNotNull() throws IOException {
+    SOSPFPacket p = packet(SOSPFPacket.LSAUPDATE);
+    p.lsaArray = new Vector<LSA>();
+    assertEquals(0, roundTrip(p).lsaArray.size());
+  }
+
+  @Test
+  public void frames() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    PacketCodec.writeFrame(out, packet(SOSPFPacket.HELLO));
+    PacketCodec.writeFrame(out, packet(SOSPFPacket.LSAUPDATE));
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    assertSamePacket(packet(SOSPFPacket.HELLO), PacketCodec.readFrame(in));
+    assertSamePacket(packet(SOSPFPacket.LSAUPDATE), PacketCodec.readFrame(in));
+  }
+
+  @Test
+  public void oversizedFrameIsRejected() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new DataOutputStream(bytes).writeInt(PacketCodec.MAX_FRAME + 1);
+    try {
+      PacketCodec.readFrame(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+      fail("read a frame over MAX_FRAME");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void wrongVersionIsRejected() throws IOException {
+    byte[] body = PacketCodec.encode(packet(SOSPFPacket.HELLO));
+    body[0] = (byte) (PacketCodec.VERSION + 1);
+    try {
+      PacketCodec.decode(body);
+      fail("decoded another wire version");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void unknownTypeIsRejected() throws IOException {
+    byte[] body = PacketCodec.encode(packet(SOSPFPacket.HELLO));
+    body[2] = (byte) (SOSPFPacket.MAX_TYPE + 1);
+    try {
+      PacketCodec.decode(body);
+      fail("decoded an unknown sospfType");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void heldLSAsAreWrittenAtTheirCurrentAge() throws IOException {
+    SOSPFPacket p = packet(SOSPFPacket.LSAUPDATE);
+    LSA held = p.lsaArray.get(0);
+    held.installedAt = System.nanoTime() - 5000000000L;
+    assertEquals(1205, roundTrip(p).lsaArray.get(0).age);
+    held.age = 0xffff;
+    assertEquals(0xffff, roundTrip(p).lsaArray.get(0).age);
+  }
+
+  @Test
+  public void dataWithoutPayload() throws IOException {
+    SOSPFPacket p = packet(SOSPFPacket.DATA);
+    p.payload = null;
+    assertEquals(0, roundTrip(p).payload.length);
+  }
+
+  @Test
+  public void payloadLongerThanThePacketIsRejected() throws IOException {
+    SOSPFPacket p = packet(SOSPFPacket.DATA);
+    p.payload = null;
+    p.reply = false;
+    byte[] body = PacketCodec.encode(p);
+    // the payload length is followed by the lsaCount of -1
+    int at = body.length - 8;
+    body[at] = 0x7f;
+    try {
+      PacketCodec.decode(body);
+      fail("decoded a payload past the end of the packet");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void hugeLSACountFailsOnTheMissingBytes() throws IOException {
+    SOSPFPacket p = packet(SOSPFPacket.LSAUPDATE);
+    p.lsaArray = new Vector<LSA>();
+    byte[] body = PacketCodec.encode(p);
+    // the lsaCount is the last field of a packet without LSAs
+    body[body.length - 4] = 0x7f;
+    try {
+      PacketCodec.decode(body);
+      fail("decoded LSAs the packet does not carry");
+    } catch (IOException e) {
+      // expected, without allocating for the count first
+    }
+  }
+}
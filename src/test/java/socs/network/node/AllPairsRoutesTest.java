@@ -0,0 +1,209 @@
+package socs.network.node;
+
+import org.junit.Before;
+import org.junit.Test;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the parallel table against one SpfCalculator run per source over the same graph
+ */
+public class AllPairsRoutesTest {
+
+  private static final int ROUTERS = 60;
+  private static final int INFINITY = ShortestPathTree.INFINITY;
+
+  private LinkStateDatabase lsd;
+
+  private static String ip(int i) {
+    return "10.0." + (i / 100) + "." + (i % 100);
+  }
+
+  // a random two-way topology with costs 1 to 3, so there are equal-cost paths
+  @Before
+  public void setUp() {
+    Random random = new Random(7);
+    List<List<LinkDescription>> links = new ArrayList<List<LinkDescription>>();
+    for (int i = 0; i < ROUTERS; i++) {
+      links.add(new ArrayList<LinkDescription>());
+    }
+    for (int i = 1; i < ROUTERS; i++) {
+      // a few routers are left without links, so some pairs are unreachable
+      if (i % 17 == 0) {
+        continue;
+      }
+      int degree = 1 + random.nextInt(3);
+      for (int k = 0; k < degree; k++) {
+        int j = random.nextInt(i);
+        if ((j % 17 != 0 || j == 0) && !lists(links.get(i), ip(j))) {
+          int cost = 1 + random.nextInt(3);
+          links.get(i).add(link(ip(j), links.get(i).size(), cost));
+          links.get(j).add(link(ip(i), links.get(j).size(), cost));
+        }
+      }
+    }
+    RouterDescription rd = new RouterDescription();
+    rd.simulatedIPAddress = ip(0);
+    lsd = new LinkStateDatabase(rd);
+    for (int i = 0; i < ROUTERS; i++) {
+      LSA lsa = new LSA();
+      lsa.linkStateID = ip(i);
+      lsa.lsaSeqNumber = 1;
+      lsa.links.add(link(ip(i), -1, 0));
+      lsa.links.addAll(links.get(i));
+      lsd.installLSA(lsa);
+    }
+  }
+
+  private static boolean lists(List<LinkDescription> links, String linkID) {
+    for (LinkDescription ld : links) {
+      if (ld.linkID.equals(linkID)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static LinkDescription link(String linkID, int port, int cost) {
+    LinkDescription ld = new LinkDescription();
+    ld.linkID = linkID;
+    ld.portNum = port;
+    ld.cost = cost;
+    return ld;
+  }
+
+  @Test
+  public void everyRowMatchesItsOwnDijkstra() {
+    TopologyGraph g = lsd.topology();
+    AllPairsRoutes all = AllPairsRoutes.compute(g, new ForkJoinPool(4));
+    SpfCalculator spf = new SpfCalculator();
+    long multipath = 0;
+    for (int s = 0; s < g.nodeCount; s++) {
+      spf.run(g, s);
+      SpfCalculator from = new SpfCalculator();
+      for (int d = 0; d < g.nodeCount; d++) {
+        assertEquals(g.ids.name(s) + " to " + g.ids.name(d), spf.dist[d], all.cost(s, d));
+        // a neighbour is a next hop iff the path over it is as short
+        List<String> expected = new ArrayList<String>();
+        if (d != s && spf.dist[d] != INFINITY) {
+          for (int e = g.offsets[s]; e < g.offsets[s + 1]; e++) {
+            int n = g.neighbours[e];
+            from.run(g, n);
+            if (g.weights[e] + from.dist[d] == spf.dist[d]) {
+              expected.add(g.ids.name(n));
+            }
+          }
+          expected.sort(null);
+        }
+        assertEquals(g.ids.name(s) + " to " + g.ids.name(d), expected, all.nextHops(s, d));
+        if (expected.size() > 1) {
+          multipath++;
+        }
+      }
+    }
+    assertTrue("the topology has equal-cost paths", multipath > 0);
+  }
+
+  @Test
+  public void rowOfThisRouterMatchesItsRoutes() {
+    TopologyGraph g = lsd.topology();
+    AllPairsRoutes all = lsd.allPairs(ForkJoinPool.commonPool());
+    int root = g.ids.lookup(ip(0));
+    for (int i = 1; i < ROUTERS; i++) {
+      int d = g.ids.lookup(ip(i));
+      ForwardingTable.Route route = lsd.route(ip(i));
+      assertEquals(route.reachable() ? route.cost : INFINITY, all.cost(root, d));
+      assertEquals(route.nextHops, all.nextHops(root, d));
+    }
+  }
+
+  @Test
+  public void dumpHasTheLayoutOfTheClassComment() throws IOException {
+    AllPairsRoutes all = lsd.allPairs(ForkJoinPool.commonPool());
+    Path dump = Files.createTempFile("routes", ".bin");
+    try {
+      FileChannel out = FileChannel.open(dump, StandardOpenOption.WRITE);
+      try {
+        all.write(out, 3);
+      } finally {
+        out.close();
+      }
+      ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(dump));
+      assertEquals(0x41505250, b.getInt());
+      assertEquals(3, b.getInt());
+      assertEquals(all.nodeCount, b.getInt());
+      int edges = b.getInt();
+      assertEquals(all.graph.edgeCount(), edges);
+      assertEquals(all.maskWords, b.getInt());
+      long names = 0;
+      for (int i = 0; i < all.nodeCount; i++) {
+        names += 2 + all.graph.ids.name(i).length();
+      }
+      long pairs = (long) all.nodeCount * all.nodeCount;
+      long size = 20 + names + 4L * (all.nodeCount + 1 + edges) + 4 * pairs + 8 * pairs * all.maskWords;
+      assertEquals(size, b.capacity());
+    } finally {
+      Files.delete(dump);
+    }
+  }
+
+  @Test
+  public void hubsWithMoreThan64Links() {
+    // two hubs sharing 150 leaves: 150 equal-cost next hops from one hub to the other
+    int leaves = 150;
+    String a = "10.1.0.1";
+    String b = "10.1.0.2";
+    RouterDescription rd = new RouterDescription();
+    rd.simulatedIPAddress = a;
+    lsd = new LinkStateDatabase(rd);
+    LSA hubA = new LSA();
+    LSA hubB = new LSA();
+    hubA.linkStateID = a;
+    hubB.linkStateID = b;
+    hubA.lsaSeqNumber = 1;
+    hubB.lsaSeqNumber = 1;
+    hubA.links.add(link(a, -1, 0));
+    hubB.links.add(link(b, -1, 0));
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < leaves; i++) {
+      String leaf = ip(i);
+      expected.add(leaf);
+      hubA.links.add(link(leaf, i, 1));
+      hubB.links.add(link(leaf, i, 1));
+      LSA lsa = new LSA();
+      lsa.linkStateID = leaf;
+      lsa.lsaSeqNumber = 1;
+      lsa.links.add(link(leaf, -1, 0));
+      lsa.links.add(link(a, 0, 1));
+      lsa.links.add(link(b, 1, 1));
+      lsd.installLSA(lsa);
+    }
+    lsd.installLSA(hubA);
+    lsd.installLSA(hubB);
+    expected.sort(null);
+
+    AllPairsRoutes all = lsd.allPairs(ForkJoinPool.commonPool());
+    TopologyGraph g = all.graph;
+    assertEquals(3, all.maskWords);
+    assertEquals(2, all.cost(g.ids.lookup(a), g.ids.lookup(b)));
+    assertEquals(expected, all.nextHops(g.ids.lookup(a), g.ids.lookup(b)));
+    assertEquals(expected, all.nextHops(g.ids.lookup(b), g.ids.lookup(a)));
+    assertEquals(lsd.route(b).nextHops, all.nextHops(g.ids.lookup(a), g.ids.lookup(b)));
+    // a leaf reaches the other leaves over both hubs
+    assertEquals(2, all.nextHops(g.ids.lookup(ip(0)), g.ids.lookup(ip(149))).size());
+  }
+}
@@ -0,0 +1,108 @@
+package socs.network.node;
+
+import org.junit.Before;
+import org.junit.Test;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+import socs.network.message.SOSPFPacket;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * a router in the middle of 192.168.1.1 - 192.168.1.2 - 192.168.1.3 forwarding DATA
+ */
+public class DataForwardingTest {
+
+  private Router router;
+  private TestRouters.CaptureStream toLeft;
+  private TestRouters.CaptureStream toRight;
+  private LinkService left;
+  private LinkService right;
+
+  @Before
+  public void setUp() {
+    router = TestRouters.router("192.168.1.2");
+    toLeft = new TestRouters.CaptureStream();
+    toRight = new TestRouters.CaptureStream();
+    left = TestRouters.service(router, "192.168.1.1", toLeft);
+    right = TestRouters.service(router, "192.168.1.3", toRight);
+    router.ports.put(router.ports.allocate(), left);
+    router.ports.put(router.ports.allocate(), right);
+    left.setStatus(RouterStatus.FULL);
+    right.setStatus(RouterStatus.FULL);
+    router.lsd.installLSA(lsa("192.168.1.1", "192.168.1.2"));
+    router.lsd.installLSA(lsa("192.168.1.2", "192.168.1.1", "192.168.1.3"));
+    router.lsd.installLSA(lsa("192.168.1.3", "192.168.1.2"));
+  }
+
+  private static LSA lsa(String id, String... neighbours) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = id;
+    lsa.lsaSeqNumber = 100;
+    for (int i = -1; i < neighbours.length; i++) {
+      LinkDescription ld = new LinkDescription();
+      ld.linkID = i < 0 ? id : neighbours[i];
+      ld.portNum = i;
+      lsa.links.add(ld);
+    }
+    return lsa;
+  }
+
+  private static SOSPFPacket data(String src, String dst, int ttl) {
+    SOSPFPacket p = new SOSPFPacket("127.0.0.1", (short) 0, src, dst);
+    p.sospfType = SOSPFPacket.DATA;
+    p.seq = 9;
+    p.ttl = ttl;
+    p.hops = 1;
+    p.payload = new byte[16];
+    return p;
+  }
+
+  // the DATA packets written to the stream, skipping the LSAs the router floods
+  private static List<SOSPFPacket> data(TestRouters.CaptureStream stream) {
+    List<SOSPFPacket> packets = stream.take();
+    packets.removeIf(p -> p.sospfType != SOSPFPacket.DATA);
+    return packets;
+  }
+
+  @Test
+  public void forwardsTowardsTheDestination() {
+    router.receiveData(left, data("192.168.1.1", "192.168.1.3", 10));
+    List<SOSPFPacket> sent = data(toRight);
+    assertEquals(1, sent.size());
+    assertEquals(9, sent.get(0).ttl);
+    assertEquals(2, sent.get(0).hops);
+    assertEquals(0, data(toLeft).size());
+    assertEquals(1, router.metrics.dataForwarded.sum());
+  }
+
+  @Test
+  public void echoesWhatIsAddressedToIt() {
+    router.receiveData(left, data("192.168.1.1", "192.168.1.2", 10));
+    List<SOSPFPacket> sent = data(toLeft);
+    assertEquals(1, sent.size());
+    assertTrue(sent.get(0).reply);
+    assertEquals("192.168.1.1", sent.get(0).dstIP);
+    assertEquals(9, sent.get(0).seq);
+    assertEquals(1, router.metrics.dataDelivered.sum());
+  }
+
+  @Test
+  public void dropsWithoutAnAdjacency() {
+    right.setStatus(RouterStatus.INIT);
+    router.receiveData(left, data("192.168.1.1", "192.168.1.3", 10));
+    assertEquals(0, data(toRight).size());
+    assertEquals(1, router.metrics.dataDropped.sum());
+  }
+
+  @Test
+  public void dropsWhenTheTTLRunsOut() {
+    router.receiveData(left, data("192.168.1.1", "192.168.1.3", 0));
+    router.receiveData(left, data("192.168.1.1", "10.0.0.1", 10));
+    assertEquals(0, data(toRight).size());
+    assertEquals(2, router.metrics.dataDropped.sum());
+  }
+}
@@ -0,0 +1,166 @@
+package socs.network.node;
+
+import org.junit.Before;
+import org.junit.Test;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+import socs.network.message.SOSPFPacket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * two routers whose link comes up, packets are carried between their handlers by hand
+ */
+public class DatabaseExchangeTest {
+
+  private Router a;
+  private Router b;
+  private TestRouters.CaptureStream aToB;
+  private TestRouters.CaptureStream bToA;
+  private LinkService ab;
+  private LinkService ba;
+  // what each side asked for in its LSREQUESTs
+  private List<String> requestedByA = new ArrayList<String>();
+  private List<String> requestedByB = new ArrayList<String>();
+
+  @Before
+  public void setUp() {
+    // full LSAs only: the first delta of a router has a base its neighbour cannot hold, so it
+    // would be requested as well. Newer instances are installed however soon they follow the
+    // ones the test installed
+    String[] settings = {"socs.network.router.floodPacingMs = 0", "socs.network.router.deltaLSA = false",
+        "socs.network.router.minLSArrivalMs = 0"};
+    a = TestRouters.router("192.168.1.1", settings);
+    b = TestRouters.router("192.168.1.2", settings);
+    aToB = new TestRouters.CaptureStream();
+    bToA = new TestRouters.CaptureStream();
+    ab = TestRouters.service(a, "192.168.1.2", aToB);
+    ba = TestRouters.service(b, "192.168.1.1", bToA);
+    a.ports.put(a.ports.allocate(), ab);
+    b.ports.put(b.ports.allocate(), ba);
+  }
+
+  private static LSA lsa(String id, int seq) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = id;
+    lsa.lsaSeqNumber = seq;
+    LinkDescription self = new LinkDescription();
+    self.linkID = id;
+    self.portNum = -1;
+    lsa.links.add(self);
+    return lsa;
+  }
+
+  private static void deliver(Router to, LinkService via, SOSPFPacket packet) {
+    if (packet.sospfType == SOSPFPacket.DBDESCRIPTION) {
+      to.receiveDatabaseDescription(via, packet);
+    } else if (packet.sospfType == SOSPFPacket.LSREQUEST) {
+      to.receiveLSRequest(via, packet);
+    } else if (packet.sospfType == SOSPFPacket.LSAUPDATE) {
+      to.receiveLSAUpdate(via, packet);
+    }
+  }
+
+  // carry packets both ways until neither side has anything left to say
+  private void pump() {
+    for (int round = 0; round < 100; round++) {
+      List<SOSPFPacket> fromA = aToB.take();
+      List<SOSPFPacket> fromB = bToA.take();
+      if (fromA.isEmpty() && fromB.isEmpty()) {
+        return;
+      }
+      for (SOSPFPacket p : fromA) {
+        record(p, requestedByA);
+        deliver(b, ba, p);
+      }
+      for (SOSPFPacket p : fromB) {
+        record(p, requestedByB);
+        deliver(a, ab, p);
+      }
+    }
+    throw new AssertionError("the exchange does not settle");
+  }
+
+  private static void record(SOSPFPacket p, List<String> requests) {
+    if (p.sospfType == SOSPFPacket.LSREQUEST) {
+      for (LSA header : p.lsaArray) {
+        requests.add(header.linkStateID + "@" + header.lsaSeqNumber);
+      }
+    }
+  }
+
+  private void linkUp() {
+    ab.setStatus(RouterStatus.TWO_WAY);
+    ba.setStatus(RouterStatus.TWO_WAY);
+    a.onLinkUp(ab);
+    b.onLinkUp(ba);
+    pump();
+  }
+
+  @Test
+  public void requestsOnlyMissingAndOlderLSAs() {
+    a.lsd.installLSA(lsa("10.0.0.1", 5));
+    a.lsd.installLSA(lsa("10.0.0.2", 3));
+    b.lsd.installLSA(lsa("10.0.0.1", 2));
+    b.lsd.installLSA(lsa("10.0.0.3", 4));
+    linkUp();
+
+    assertEquals(Arrays.asList("10.0.0.3@4"), requestedByA);
+    requestedByB.sort(null);
+    assertEquals(Arrays.asList("10.0.0.1@5", "10.0.0.2@3"), requestedByB);
+    for (Router r : new Router[]{a, b}) {
+      assertEquals(5, r.lsd.getLSA("10.0.0.1").lsaSeqNumber);
+      assertEquals(3, r.lsd.getLSA("10.0.0.2").lsaSeqNumber);
+      assertEquals(4, r.lsd.getLSA("10.0.0.3").lsaSeqNumber);
+    }
+    assertEquals(RouterStatus.FULL, ab.link.targetRouter.status);
+    assertEquals(RouterStatus.FULL, ba.link.targetRouter.status);
+  }
+
+  @Test
+  public void identicalDatabasesGoStraightToFull() {
+    a.lsd.installLSA(lsa("10.0.0.1", 5));
+    b.lsd.installLSA(lsa("10.0.0.1", 5));
+    linkUp();
+    assertEquals(0, requestedByA.size());
+    assertEquals(0, requestedByB.size());
+    assertEquals(RouterStatus.FULL, ab.link.targetRouter.status);
+    assertEquals(RouterStatus.FULL, ba.link.targetRouter.status);
+  }
+
+  @Test
+  public void routersLearnEachOthersAdjacency() {
+    linkUp();
+    assertEquals("192.168.1.1 -> 192.168.1.2", a.lsd.getShortestPath("192.168.1.2"));
+    assertEquals("192.168.1.2 -> 192.168.1.1", b.lsd.getShortestPath("192.168.1.1"));
+  }
+
+  @Test
+  public void provisionalLSAsSurviveANeighbourLackingThem() {
+    // A restarted from a snapshot next to B, which restarted empty
+    a.lsd.installLSA(lsa("10.0.0.1", 5));
+    a.lsd.provisional.add("10.0.0.1");
+    linkUp();
+    assertEquals(5, a.lsd.getLSA("10.0.0.1").lsaSeqNumber);
+    assertEquals(5, b.lsd.getLSA("10.0.0.1").lsaSeqNumber);
+    assertTrue(a.lsd.provisional.contains("10.0.0.1"));
+  }
+
+  @Test
+  public void describedProvisionalLSAsAreConfirmed() {
+    a.lsd.installLSA(lsa("10.0.0.1", 5));
+    a.lsd.installLSA(lsa("10.0.0.2", 3));
+    a.lsd.provisional.add("10.0.0.1");
+    a.lsd.provisional.add("10.0.0.2");
+    b.lsd.installLSA(lsa("10.0.0.1", 5));
+    b.lsd.installLSA(lsa("10.0.0.2", 4));
+    linkUp();
+    assertEquals(0, a.lsd.provisional.size());
+    assertEquals(4, a.lsd.getLSA("10.0.0.2").lsaSeqNumber);
+  }
+}
@@ -0,0 +1,50 @@
+package socs.network.node;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class ExpiryIndexTest {
+
+  private ExpiryIndex index = new ExpiryIndex();
+
+  @Test
+  public void dueInTimeOrder() {
+    index.put("10.0.0.3", 300);
+    index.put("10.0.0.1", 100);
+    index.put("10.0.0.2", 200);
+    assertEquals(Collections.emptyList(), index.due(99));
+    assertEquals(Arrays.asList("10.0.0.1", "10.0.0.2"), index.due(200));
+    assertEquals(1, index.size());
+    assertEquals(Arrays.asList("10.0.0.3"), index.due(1000));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void sameTimeOrderedByID() {
+    index.put("10.0.0.2", 100);
+    index.put("10.0.0.1", 100);
+    assertEquals(Arrays.asList("10.0.0.1", "10.0.0.2"), index.due(100));
+  }
+
+  @Test
+  public void putReplacesTheEntry() {
+    index.put("10.0.0.1", 100);
+    index.put("10.0.0.1", 500);
+    assertEquals(1, index.size());
+    assertEquals(Collections.emptyList(), index.due(400));
+    assertEquals(Arrays.asList("10.0.0.1"), index.due(500));
+  }
+
+  @Test
+  public void removedEntriesAreNeverDue() {
+    index.put("10.0.0.1", 100);
+    index.put("10.0.0.2", 100);
+    index.remove("10.0.0.1");
+    index.remove("10.0.0.9");
+    assertEquals(Arrays.asList("10.0.0.2"), index.due(100));
+  }
+}
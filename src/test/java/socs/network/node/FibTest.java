@@ -0,0 +1,84 @@
+package socs.network.node;
+
+import org.junit.Test;
+import socs.network.message.PacketCodec;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class FibTest {
+
+  private Fib fib = new Fib();
+
+  private static ForwardingTable.Route route(String destination, String nextHop) {
+    return new ForwardingTable.Route(destination, Arrays.asList("192.168.1.1", nextHop, destination),
+        Collections.singletonList(nextHop), 2);
+  }
+
+  private static int ip(String address) {
+    return PacketCodec.parseIPv4(address);
+  }
+
+  @Test
+  public void longestPrefixWins() {
+    ForwardingTable.Route wide = route("10.0.0.0", "192.168.1.2");
+    ForwardingTable.Route narrow = route("10.1.0.0", "192.168.1.3");
+    ForwardingTable.Route host = route("10.1.2.3", "192.168.1.4");
+    fib.add(ip("10.0.0.0"), 8, wide);
+    fib.add(ip("10.1.0.0"), 16, narrow);
+    fib.add("10.1.2.3", host);
+    assertSame(host, fib.lookup("10.1.2.3"));
+    assertSame(narrow, fib.lookup("10.1.2.4"));
+    assertSame(narrow, fib.lookup("10.1.255.255"));
+    assertSame(wide, fib.lookup("10.2.0.1"));
+    assertNull(fib.lookup("11.0.0.1"));
+    assertEquals(3, fib.size());
+  }
+
+  @Test
+  public void defaultRouteMatchesEverything() {
+    ForwardingTable.Route any = route("0.0.0.0", "192.168.1.2");
+    fib.add(0, 0, any);
+    assertSame(any, fib.lookup("172.16.0.1"));
+    assertSame(any, fib.lookup(-1));
+  }
+
+  @Test
+  public void samePrefixReplacesTheRoute() {
+    fib.add("10.0.0.1", route("10.0.0.1", "192.168.1.2"));
+    ForwardingTable.Route newer = route("10.0.0.1", "192.168.1.3");
+    fib.add("10.0.0.1", newer);
+    assertSame(newer, fib.lookup("10.0.0.1"));
+    assertEquals(1, fib.size());
+  }
+
+  @Test
+  public void highAddressesAndOtherRouterIDs() {
+    ForwardingTable.Route broadcast = route("255.255.255.255", "192.168.1.2");
+    ForwardingTable.Route named = route("router-b", "192.168.1.3");
+    fib.add("255.255.255.255", broadcast);
+    fib.add("router-b", named);
+    assertSame(broadcast, fib.lookup("255.255.255.255"));
+    assertSame(named, fib.lookup("router-b"));
+    assertNull(fib.lookup("router-c"));
+    assertNull(fib.lookup("255.255.255.254"));
+  }
+
+  @Test
+  public void growsPastItsInitialArrays() {
+    for (int i = 0; i < 1000; i++) {
+      String destination = "10." + (i / 250) + "." + (i % 250) + ".1";
+      fib.add(destination, route(destination, "192.168.1." + (2 + i % 3)));
+    }
+    for (int i = 0; i < 1000; i++) {
+      String destination = "10." + (i / 250) + "." + (i % 250) + ".1";
+      assertEquals(destination, fib.lookup(destination).destination);
+      assertNull(fib.lookup("10." + (i / 250) + "." + (i % 250) + ".2"));
+    }
+    assertEquals(1000, fib.size());
+  }
+}
@@ -0,0 +1,202 @@
+package socs.network.node;
+
+import org.junit.Before;
+import org.junit.Test;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+import socs.network.message.SOSPFPacket;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FloodQueueTest {
+
+  private Router router;
+  private TestRouters.CaptureStream stream;
+  private LinkService service;
+
+  @Before
+  public void setUp() {
+    router = TestRouters.router("192.168.1.1");
+    stream = new TestRouters.CaptureStream();
+    service = TestRouters.service(router, "192.168.1.2", stream);
+  }
+
+  // a long window, the tests flush by hand
+  private FloodQueue manual() {
+    return new FloodQueue(service, router.timers, 60000, LSA.MAX_AGE);
+  }
+
+  static LSA lsa(String id, int seq) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = id;
+    lsa.lsaSeqNumber = seq;
+    LinkDescription self = new LinkDescription();
+    self.linkID = id;
+    self.portNum = -1;
+    lsa.links.add(self);
+    return lsa;
+  }
+
+  // the LSAs of the one LSAUPDATE sent since the last call
+  private List<LSA> sent() {
+    List<SOSPFPacket> packets = stream.take();
+    assertEquals("one LSAUPDATE per flush", 1, packets.size());
+    assertEquals(SOSPFPacket.LSAUPDATE, packets.get(0).sospfType);
+    assertEquals("192.168.1.2", packets.get(0).dstIP);
+    return packets.get(0).lsaArray;
+  }
+
+  @Test
+  public void batchesOneUpdatePerWindow() {
+    FloodQueue queue = manual();
+    queue.add(lsa("192.168.1.3", 1));
+    queue.add(lsa("192.168.1.4", 1));
+    assertEquals(2, queue.depth());
+    assertEquals(0, stream.sent.size());
+    queue.flush();
+    List<LSA> sent = sent();
+    assertEquals(2, sent.size());
+    assertEquals("192.168.1.3", sent.get(0).linkStateID);
+    assertEquals("192.168.1.4", sent.get(1).linkStateID);
+    assertEquals(0, queue.depth());
+    assertEquals(1, queue.packetsSaved());
+  }
+
+  @Test
+  public void keepsTheNewestInstance() {
+    FloodQueue queue = manual();
+    queue.add(lsa("192.168.1.3", 1));
+    queue.add(lsa("192.168.1.3", 3));
+    queue.add(lsa("192.168.1.3", 2));
+    assertEquals(1, queue.depth());
+    queue.flush();
+    List<LSA> sent = sent();
+    assertEquals(1, sent.size());
+    assertEquals(3, sent.get(0).lsaSeqNumber);
+  }
+
+  @Test
+  public void emptyFlushSendsNothing() {
+    manual().flush();
+    assertEquals(0, stream.sent.size());
+  }
+
+  @Test
+  public void noPacingSendsAtOnce() {
+    FloodQueue queue = new FloodQueue(service, router.timers, 0, LSA.MAX_AGE);
+    queue.add(lsa("192.168.1.3", 1));
+    assertEquals(1, sent().size());
+    assertEquals(0, queue.depth());
+  }
+
+  @Test
+  public void windowFlushesByItself() throws InterruptedException {
+    FloodQueue queue = new FloodQueue(service, router.timers, 20, LSA.MAX_AGE);
+    queue.add(lsa("192.168.1.3", 1));
+    queue.add(lsa("192.168.1.4", 1));
+    for (int i = 0; i < 200 && queue.depth() > 0; i++) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(10);
+    assertEquals(2, sent().size());
+  }
+
+  @Test
+  public void deltaSentAloneFullLSAWhenCoalesced() {
+    FloodQueue queue = manual();
+    LSA next = lsa("192.168.1.3", 2);
+    LSA delta = lsa("192.168.1.3", 2);
+    delta.delta = true;
+    delta.baseSeqNumber = 1;
+    queue.add(next, delta);
+    queue.flush();
+    assertTrue(sent().get(0).delta);
+
+    queue.add(lsa("192.168.1.3", 1));
+    queue.add(next, delta);
+    queue.flush();
+    List<LSA> sent = sent();
+    assertEquals(1, sent.size());
+    assertFalse("the neighbour may lack the base of the delta", sent.get(0).delta);
+    assertEquals(2, sent.get(0).lsaSeqNumber);
+  }
+
+  @Test
+  public void fullLSAReplacesAQueuedDelta() {
+    FloodQueue queue = manual();
+    LSA delta = lsa("192.168.1.3", 2);
+    delta.delta = true;
+    delta.baseSeqNumber = 1;
+    queue.add(lsa("192.168.1.3", 2), delta);
+    queue.add(lsa("192.168.1.3", 3));
+    queue.flush();
+    List<LSA> sent = sent();
+    assertFalse(sent.get(0).delta);
+    assertEquals(3, sent.get(0).lsaSeqNumber);
+  }
+
+  @Test
+  public void flushReplacesTheQueuedLiveInstance() {
+    FloodQueue queue = manual();
+    LSA live = lsa("192.168.1.3", 4);
+    queue.add(live);
+    queue.add(live.aged(LSA.MAX_AGE));
+    queue.flush();
+    List<LSA> sent = sent();
+    assertEquals(1, sent.size());
+    assertEquals(4, sent.get(0).lsaSeqNumber);
+    assertEquals(LSA.MAX_AGE, sent.get(0).age);
+  }
+
+  @Test
+  public void liveInstanceDoesNotReplaceAQueuedFlush() {
+    FloodQueue queue = manual();
+    LSA live = lsa("192.168.1.3", 4);
+    queue.add(live.aged(LSA.MAX_AGE));
+    queue.add(live);
+    queue.flush();
+    assertEquals(LSA.MAX_AGE, sent().get(0).age);
+  }
+
+  @Test
+  public void newerInstanceReplacesAQueuedFlush() {
+    FloodQueue queue = manual();
+    queue.add(lsa("192.168.1.3", 4).aged(LSA.MAX_AGE));
+    queue.add(lsa("192.168.1.3", 5));
+    queue.flush();
+    LSA sent = sent().get(0);
+    assertEquals(5, sent.lsaSeqNumber);
+    assertEquals(0, sent.age);
+  }
+
+  @Test
+  public void flushDropsRatherThanWaitForAFullQueue() throws InterruptedException {
+    Router slow = TestRouters.router("192.168.1.1", "socs.network.router.outboundQueue = 1");
+    OutboundQueueTest.GateStream gate = new OutboundQueueTest.GateStream();
+    final LinkService link = TestRouters.service(slow, "192.168.1.2", gate);
+    final FloodQueue queue = new FloodQueue(link, slow.timers, 0, LSA.MAX_AGE);
+    try {
+      // the first update is held by the writer, the second fills the queue
+      queue.add(lsa("192.168.1.3", 1));
+      assertTrue(gate.firstWrite.await(2, TimeUnit.SECONDS));
+      queue.add(lsa("192.168.1.4", 1));
+      Thread flooding = new Thread(new Runnable() {
+        public void run() {
+          queue.add(lsa("192.168.1.5", 1));
+        }
+      });
+      flooding.start();
+      flooding.join(2000);
+      assertFalse("flooding waited for the writer", flooding.isAlive());
+      assertEquals(1, link.outbound.dropped);
+      assertEquals("the dropped LSA waits for retransmission", 3, link.retransmit.size());
+    } finally {
+      gate.gate.countDown();
+    }
+  }
+}
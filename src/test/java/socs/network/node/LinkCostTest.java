@@ -0,0 +1,90 @@
+package socs.network.node;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LinkCostTest {
+
+  private static final long MS = 1000000;
+
+  // one unit per millisecond of RTT, 10% hysteresis
+  private static LinkCost dynamic() {
+    return new LinkCost(1, true, MS, 0.1);
+  }
+
+  // feed samples until the cost changes, at most the given number
+  private static int samplesUntilChange(LinkCost cost, long rttNanos, int max) {
+    for (int i = 1; i <= max; i++) {
+      if (cost.sample(rttNanos)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Test
+  public void staticCostsAreClamped() {
+    assertEquals(1, new LinkCost(0, false, MS, 0.1).get());
+    assertEquals(1, new LinkCost(-7, false, MS, 0.1).get());
+    assertEquals(LinkCost.MAX_COST, new LinkCost(Integer.MAX_VALUE, false, MS, 0.1).get());
+    LinkCost cost = new LinkCost(5, false, MS, 0.1);
+    cost.setStatic(LinkCost.MAX_COST + 1);
+    assertEquals(LinkCost.MAX_COST, cost.get());
+  }
+
+  @Test
+  public void staticCostIgnoresRTT() {
+    LinkCost cost = new LinkCost(5, false, MS, 0.1);
+    assertEquals(-1, samplesUntilChange(cost, 40 * MS, 50));
+    assertEquals(5, cost.get());
+  }
+
+  @Test
+  public void firstCostAfterTheWarmup() {
+    LinkCost cost = dynamic();
+    assertEquals(4, samplesUntilChange(cost, 10 * MS, 10));
+    assertEquals(10, cost.get());
+    assertEquals(1, cost.changes);
+  }
+
+  @Test
+  public void jitterInsideTheBandKeepsTheCost() {
+    LinkCost cost = dynamic();
+    samplesUntilChange(cost, 10 * MS, 10);
+    // 10 +- 1.4 ms stays within 0.5 + 10% of the advertised 10
+    for (int i = 0; i < 200; i++) {
+      assertFalse(cost.sample((i % 2 == 0 ? 11400 : 8600) * 1000L));
+    }
+    assertEquals(10, cost.get());
+  }
+
+  @Test
+  public void lastingChangeMovesTheCost() {
+    LinkCost cost = dynamic();
+    samplesUntilChange(cost, 10 * MS, 10);
+    // the smoothed RTT needs a few samples to leave the band
+    int samples = samplesUntilChange(cost, 20 * MS, 50);
+    assertTrue("changed after " + samples + " samples", samples > 1);
+    assertTrue(cost.get() > 11 && cost.get() <= 20);
+  }
+
+  @Test
+  public void setStaticStopsFollowingTheRTT() {
+    LinkCost cost = dynamic();
+    samplesUntilChange(cost, 10 * MS, 10);
+    cost.setStatic(3);
+    assertFalse(cost.dynamic());
+    assertEquals(-1, samplesUntilChange(cost, 50 * MS, 20));
+    assertEquals(3, cost.get());
+  }
+
+  @Test
+  public void measuredCostIsClamped() {
+    LinkCost cost = new LinkCost(1, true, 1, 0.1);
+    samplesUntilChange(cost, Long.MAX_VALUE / 4, 10);
+    assertEquals(LinkCost.MAX_COST, cost.get());
+  }
+}
@@ -0,0 +1,74 @@
+package socs.network.node;
+
+import org.junit.Test;
+import socs.network.message.SOSPFPacket;
+import socs.network.message.WireFormat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class LinkServiceTest {
+
+  private Router router = TestRouters.router("192.168.1.1");
+
+  /**
+   * a stream whose peer is gone: every read fails with the given exception
+   */
+  static class ClosedStream extends PacketStream {
+    final IOException failure;
+    int reads = 0;
+
+    ClosedStream(IOException failure) {
+      this.failure = failure;
+    }
+
+    public WireFormat format() {
+      return WireFormat.BINARY;
+    }
+
+    public void send(SOSPFPacket packet) {
+    }
+
+    public synchronized SOSPFPacket receive() throws IOException {
+      reads++;
+      throw failure;
+    }
+
+    public void close() {
+    }
+  }
+
+  // start the receive thread of a link over the stream and wait for it to end
+  private LinkService runUntilClosed(PacketStream stream, RouterStatus status) throws InterruptedException {
+    LinkService service = TestRouters.service(router, "192.168.1.2", stream);
+    router.ports.put(router.ports.allocate(), service);
+    service.setStatus(status);
+    service.startThread();
+    service.linkServiceThread.join(2000);
+    assertFalse("the receive thread ended", service.linkServiceThread.isAlive());
+    return service;
+  }
+
+  @Test
+  public void endOfStreamClosesTheLink() throws InterruptedException {
+    ClosedStream stream = new ClosedStream(new EOFException());
+    LinkService service = runUntilClosed(stream, RouterStatus.INIT);
+    assertNull(service.link);
+    assertNull("the port is given back", router.ports.lookup("192.168.1.2"));
+    assertEquals("read once, no spinning", 1, stream.reads);
+  }
+
+  @Test
+  public void resetConnectionClosesAnAdjacency() throws InterruptedException {
+    ClosedStream stream = new ClosedStream(new SocketException("Connection reset"));
+    LinkService service = runUntilClosed(stream, RouterStatus.FULL);
+    assertNull(service.link);
+    assertNull(router.ports.lookup("192.168.1.2"));
+    assertEquals(1, stream.reads);
+  }
+}
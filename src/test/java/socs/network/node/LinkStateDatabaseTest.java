@@ -0,0 +1,163 @@
+package socs.network.node;
+
+import org.junit.Test;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LinkStateDatabaseTest {
+
+  private static final String LOCAL = "10.0.0.0";
+
+  private static LinkStateDatabase database() {
+    RouterDescription rd = new RouterDescription();
+    rd.simulatedIPAddress = LOCAL;
+    return new LinkStateDatabase(rd);
+  }
+
+  private static LSA lsa(String id, int seq, String... neighbours) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = id;
+    lsa.lsaSeqNumber = seq;
+    LinkDescription self = new LinkDescription();
+    self.linkID = id;
+    self.portNum = -1;
+    lsa.links.add(self);
+    for (int i = 0; i < neighbours.length; i++) {
+      LinkDescription ld = new LinkDescription();
+      ld.linkID = neighbours[i];
+      ld.portNum = i;
+      lsa.links.add(ld);
+    }
+    return lsa;
+  }
+
+  @Test
+  public void onlyNewerInstancesAreInstalled() {
+    LinkStateDatabase lsd = database();
+    LSA first = lsa("10.0.0.1", 2);
+    assertTrue(lsd.installLSA(first));
+    assertFalse("duplicate", lsd.installLSA(lsa("10.0.0.1", 2)));
+    assertFalse("older", lsd.installLSA(lsa("10.0.0.1", 1)));
+    assertSame(first, lsd.getLSA("10.0.0.1"));
+    assertTrue(lsd.installLSA(lsa("10.0.0.1", 3)));
+    assertEquals(3, lsd.getLSA("10.0.0.1").lsaSeqNumber);
+  }
+
+  @Test
+  public void snapshotIsImmutable() {
+    LinkStateDatabase lsd = database();
+    lsd.installLSA(lsa("10.0.0.1", 1));
+    LinkStateDatabase.Snapshot before = lsd.snapshot();
+    lsd.installLSA(lsa("10.0.0.1", 2));
+    lsd.installLSA(lsa("10.0.0.2", 1));
+    lsd.removeLSA(LOCAL);
+
+    assertEquals(2, before.lsas.size());
+    assertEquals(1, before.lsas.get("10.0.0.1").lsaSeqNumber);
+    LinkStateDatabase.Snapshot after = lsd.snapshot();
+    assertTrue(after.version > before.version);
+    assertEquals(2, after.lsas.get("10.0.0.1").lsaSeqNumber);
+    assertNull(after.lsas.get(LOCAL));
+    try {
+      after.lsas.clear();
+      assertTrue("snapshot map is writable", false);
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void unchangedStoreReusesTheSnapshot() {
+    LinkStateDatabase lsd = database();
+    lsd.installLSA(lsa("10.0.0.1", 1));
+    assertSame(lsd.snapshot(), lsd.snapshot());
+  }
+
+  @Test
+  public void routesFollowTheStoreLazily() {
+    LinkStateDatabase lsd = database();
+    lsd.installLSA(lsa(LOCAL, 1, "10.0.0.1"));
+    lsd.installLSA(lsa("10.0.0.1", 1, LOCAL, "10.0.0.2"));
+    lsd.installLSA(lsa("10.0.0.2", 1, "10.0.0.1"));
+    assertEquals("10.0.0.0 -> 10.0.0.1 -> 10.0.0.2", lsd.getShortestPath("10.0.0.2"));
+    lsd.installLSA(lsa("10.0.0.1", 2, LOCAL));
+    assertNull(lsd.getShortestPath("10.0.0.2"));
+  }
+
+  /**
+   * writers keep raising the sequence numbers of their own routers while readers take snapshots;
+   * no snapshot may see an older instance than the one before it
+   */
+  @Test
+  public void concurrentWritersAndSnapshots() throws InterruptedException {
+    final LinkStateDatabase lsd = database();
+    final int writers = 4;
+    final int routersPerWriter = 16;
+    final int rounds = 2000;
+    final AtomicBoolean done = new AtomicBoolean(false);
+    final AtomicReference<String> failure = new AtomicReference<String>();
+
+    Thread[] threads = new Thread[writers];
+    for (int w = 0; w < writers; w++) {
+      final int writer = w;
+      threads[w] = new Thread(new Runnable() {
+        public void run() {
+          for (int seq = 1; seq <= rounds; seq++) {
+            for (int r = 0; r < routersPerWriter; r++) {
+              lsd.installLSA(lsa("10.1." + writer + "." + r, seq));
+            }
+          }
+        }
+      });
+    }
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        Map<String, Integer> seen = new HashMap<String, Integer>();
+        long version = -1;
+        while (!done.get()) {
+          LinkStateDatabase.Snapshot s = lsd.snapshot();
+          if (s.version < version) {
+            failure.set("version went back from " + version + " to " + s.version);
+          }
+          version = s.version;
+          for (LSA lsa : s.lsas.values()) {
+            Integer before = seen.put(lsa.linkStateID, lsa.lsaSeqNumber);
+            if (before != null && before > lsa.lsaSeqNumber) {
+              failure.set(lsa.linkStateID + " went back from " + before + " to " + lsa.lsaSeqNumber);
+            }
+          }
+          lsd.syncRoutes();
+        }
+      }
+    });
+    reader.start();
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    done.set(true);
+    reader.join();
+
+    assertNull(failure.get(), failure.get());
+    LinkStateDatabase.Snapshot last = lsd.snapshot();
+    assertEquals(1 + writers * routersPerWriter, last.lsas.size());
+    for (LSA lsa : last.lsas.values()) {
+      if (!lsa.linkStateID.equals(LOCAL)) {
+        assertEquals(rounds, lsa.lsaSeqNumber);
+      }
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package socs.network.node;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import socs.network.message.SOSPFPacket;
+import socs.network.message.WireFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTest {
+
+  private Router router;
+  private GateStream stream;
+  private LinkService service;
+
+  @Before
+  public void setUp() {
+    router = TestRouters.router("192.168.1.1");
+    stream = new GateStream();
+    service = TestRouters.service(router, "192.168.1.2", stream);
+  }
+
+  @After
+  public void tearDown() {
+    stream.gate.countDown();
+  }
+
+  /**
+   * a blocking stream whose writes wait until the gate is opened, it records the number of each packet
+   */
+  static class GateStream extends PacketStream {
+    final CountDownLatch gate = new CountDownLatch(1);
+    final CountDownLatch firstWrite = new CountDownLatch(1);
+    final List<Integer> written = new ArrayList<Integer>();
+
+    public WireFormat format() {
+      return WireFormat.BINARY;
+    }
+
+    public void send(SOSPFPacket packet) throws IOException {
+      firstWrite.countDown();
+      try {
+        gate.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      synchronized (this) {
+        written.add(packet.sospfType == SOSPFPacket.LSAUPDATE ? (int) packet.srcProcessPort : -1);
+        notifyAll();
+      }
+    }
+
+    public SOSPFPacket receive() throws IOException {
+      throw new IOException("nothing to receive");
+    }
+
+    public void close() {
+    }
+
+    synchronized List<Integer> await(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 2000;
+      while (written.size() < count && System.currentTimeMillis() < deadline) {
+        wait(50);
+      }
+      return new ArrayList<Integer>(written);
+    }
+  }
+
+  // bulk packets carry their number in srcProcessPort, -1 marks a control packet
+  private static SOSPFPacket bulk(int n) {
+    SOSPFPacket p = new SOSPFPacket("127.0.0.1", (short) n, "192.168.1.1", "192.168.1.2");
+    p.sospfType = SOSPFPacket.LSAUPDATE;
+    return p;
+  }
+
+  private static SOSPFPacket hello() {
+    SOSPFPacket p = new SOSPFPacket("127.0.0.1", (short) 0, "192.168.1.1", "192.168.1.2");
+    p.sospfType = SOSPFPacket.HELLO;
+    return p;
+  }
+
+  // a queue whose writer holds packet 0 at the gate
+  private OutboundQueue stalled(int capacity, OutboundQueue.FullPolicy policy) throws InterruptedException {
+    OutboundQueue queue = new OutboundQueue(service, capacity, policy, true);
+    assertTrue(queue.send(bulk(0)));
+    assertTrue(stream.firstWrite.await(2, TimeUnit.SECONDS));
+    return queue;
+  }
+
+  @Test
+  public void controlPacketsOvertakeBulk() throws InterruptedException {
+    OutboundQueue queue = stalled(4, OutboundQueue.FullPolicy.BLOCK);
+    queue.send(bulk(1));
+    queue.send(bulk(2));
+    queue.send(hello());
+    stream.gate.countDown();
+    assertEquals(Arrays.asList(0, -1, 1, 2), stream.await(4));
+  }
+
+  @Test
+  public void dropNewestRefusesThePacket() throws InterruptedException {
+    OutboundQueue queue = stalled(2, OutboundQueue.FullPolicy.DROP_NEWEST);
+    assertTrue(queue.send(bulk(1)));
+    assertTrue(queue.send(bulk(2)));
+    assertFalse(queue.send(bulk(3)));
+    assertTrue("control packets are never dropped", queue.send(hello()));
+    stream.gate.countDown();
+    assertEquals(Arrays.asList(0, -1, 1, 2), stream.await(4));
+    assertEquals(1, queue.dropped);
+  }
+
+  @Test
+  public void dropOldestMakesRoom() throws InterruptedException {
+    OutboundQueue queue = stalled(2, OutboundQueue.FullPolicy.DROP_OLDEST);
+    queue.send(bulk(1));
+    queue.send(bulk(2));
+    assertTrue(queue.send(bulk(3)));
+    stream.gate.countDown();
+    assertEquals(Arrays.asList(0, 2, 3), stream.await(3));
+    assertEquals(1, queue.dropped);
+  }
+
+  @Test
+  public void blockWaitsForTheWriter() throws InterruptedException {
+    final OutboundQueue queue = stalled(1, OutboundQueue.FullPolicy.BLOCK);
+    queue.send(bulk(1));
+    final CountDownLatch sent = new CountDownLatch(1);
+    Thread sender = new Thread(new Runnable() {
+      public void run() {
+        queue.send(bulk(2));
+        sent.countDown();
+      }
+    });
+    sender.start();
+    assertFalse("sent into a full queue", sent.await(100, TimeUnit.MILLISECONDS));
+    stream.gate.countDown();
+    assertTrue(sent.await(2, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList(0, 1, 2), stream.await(3));
+    assertEquals(1, queue.blocked);
+  }
+
+  @Test
+  public void closeReleasesABlockedSender() throws InterruptedException {
+    final OutboundQueue queue = stalled(1, OutboundQueue.FullPolicy.BLOCK);
+    queue.send(bulk(1));
+    final boolean[] result = {true};
+    Thread sender = new Thread(new Runnable() {
+      public void run() {
+        result[0] = queue.send(bulk(2));
+      }
+    });
+    sender.start();
+    Thread.sleep(50);
+    queue.close();
+    sender.join(2000);
+    assertFalse(sender.isAlive());
+    assertFalse(result[0]);
+    assertFalse(queue.send(hello()));
+  }
+
+  @Test
+  public void flushWaitsUntilWritten() throws InterruptedException {
+    OutboundQueue queue = stalled(4, OutboundQueue.FullPolicy.BLOCK);
+    queue.send(bulk(1));
+    queue.flush(20);
+    assertEquals("packet 1 waits behind the one at the gate", 1, queue.depth());
+    stream.gate.countDown();
+    queue.flush(2000);
+    assertEquals(0, queue.depth());
+    assertEquals(2, queue.written);
+  }
+
+  @Test
+  public void offerDropsRatherThanBlock() throws InterruptedException {
+    OutboundQueue queue = stalled(1, OutboundQueue.FullPolicy.BLOCK);
+    assertTrue(queue.offer(bulk(1)));
+    assertFalse(queue.offer(bulk(2)));
+    assertTrue(queue.offer(hello()));
+    assertEquals(1, queue.dropped);
+    assertEquals(0, queue.blocked);
+  }
+
+  @Test
+  public void dataIsBulk() {
+    SOSPFPacket data = bulk(1);
+    data.sospfType = SOSPFPacket.DATA;
+    assertFalse(OutboundQueue.isControl(data));
+    assertFalse(OutboundQueue.isControl(bulk(1)));
+    assertTrue(OutboundQueue.isControl(hello()));
+  }
+}
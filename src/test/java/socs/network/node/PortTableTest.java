@@ -0,0 +1,101 @@
+package socs.network.node;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PortTableTest {
+
+  private Router router = TestRouters.router("192.168.1.1");
+
+  private LinkService service(String neighbourIP) {
+    return TestRouters.service(router, neighbourIP, new TestRouters.CaptureStream());
+  }
+
+  @Test
+  public void allocatesLowestPortsFirstUntilFull() {
+    PortTable ports = new PortTable(3);
+    assertEquals(0, ports.allocate());
+    assertEquals(1, ports.allocate());
+    assertEquals(2, ports.allocate());
+    assertEquals(-1, ports.allocate());
+    assertEquals(0, ports.freePorts());
+  }
+
+  @Test
+  public void putIndexesTheNeighbour() {
+    PortTable ports = new PortTable(4);
+    int port = ports.allocate();
+    LinkService s = service("192.168.1.2");
+    ports.put(port, s);
+    assertSame(s, ports.get(port));
+    assertSame(s, ports.lookup("192.168.1.2"));
+    assertSame(ports, s.ports);
+    assertEquals(port, s.port);
+    assertNull(ports.lookup("192.168.1.3"));
+    assertNull(ports.get(-1));
+    assertNull(ports.get(4));
+    assertEquals(Arrays.asList(port), ports.usedPorts());
+  }
+
+  @Test
+  public void releaseOnlyByTheHolder() {
+    PortTable ports = new PortTable(2);
+    int port = ports.allocate();
+    LinkService s = service("192.168.1.2");
+    ports.put(port, s);
+
+    // a stale service closing late must not free the port of its successor
+    ports.release(port, service("192.168.1.2"));
+    assertSame(s, ports.get(port));
+
+    ports.release(port, s);
+    assertNull(ports.get(port));
+    assertNull(ports.lookup("192.168.1.2"));
+    assertEquals(2, ports.freePorts());
+
+    // releasing twice does not push the port twice
+    ports.release(port, null);
+    assertEquals(2, ports.freePorts());
+  }
+
+  @Test
+  public void unusedReservationGoesBack() {
+    PortTable ports = new PortTable(1);
+    int port = ports.allocate();
+    assertEquals(0, ports.freePorts());
+    ports.release(port, null);
+    assertEquals(1, ports.freePorts());
+    assertEquals(port, ports.allocate());
+  }
+
+  @Test
+  public void concurrentAllocationsNeverShareAPort() throws InterruptedException {
+    final PortTable ports = new PortTable(1000);
+    final HashSet<Integer> taken = new HashSet<Integer>();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          int port;
+          while ((port = ports.allocate()) != -1) {
+            synchronized (taken) {
+              assertTrue("port " + port + " given twice", taken.add(port));
+            }
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(1000, taken.size());
+  }
+}
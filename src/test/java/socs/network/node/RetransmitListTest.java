@@ -0,0 +1,103 @@
+package socs.network.node;
+
+import org.junit.Before;
+import org.junit.Test;
+import socs.network.message.LSA;
+import socs.network.message.SOSPFPacket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetransmitListTest {
+
+  private Router router;
+  private TestRouters.CaptureStream stream;
+  private LinkService service;
+  private RetransmitList list;
+
+  @Before
+  public void setUp() {
+    router = TestRouters.router("192.168.1.1", "socs.network.router.floodPacingMs = 0",
+        "socs.network.router.retransmitIntervalMs = 30");
+    stream = new TestRouters.CaptureStream();
+    service = TestRouters.service(router, "192.168.1.2", stream);
+    list = service.retransmit;
+  }
+
+  // LSAs flooded to the neighbour within the given time
+  private List<LSA> floodedWithin(long millis) throws InterruptedException {
+    List<LSA> lsas = new ArrayList<LSA>();
+    long deadline = System.currentTimeMillis() + millis;
+    while (System.currentTimeMillis() < deadline && lsas.isEmpty()) {
+      Thread.sleep(5);
+      for (SOSPFPacket p : stream.take()) {
+        assertEquals(SOSPFPacket.LSAUPDATE, p.sospfType);
+        lsas.addAll(p.lsaArray);
+      }
+    }
+    return lsas;
+  }
+
+  @Test
+  public void acknowledgedLSAIsNotSentAgain() throws InterruptedException {
+    list.sent(FloodQueueTest.lsa("192.168.1.3", 1));
+    assertEquals(1, list.size());
+    list.acknowledge("192.168.1.3", 1, true);
+    assertEquals(0, list.size());
+    assertEquals(0, floodedWithin(150).size());
+    assertEquals(1, list.acknowledged);
+  }
+
+  @Test
+  public void unacknowledgedLSAIsFloodedAgainInFull() throws InterruptedException {
+    LSA lsa = FloodQueueTest.lsa("192.168.1.3", 2);
+    list.sent(lsa);
+    List<LSA> again = floodedWithin(2000);
+    assertEquals(1, again.size());
+    assertEquals(2, again.get(0).lsaSeqNumber);
+    assertFalse(again.get(0).delta);
+    assertTrue(list.retransmitted >= 1);
+    assertEquals("sending it again waits for another ack", 1, list.size());
+    list.acknowledge("192.168.1.3", 2, true);
+    assertEquals(0, list.size());
+  }
+
+  @Test
+  public void onlyTheSameOrANewerInstanceAcknowledges() {
+    list.sent(FloodQueueTest.lsa("192.168.1.3", 3));
+    list.acknowledge("192.168.1.3", 2, true);
+    list.acknowledge("192.168.1.4", 3, true);
+    assertEquals(1, list.size());
+    // the neighbour flooding a newer instance to us holds ours as well
+    list.acknowledge("192.168.1.3", 4, false);
+    assertEquals(0, list.size());
+  }
+
+  @Test
+  public void newerInstanceReplacesTheUnacknowledgedOne() {
+    list.sent(FloodQueueTest.lsa("192.168.1.3", 1));
+    list.sent(FloodQueueTest.lsa("192.168.1.3", 2));
+    assertEquals(1, list.size());
+    list.acknowledge("192.168.1.3", 1, true);
+    assertEquals("an ack of the older instance is not enough", 1, list.size());
+  }
+
+  @Test
+  public void timeoutIsNeverBelowTheInterval() {
+    assertEquals(30, list.timeoutMillis());
+    list.sent(FloodQueueTest.lsa("192.168.1.3", 1));
+    list.acknowledge("192.168.1.3", 1, true);
+    assertTrue(list.timeoutMillis() >= 30);
+  }
+
+  @Test
+  public void zeroIntervalTurnsRetransmissionOff() {
+    RetransmitList off = new RetransmitList(service, router.timers, 0);
+    off.sent(FloodQueueTest.lsa("192.168.1.3", 1));
+    assertEquals(0, off.size());
+  }
+}
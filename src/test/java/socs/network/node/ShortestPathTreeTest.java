@@ -0,0 +1,388 @@
+package socs.network.node;
+
+import org.junit.Test;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * the incrementally maintained tree against a reference Dijkstra over the same LSAs, while random
+ * LSAs are added, removed and change their links
+ */
+public class ShortestPathTreeTest {
+
+  private static final int ROUTERS = 40;
+  private static final int INFINITY = ShortestPathTree.INFINITY;
+
+  private String[] ips = new String[ROUTERS];
+  private int[] seq = new int[ROUTERS];
+  // LSAs as installed, the input of the reference computation
+  private HashMap<String, LSA> installed = new HashMap<String, LSA>();
+  private Random random = new Random(11);
+  private LinkStateDatabase lsd;
+
+  private static LinkDescription link(String linkID, int port) {
+    return link(linkID, port, 1);
+  }
+
+  private static LinkDescription link(String linkID, int port, int cost) {
+    LinkDescription ld = new LinkDescription();
+    ld.linkID = linkID;
+    ld.portNum = port;
+    ld.cost = cost;
+    return ld;
+  }
+
+  // costs differ per direction, so paths are not just the fewest hops
+  private int randomCost() {
+    return 1 + random.nextInt(10);
+  }
+
+  // LSA of router i listing a random set of neighbours
+  private LSA randomLSA(int i) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = ips[i];
+    lsa.lsaSeqNumber = ++seq[i];
+    lsa.links.add(link(ips[i], -1));
+    int degree = 1 + random.nextInt(4);
+    for (int k = 0; k < degree; k++) {
+      int j = random.nextInt(ROUTERS);
+      // now and then a second link to the same neighbour, at another cost
+      if (j != i && (declared(lsa, ips[j]) == INFINITY || random.nextInt(4) == 0)) {
+        lsa.links.add(link(ips[j], k, randomCost()));
+      }
+    }
+    return lsa;
+  }
+
+  // every neighbour listed by the LSA lists its originator back, at the neighbour's next seq
+  private LSA symmetric(LSA lsa) {
+    for (LinkDescription ld : lsa.links) {
+      if (ld.linkID.equals(lsa.linkStateID)) {
+        continue;
+      }
+      int j = indexOf(ld.linkID);
+      LSA other = installed.get(ld.linkID);
+      LSA back = new LSA();
+      back.linkStateID = ld.linkID;
+      back.lsaSeqNumber = ++seq[j];
+      if (other != null) {
+        for (LinkDescription o : other.links) {
+          if (!o.linkID.equals(lsa.linkStateID)) {
+            back.links.add(o);
+          }
+        }
+      } else {
+        back.links.add(link(ld.linkID, -1));
+      }
+      back.links.add(link(lsa.linkStateID, back.links.size(), randomCost()));
+      install(back);
+    }
+    return lsa;
+  }
+
+  private int indexOf(String ip) {
+    return Integer.parseInt(ip.substring(ip.lastIndexOf('.') + 1));
+  }
+
+  private void install(LSA lsa) {
+    installed.put(lsa.linkStateID, lsa);
+    lsd.installLSA(lsa);
+  }
+
+  private void remove(String ip) {
+    installed.remove(ip);
+    lsd.removeLSA(ip);
+  }
+
+  private static int declared(LSA lsa, String to) {
+    if (lsa == null) {
+      return INFINITY;
+    }
+    // the cheapest of the links to the router
+    int cost = INFINITY;
+    for (LinkDescription ld : lsa.links) {
+      if (ld.linkID.equals(to) && !ld.linkID.equals(lsa.linkStateID)) {
+        cost = Math.min(cost, ShortestPathTree.weightOf(ld));
+      }
+    }
+    return cost;
+  }
+
+  // cost of the edge from a to b, usable only when both list each other
+  private int edge(String a, String b) {
+    if (declared(installed.get(b), a) == INFINITY) {
+      return INFINITY;
+    }
+    return declared(installed.get(a), b);
+  }
+
+  // plain O(n^2) Dijkstra from the given router over the installed LSAs
+  private int[] reference(int source) {
+    int[] dist = new int[ROUTERS];
+    boolean[] done = new boolean[ROUTERS];
+    Arrays.fill(dist, INFINITY);
+    dist[source] = 0;
+    for (int round = 0; round < ROUTERS; round++) {
+      int x = -1;
+      for (int v = 0; v < ROUTERS; v++) {
+        if (!done[v] && dist[v] != INFINITY && (x == -1 || dist[v] < dist[x])) {
+          x = v;
+        }
+      }
+      if (x == -1) {
+        break;
+      }
+      done[x] = true;
+      for (int y = 0; y < ROUTERS; y++) {
+        int w = edge(ips[x], ips[y]);
+        if (w != INFINITY && dist[x] + w < dist[y]) {
+          dist[y] = dist[x] + w;
+        }
+      }
+    }
+    return dist;
+  }
+
+  private void assertMatchesReference() {
+    lsd.syncRoutes();
+    int[] dist = reference(0);
+    for (int i = 1; i < ROUTERS; i++) {
+      assertEquals("distance to " + ips[i], dist[i], lsd.spt.distanceTo(ips[i]));
+      List<String> path = lsd.spt.pathTo(ips[i]);
+      if (dist[i] == INFINITY) {
+        assertNull(path);
+        continue;
+      }
+      // a path of tree edges, each usable both ways, adding up to the distance
+      assertEquals(ips[0], path.get(0));
+      assertEquals(ips[i], path.get(path.size() - 1));
+      int length = 0;
+      for (int k = 1; k < path.size(); k++) {
+        int w = edge(path.get(k - 1), path.get(k));
+        assertTrue("edge " + path.get(k - 1) + " - " + path.get(k), w != INFINITY);
+        length += w;
+      }
+      assertEquals("path to " + ips[i], dist[i], length);
+    }
+    assertNextHopsMatchReference(dist);
+  }
+
+  // every first hop of a shortest path, from the tight edges of the reference distances
+  private void assertNextHopsMatchReference(int[] dist) {
+    List<List<String>> expected = new ArrayList<List<String>>();
+    for (int i = 0; i < ROUTERS; i++) {
+      expected.add(new ArrayList<String>());
+    }
+    for (int x = 1; x < ROUTERS; x++) {
+      if (dist[x] == INFINITY || edge(ips[0], ips[x]) != dist[x]) {
+        continue;
+      }
+      // x starts a shortest path to everything below it over tight edges
+      boolean[] seen = new boolean[ROUTERS];
+      ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+      queue.add(x);
+      seen[x] = true;
+      while (!queue.isEmpty()) {
+        int a = queue.poll();
+        expected.get(a).add(ips[x]);
+        for (int b = 1; b < ROUTERS; b++) {
+          int w = edge(ips[a], ips[b]);
+          if (!seen[b] && w != INFINITY && dist[a] + w == dist[b]) {
+            seen[b] = true;
+            queue.add(b);
+          }
+        }
+      }
+    }
+    for (int i = 1; i < ROUTERS; i++) {
+      expected.get(i).sort(null);
+      assertEquals("next hops to " + ips[i], expected.get(i), lsd.spt.nextHopsTo(ips[i]));
+      assertEquals("forwarding entry of " + ips[i], expected.get(i), lsd.route(ips[i]).nextHops);
+    }
+  }
+
+  private void setUpDatabase() {
+    for (int i = 0; i < ROUTERS; i++) {
+      ips[i] = "10.0.0." + i;
+    }
+    RouterDescription rd = new RouterDescription();
+    rd.simulatedIPAddress = ips[0];
+    lsd = new LinkStateDatabase(rd);
+  }
+
+  @Test
+  public void incrementalMatchesReference() {
+    setUpDatabase();
+    for (int i = 0; i < ROUTERS; i++) {
+      install(symmetric(randomLSA(i)));
+    }
+    assertMatchesReference();
+
+    for (int step = 0; step < 500; step++) {
+      int i = random.nextInt(ROUTERS);
+      int change = random.nextInt(10);
+      if (change == 0 && i != 0) {
+        remove(ips[i]);
+      } else if (change < 5) {
+        // a one-sided change: the links it adds are not two-way until the other end lists them
+        install(randomLSA(i));
+      } else {
+        install(symmetric(randomLSA(i)));
+      }
+      assertMatchesReference();
+    }
+    assertTrue("incremental updates ran", lsd.spt.incrementalRuns > 0);
+  }
+
+  @Test
+  public void verifyAgreesWithIncrementalUpdates() {
+    setUpDatabase();
+    for (int i = 0; i < ROUTERS; i++) {
+      install(symmetric(randomLSA(i)));
+    }
+    for (int step = 0; step < 100; step++) {
+      install(symmetric(randomLSA(random.nextInt(ROUTERS))));
+      lsd.syncRoutes();
+      assertTrue("step " + step, lsd.spt.verify());
+    }
+  }
+
+  @Test
+  public void linkDownReroutes() {
+    setUpDatabase();
+    // a square 0 - 1 - 2 - 3 - 0, then 0 - 1 goes down
+    for (int i = 0; i < 4; i++) {
+      LSA lsa = new LSA();
+      lsa.linkStateID = ips[i];
+      lsa.lsaSeqNumber = ++seq[i];
+      lsa.links.add(link(ips[i], -1));
+      lsa.links.add(link(ips[(i + 1) % 4], 0));
+      lsa.links.add(link(ips[(i + 3) % 4], 1));
+      install(lsa);
+    }
+    lsd.syncRoutes();
+    assertEquals(1, lsd.spt.distanceTo(ips[1]));
+    assertEquals(2, lsd.spt.distanceTo(ips[2]));
+
+    LSA down = new LSA();
+    down.linkStateID = ips[1];
+    down.lsaSeqNumber = ++seq[1];
+    down.links.add(link(ips[1], -1));
+    down.links.add(link(ips[2], 0));
+    install(down);
+    lsd.syncRoutes();
+    assertEquals(3, lsd.spt.distanceTo(ips[1]));
+    ArrayList<String> path = lsd.spt.pathTo(ips[1]);
+    assertEquals(4, path.size());
+    assertEquals(ips[3], path.get(1));
+  }
+
+  @Test
+  public void hugeAdvertisedCostsDoNotOverflow() {
+    setUpDatabase();
+    // a chain 0 - 1 - 2 - 3 whose links all claim the largest int as their cost
+    for (int i = 0; i < 4; i++) {
+      LSA lsa = new LSA();
+      lsa.linkStateID = ips[i];
+      lsa.lsaSeqNumber = ++seq[i];
+      lsa.links.add(link(ips[i], -1));
+      if (i > 0) {
+        lsa.links.add(link(ips[i - 1], 0, Integer.MAX_VALUE));
+      }
+      if (i < 3) {
+        lsa.links.add(link(ips[i + 1], 1, Integer.MAX_VALUE));
+      }
+      install(lsa);
+    }
+    lsd.syncRoutes();
+    assertEquals(LinkCost.MAX_COST, lsd.spt.distanceTo(ips[1]));
+    assertEquals(3 * LinkCost.MAX_COST, lsd.spt.distanceTo(ips[3]));
+    assertEquals(Arrays.asList(ips[1]), lsd.spt.nextHopsTo(ips[3]));
+    assertTrue(lsd.spt.verify());
+  }
+
+  // 0 reaches 4 over 1, 2 and 3 at the same cost
+  private void installFan(boolean withThree) {
+    for (int i = 1; i <= 3; i++) {
+      if (i == 3 && !withThree) {
+        continue;
+      }
+      LSA middle = new LSA();
+      middle.linkStateID = ips[i];
+      middle.lsaSeqNumber = ++seq[i];
+      middle.links.add(link(ips[i], -1));
+      middle.links.add(link(ips[0], 0));
+      middle.links.add(link(ips[4], 1));
+      install(middle);
+    }
+    LSA source = new LSA();
+    source.linkStateID = ips[0];
+    source.lsaSeqNumber = ++seq[0];
+    source.links.add(link(ips[0], -1));
+    LSA sink = new LSA();
+    sink.linkStateID = ips[4];
+    sink.lsaSeqNumber = ++seq[4];
+    sink.links.add(link(ips[4], -1));
+    for (int i = 1; i <= (withThree ? 3 : 2); i++) {
+      source.links.add(link(ips[i], i - 1));
+      sink.links.add(link(ips[i], i - 1));
+    }
+    install(source);
+    install(sink);
+  }
+
+  @Test
+  public void equalCostPathsOfAFan() {
+    setUpDatabase();
+    installFan(true);
+    lsd.syncRoutes();
+    assertEquals(Arrays.asList(ips[1], ips[2], ips[3]), lsd.spt.nextHopsTo(ips[4]));
+    assertEquals(3, lsd.spt.pathCount(ips[4]));
+    assertEquals(2, lsd.spt.pathsTo(ips[4], 2).size());
+    ArrayList<ArrayList<String>> paths = lsd.spt.pathsTo(ips[4], 32);
+    assertEquals(3, paths.size());
+    for (ArrayList<String> path : paths) {
+      assertEquals(3, path.size());
+    }
+    assertEquals(Arrays.asList(ips[1]), lsd.spt.nextHopsTo(ips[1]));
+    assertEquals(0, lsd.spt.nextHopsTo(ips[0]).size());
+  }
+
+  @Test
+  public void flowsOnlyMoveOffARemovedNextHop() {
+    setUpDatabase();
+    installFan(true);
+    ForwardingTable.Route before = lsd.route(ips[4]);
+    String[] hops = new String[300];
+    int[] perHop = new int[4];
+    for (int flow = 0; flow < hops.length; flow++) {
+      hops[flow] = before.nextHop(ForwardingTable.flowHash(ips[0], ips[4], flow));
+      perHop[indexOf(hops[flow])]++;
+    }
+    for (int i = 1; i <= 3; i++) {
+      assertTrue("flows over " + ips[i] + ": " + perHop[i], perHop[i] > 50);
+    }
+
+    installFan(false);
+    remove(ips[3]);
+    ForwardingTable.Route after = lsd.route(ips[4]);
+    assertEquals(Arrays.asList(ips[1], ips[2]), after.nextHops);
+    for (int flow = 0; flow < hops.length; flow++) {
+      String hop = after.nextHop(ForwardingTable.flowHash(ips[0], ips[4], flow));
+      if (!hops[flow].equals(ips[3])) {
+        assertEquals("flow " + flow, hops[flow], hop);
+      }
+    }
+  }
+}
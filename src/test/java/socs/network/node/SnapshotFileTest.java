@@ -0,0 +1,163 @@
+package socs.network.node;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import socs.network.message.LSA;
+import socs.network.message.LinkDescription;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SnapshotFileTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path path;
+  private SnapshotFile file;
+
+  @Before
+  public void setUp() {
+    path = folder.getRoot().toPath().resolve("lsd.snapshot");
+    file = new SnapshotFile(path);
+  }
+
+  private static LSA lsa(String id, int seq, String... neighbours) {
+    LSA lsa = new LSA();
+    lsa.linkStateID = id;
+    lsa.lsaSeqNumber = seq;
+    for (int i = -1; i < neighbours.length; i++) {
+      LinkDescription ld = new LinkDescription();
+      ld.linkID = i < 0 ? id : neighbours[i];
+      ld.portNum = i;
+      lsa.links.add(ld);
+    }
+    return lsa;
+  }
+
+  private List<LSA> area0() {
+    return Arrays.asList(lsa("192.168.1.1", 4, "192.168.1.2", "192.168.1.3"),
+        lsa("192.168.1.2", 2, "192.168.1.1"), lsa("192.168.1.3", 7, "192.168.1.1"));
+  }
+
+  private Map<Integer, Collection<LSA>> database() {
+    TreeMap<Integer, Collection<LSA>> areas = new TreeMap<Integer, Collection<LSA>>();
+    areas.put(0, area0());
+    return areas;
+  }
+
+  private static void assertSameLSAs(Collection<LSA> expected, List<LSA> loaded) {
+    assertEquals(expected.size(), loaded.size());
+    int i = 0;
+    for (LSA lsa : expected) {
+      assertEquals(lsa.linkStateID, loaded.get(i).linkStateID);
+      assertEquals(lsa.lsaSeqNumber, loaded.get(i).lsaSeqNumber);
+      assertEquals(lsa.links, loaded.get(i).links);
+      i++;
+    }
+  }
+
+  private void assertRejected(String why) {
+    try {
+      file.load();
+      fail("loaded a snapshot that " + why);
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  // flip one byte of the file at the given offset from its start
+  private void corrupt(long offset) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw");
+    try {
+      raf.seek(offset);
+      int b = raf.read();
+      raf.seek(offset);
+      raf.write(b ^ 0xff);
+    } finally {
+      raf.close();
+    }
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    long before = System.currentTimeMillis();
+    file.save(database());
+    Map<Integer, List<LSA>> loaded = file.load();
+    assertEquals(1, loaded.size());
+    assertSameLSAs(area0(), loaded.get(0));
+    assertTrue(file.savedAt >= before);
+    assertFalse("the temporary file is renamed", Files.exists(path.resolveSibling("lsd.snapshot.tmp")));
+  }
+
+  @Test
+  public void saveReplacesThePreviousSnapshot() throws IOException {
+    file.save(database());
+    TreeMap<Integer, Collection<LSA>> smaller = new TreeMap<Integer, Collection<LSA>>();
+    smaller.put(0, new ArrayList<LSA>(area0().subList(0, 1)));
+    file.save(smaller);
+    assertEquals(1, file.load().get(0).size());
+  }
+
+  @Test
+  public void everyAreaIsKept() throws IOException {
+    TreeMap<Integer, Collection<LSA>> areas = new TreeMap<Integer, Collection<LSA>>();
+    areas.put(0, area0());
+    areas.put(2, Arrays.asList(lsa("192.168.2.1", 1, "192.168.1.1")));
+    areas.put(5, new ArrayList<LSA>());
+    file.save(areas);
+    Map<Integer, List<LSA>> loaded = file.load();
+    assertEquals(areas.keySet(), loaded.keySet());
+    for (int area : areas.keySet()) {
+      assertSameLSAs(areas.get(area), loaded.get(area));
+    }
+  }
+
+  @Test
+  public void missingFileIsEmpty() throws IOException {
+    assertEquals(0, file.load().size());
+  }
+
+  @Test
+  public void corruptedBodyIsRejected() throws IOException {
+    file.save(database());
+    corrupt(Files.size(path) - 3);
+    assertRejected("fails its checksum");
+  }
+
+  @Test
+  public void otherFilesAreRejected() throws IOException {
+    file.save(database());
+    corrupt(0);
+    assertRejected("has no magic number");
+  }
+
+  @Test
+  public void truncatedFileIsRejected() throws IOException {
+    file.save(database());
+    RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw");
+    try {
+      raf.setLength(raf.length() - 1);
+    } finally {
+      raf.close();
+    }
+    assertRejected("is truncated");
+    Files.write(path, new byte[]{1, 2, 3});
+    assertRejected("is shorter than its header");
+  }
+}
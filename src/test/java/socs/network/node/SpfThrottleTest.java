@@ -0,0 +1,84 @@
+package socs.network.node;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SpfThrottleTest {
+
+  // System.nanoTime() at the given millisecond of the test, odd like the times the throttle keeps
+  private static long at(long millis) {
+    return 1000000001L + millis * 1000000L;
+  }
+
+  // a change at the given time, run as soon as the throttle allows; returns when it ran
+  private static long changeAndRun(SpfThrottle throttle, long millis) {
+    throttle.changed(at(millis));
+    // waits are rounded up by a millisecond
+    long wait = Math.max(0, throttle.waitMillis(at(millis)) - 1);
+    assertEquals(0, throttle.waitMillis(at(millis + wait)));
+    throttle.ran(at(millis + wait));
+    return millis + wait;
+  }
+
+  @Test
+  public void zeroSettingsNeverHoldBack() {
+    SpfThrottle throttle = new SpfThrottle(0, 0, 0);
+    for (int i = 0; i < 5; i++) {
+      throttle.changed(at(i));
+      assertEquals(0, throttle.waitMillis(at(i)));
+      throttle.ran(at(i));
+    }
+    assertEquals(0, throttle.suppressed);
+    assertEquals(5, throttle.runs);
+  }
+
+  @Test
+  public void firstChangeWaitsTheInitialDelay() {
+    SpfThrottle throttle = new SpfThrottle(50, 100, 1000);
+    throttle.changed(at(0));
+    assertEquals(51, throttle.waitMillis(at(0)));
+    assertEquals(21, throttle.waitMillis(at(30)));
+    assertEquals(0, throttle.waitMillis(at(50)));
+    assertEquals("a run held back is counted once", 1, throttle.suppressed);
+  }
+
+  @Test
+  public void holdDoublesWhileChangesKeepComing() {
+    SpfThrottle throttle = new SpfThrottle(0, 10, 80);
+    long last = changeAndRun(throttle, 0);
+    long[] holds = {10, 20, 40, 80, 80};
+    for (long hold : holds) {
+      long ran = changeAndRun(throttle, last + 1);
+      assertEquals("runs " + hold + " ms apart", last + hold, ran);
+      last = ran;
+    }
+    assertEquals(80, throttle.maxHoldMillis);
+  }
+
+  @Test
+  public void holdResetsAfterAQuietPeriod() {
+    SpfThrottle throttle = new SpfThrottle(0, 10, 80);
+    long last = 0;
+    for (int i = 0; i < 6; i++) {
+      last = changeAndRun(throttle, last + 1);
+    }
+    // nothing for more than twice the max wait
+    long quiet = last + 161;
+    assertEquals(quiet, changeAndRun(throttle, quiet));
+    assertEquals(quiet + 10, changeAndRun(throttle, quiet + 1));
+  }
+
+  @Test
+  public void copyStartsFresh() {
+    SpfThrottle throttle = new SpfThrottle(5, 10, 80);
+    changeAndRun(throttle, 0);
+    changeAndRun(throttle, 1);
+    SpfThrottle copy = throttle.copy();
+    copy.changed(at(0));
+    assertEquals(6, copy.waitMillis(at(0)));
+    assertEquals(0, copy.waitMillis(at(5)));
+    assertEquals(0, copy.runs);
+    assertEquals(2, throttle.runs);
+  }
+}
@@ -0,0 +1,83 @@
+package socs.network.node;
+
+import socs.network.message.SOSPFPacket;
+import socs.network.message.WireFormat;
+import socs.network.util.Configuration;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * routers and links for tests, without sockets
+ */
+class TestRouters {
+
+  /**
+   * a router with the given simulated IP, settings are extra "key=value" lines of its config
+   */
+  static Router router(String simulatedIP, String... settings) {
+    try {
+      File conf = File.createTempFile("router", ".conf");
+      conf.deleteOnExit();
+      try (FileWriter out = new FileWriter(conf)) {
+        out.write("socs.network.router.ip = \"" + simulatedIP + "\"\n");
+        out.write("socs.network.router.processIP = \"127.0.0.1\"\n");
+        out.write("socs.network.router.processPort = 0\n");
+        for (String setting : settings) {
+          out.write(setting + "\n");
+        }
+      }
+      return new Router(new Configuration(conf.getPath()));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * the link service of a link from the router to the given neighbour over the stream
+   */
+  static LinkService service(Router router, String neighbourIP, PacketStream stream) {
+    RouterDescription neighbour = new RouterDescription();
+    neighbour.simulatedIPAddress = neighbourIP;
+    neighbour.processIPAddress = "127.0.0.1";
+    return new LinkService(router, new Link(router.rd, neighbour, null, stream));
+  }
+
+  /**
+   * keeps every packet sent over it, nothing is ever received
+   */
+  static class CaptureStream extends PacketStream {
+    final List<SOSPFPacket> sent = new ArrayList<SOSPFPacket>();
+
+    public WireFormat format() {
+      return WireFormat.BINARY;
+    }
+
+    // drained inline, so a packet is here as soon as send() returns
+    public boolean blocking() {
+      return false;
+    }
+
+    public synchronized void send(SOSPFPacket packet) {
+      sent.add(packet);
+    }
+
+    public SOSPFPacket receive() throws IOException {
+      throw new EOFException("nothing to receive");
+    }
+
+    public void close() {
+    }
+
+    synchronized List<SOSPFPacket> take() {
+      ArrayList<SOSPFPacket> packets = new ArrayList<SOSPFPacket>(sent);
+      sent.clear();
+      return packets;
+    }
+  }
+}
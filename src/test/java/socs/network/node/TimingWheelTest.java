@@ -0,0 +1,125 @@
+package socs.network.node;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+  private TimingWheel wheel;
+
+  @Before
+  public void setUp() {
+    // 8 slots of 5 ms, one turn is 40 ms
+    wheel = new TimingWheel("test-wheel", 5, 8);
+  }
+
+  @After
+  public void tearDown() {
+    wheel.stop();
+  }
+
+  @Test
+  public void firesAfterTheDeadline() throws InterruptedException {
+    final long[] firedAt = new long[3];
+    final CountDownLatch done = new CountDownLatch(3);
+    final long start = System.nanoTime();
+    long[] delays = {0, 20, 130}; // the last one waits more than three turns
+    for (int i = 0; i < delays.length; i++) {
+      final int k = i;
+      wheel.schedule(new Runnable() {
+        public void run() {
+          firedAt[k] = System.nanoTime();
+          done.countDown();
+        }
+      }, delays[i]);
+    }
+    assertTrue(done.await(2, TimeUnit.SECONDS));
+    for (int i = 0; i < delays.length; i++) {
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(firedAt[i] - start);
+      assertTrue("timer " + delays[i] + " ms fired after " + elapsed + " ms", elapsed >= delays[i]);
+    }
+    assertEquals(3, wheel.expired);
+  }
+
+  @Test
+  public void firesInDeadlineOrder() throws InterruptedException {
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch done = new CountDownLatch(4);
+    int[] delays = {60, 10, 45, 25};
+    for (final int delay : delays) {
+      wheel.schedule(new Runnable() {
+        public void run() {
+          order.add(delay);
+          done.countDown();
+        }
+      }, delay);
+    }
+    assertTrue(done.await(2, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList(10, 25, 45, 60), order);
+  }
+
+  @Test
+  public void cancelledTimersDoNotRun() throws InterruptedException {
+    final AtomicInteger runs = new AtomicInteger();
+    Runnable task = new Runnable() {
+      public void run() {
+        runs.incrementAndGet();
+      }
+    };
+    wheel.schedule(task, 20).cancel();
+    TimingWheel.Timeout late = wheel.schedule(task, 30);
+    final CountDownLatch done = new CountDownLatch(1);
+    wheel.schedule(new Runnable() {
+      public void run() {
+        done.countDown();
+      }
+    }, 60);
+    Thread.sleep(10);
+    late.cancel();
+    assertTrue(done.await(2, TimeUnit.SECONDS));
+    assertEquals(0, runs.get());
+    assertEquals(2, wheel.cancelled);
+  }
+
+  @Test
+  public void tasksMayRescheduleThemselves() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(5);
+    wheel.schedule(new Runnable() {
+      public void run() {
+        done.countDown();
+        if (done.getCount() > 0) {
+          wheel.schedule(this, 5);
+        }
+      }
+    }, 5);
+    assertTrue(done.await(2, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void failingTaskDoesNotStopTheWheel() throws InterruptedException {
+    wheel.schedule(new Runnable() {
+      public void run() {
+        throw new IllegalStateException("task failure expected by the test");
+      }
+    }, 0);
+    final CountDownLatch done = new CountDownLatch(1);
+    wheel.schedule(new Runnable() {
+      public void run() {
+        done.countDown();
+      }
+    }, 20);
+    assertTrue(done.await(2, TimeUnit.SECONDS));
+  }
+}